@@ -0,0 +1,99 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.tango.elasticsearch.rest.action.unique.codec.TermHashes;
+import com.tango.elasticsearch.rest.action.unique.sketch.HyperLogLog;
+
+/**
+ * Aggregation of per index results, every index has <code>cardinality</code> terms and shares <code>overlap</code>
+ * percent of them with the previous index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class AggregationBenchmark {
+
+    @Param({"24", "168"})
+    public int indices;
+
+    @Param({"10000", "100000"})
+    public int cardinality;
+
+    @Param({"50"})
+    public int overlap;
+
+    @Param({"exact", "hash", "hll"})
+    public String mode;
+
+    private UniqueTermsAction action;
+    private UniqueTermsMode uniqueTermsMode;
+    private List<TermsResult> results;
+
+    @Setup
+    public void setUp() throws Exception {
+        action = new UniqueTermsAction();
+        uniqueTermsMode = UniqueTermsMode.fromString(mode);
+        results = new ArrayList<TermsResult>(indices);
+        int step = Math.max(1, cardinality * (100 - overlap) / 100);
+        for (int index = 0; index < indices; index++) {
+            int first = index * step;
+            if (uniqueTermsMode == UniqueTermsMode.HLL) {
+                HyperLogLog sketch = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+                for (int i = first; i < first + cardinality; i++) {
+                    byte[] bytes = term(i).getBytes("UTF-8");
+                    sketch.offer(bytes, 0, bytes.length);
+                }
+                results.add(new TermsResult(sketch, cardinality, 0, 0));
+            } else if (uniqueTermsMode == UniqueTermsMode.HASH) {
+                long[] hashes = new long[cardinality];
+                for (int i = 0; i < cardinality; i++) {
+                    byte[] bytes = term(first + i).getBytes("UTF-8");
+                    hashes[i] = TermHashes.hash(bytes, 0, bytes.length);
+                }
+                results.add(new TermsResult(TermHashes.sortedUnique(hashes, cardinality), cardinality, 0, 0));
+            } else {
+                List<String> terms = new ArrayList<String>(cardinality);
+                for (int i = first; i < first + cardinality; i++) {
+                    terms.add(term(i));
+                }
+                results.add(new TermsResult(terms, cardinality, 0, 0));
+            }
+        }
+    }
+
+    @Benchmark
+    public UniqueTermsResponse aggregate() {
+        return action.aggregateResults(results, uniqueTermsMode, HyperLogLog.DEFAULT_PRECISION);
+    }
+
+    private static String term(int i) {
+        return "3f2a9c1e-uid-" + i;
+    }
+}
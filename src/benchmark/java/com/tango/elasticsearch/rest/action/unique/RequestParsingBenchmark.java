@@ -0,0 +1,78 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique;
+
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Request source parsing on Kibana style bodies, with parsed templates cache hit and miss.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RequestParsingBenchmark {
+
+    /**
+     * Number of query string clauses in the body, dashboards with many panels have dozens
+     */
+    @Param({"1", "20"})
+    public int clauses;
+
+    private UniqueTermsAction action;
+    private BytesArray source;
+    private RequestTemplateParser coldParser;
+    private byte[] sourceBytes;
+
+    @Setup
+    public void setUp() {
+        action = new UniqueTermsAction();
+        coldParser = new RequestTemplateParser(0);
+        StringBuilder should = new StringBuilder();
+        for (int i = 0; i < clauses; i++) {
+            if (i > 0) {
+                should.append(',');
+            }
+            should.append("{\"query_string\":{\"query\":\"@fields.tracer.service.name:(\\\"Service").append(i).append("\\\")\"}}");
+        }
+        String body = "{\"facets\":{\"terms\":{\"terms\":{\"field\":\"@fields.uid\",\"size\":10000000,\"order\":\"count\",\"exclude\":[]},"
+                + "\"facet_filter\":{\"fquery\":{\"query\":{\"filtered\":{\"query\":{\"bool\":{\"should\":[" + should + "]}},"
+                + "\"filter\":{\"bool\":{\"must\":[{\"range\":{\"@timestamp\":{\"from\":1395275639569,\"to\":\"now\"}}},"
+                + "{\"fquery\":{\"query\":{\"query_string\":{\"query\":\"@fields.tracer.service.name:(\\\"Like\\\")\"}},\"_cache\":true}},"
+                + "{\"terms\":{\"@fields.tracer.ip.country.name\":[\"UNITED STATES\",\"CANADA\"]}}]}}}}}}}},\"size\":0}";
+        sourceBytes = body.getBytes();
+        source = new BytesArray(sourceBytes);
+    }
+
+    @Benchmark
+    public UniqueTermsAction.RequestParamsInfo cachedTemplate() throws Exception {
+        return action.getRequestInfo(source);
+    }
+
+    @Benchmark
+    public RequestTemplateParser.RequestTemplate uncachedTemplate() throws Exception {
+        return coldParser.parse(sourceBytes, 0, sourceBytes.length);
+    }
+}
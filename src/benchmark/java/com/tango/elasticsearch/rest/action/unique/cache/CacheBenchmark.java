@@ -0,0 +1,147 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.Configuration;
+import net.sf.ehcache.config.DiskStoreConfiguration;
+import net.sf.ehcache.config.PersistenceConfiguration;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.tango.elasticsearch.rest.action.unique.TermsResult;
+
+/**
+ * Cache put/get round trips of large term lists. Ehcache keeps one entry on heap, so the rest goes through disk tier
+ * serialization.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CacheBenchmark {
+
+    private static final int KEYS = 16;
+    private static final String CACHE_NAME = "benchmark";
+
+    @Param({"10000", "1000000"})
+    public int terms;
+
+    private File directory;
+    private CacheManager cacheManager;
+    private EhcacheWrapper<String, TermsResult> ehcache;
+    private MappedCacheWrapper<TermsResult> mapped;
+    private TermsResult value;
+    private int key;
+
+    @Setup
+    public void setUp() throws IOException {
+        List<String> uniqueTerms = new ArrayList<String>(terms);
+        for (int i = 0; i < terms; i++) {
+            uniqueTerms.add("3f2a9c1e-uid-" + i);
+        }
+        value = new TermsResult(uniqueTerms, terms, 0, 0);
+
+        directory = File.createTempFile("unique-terms-benchmark", "");
+        if (!directory.delete() || !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        Configuration configuration = new Configuration()
+                .diskStore(new DiskStoreConfiguration().path(new File(directory, "ehcache").getPath()))
+                .cache(new CacheConfiguration(CACHE_NAME, 1)
+                        .persistence(new PersistenceConfiguration().strategy(PersistenceConfiguration.Strategy.LOCALTEMPSWAP)));
+        cacheManager = new CacheManager(configuration);
+        ehcache = new EhcacheWrapper<String, TermsResult>(CACHE_NAME, cacheManager);
+        mapped = new MappedCacheWrapper<TermsResult>(new File(directory, "mapped"), new ValueCodec<TermsResult>() {
+            @Override
+            public void write(TermsResult value, DataOutput out) throws IOException {
+                value.writeTo(out);
+            }
+
+            @Override
+            public TermsResult read(DataInput in) throws IOException {
+                return TermsResult.readFrom(in);
+            }
+        }, 1L << 32, 1 << 28, 1024);
+        for (int i = 0; i < KEYS; i++) {
+            ehcache.put("key" + i, value);
+            mapped.put("key" + i, value);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        cacheManager.shutdown();
+        mapped.close();
+        delete(directory);
+    }
+
+    @Benchmark
+    public TermsResult ehcacheRoundTrip() {
+        String nextKey = "key" + (key++ % KEYS);
+        ehcache.put(nextKey, value);
+        return ehcache.get("key" + (key % KEYS));
+    }
+
+    @Benchmark
+    public TermsResult mappedRoundTrip() {
+        String nextKey = "key" + (key++ % KEYS);
+        mapped.put(nextKey, value);
+        return mapped.get("key" + (key % KEYS));
+    }
+
+    /**
+     * Java serialization as done by ehcache disk tier
+     */
+    @Benchmark
+    public Object serializationRoundTrip() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(value);
+        out.close();
+        return new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -15,11 +15,19 @@
  */
 package com.tango.elasticsearch.plugin.unique;
 
+import java.util.Collection;
+import java.util.Collections;
+
+import org.elasticsearch.action.ActionModule;
+import org.elasticsearch.common.component.LifecycleComponent;
 import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.plugins.AbstractPlugin;
 import org.elasticsearch.rest.RestModule;
 
 import com.tango.elasticsearch.rest.action.unique.UniqueTermsAction;
+import com.tango.elasticsearch.rest.action.unique.UniqueTermsLifecycle;
+import com.tango.elasticsearch.rest.action.unique.shard.DistinctTermsAction;
+import com.tango.elasticsearch.rest.action.unique.shard.TransportDistinctTermsAction;
 
 public class UniqueTermsPlugin extends AbstractPlugin {
 
@@ -31,10 +39,19 @@ public class UniqueTermsPlugin extends AbstractPlugin {
         return "Unique Terms Plugin";
     }
 
+    // raw component type as declared by AbstractPlugin
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Collection<Class<? extends LifecycleComponent>> services() {
+        return Collections.<Class<? extends LifecycleComponent>>singletonList(UniqueTermsLifecycle.class);
+    }
+
     @Override
     public void processModule(Module module) {
         if (module instanceof RestModule) {
             ((RestModule) module).addRestAction(UniqueTermsAction.class);
+        } else if (module instanceof ActionModule) {
+            ((ActionModule) module).registerAction(DistinctTermsAction.INSTANCE, TransportDistinctTermsAction.class);
         }
     }
 }
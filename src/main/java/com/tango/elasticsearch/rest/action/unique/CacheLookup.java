@@ -0,0 +1,88 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.tango.elasticsearch.rest.action.unique.cache.CacheWrapper;
+
+/**
+ * Node whose result is looked up in cache after request is planned, off the thread handling it.
+ * <p/>
+ * Lookups are done level by level: children of a rollup are only looked up when the rollup itself is missing, leaves
+ * missing in cache add their searches.
+ */
+public class CacheLookup {
+
+    private final ResultNode node;
+    private final List<CacheLookup> children = new ArrayList<CacheLookup>();
+
+    public CacheLookup(ResultNode node) {
+        this.node = node;
+    }
+
+    /**
+     * Looks up results of all given nodes at once and sets the ones found
+     *
+     * @param searches index part -> search, searches of missing leaves are added here
+     * @return lookups of the next level, children of missing rollups
+     */
+    public static List<CacheLookup> lookUpLevel(List<CacheLookup> level, CacheWrapper<String, TermsResult> cache,
+            Map<String, IndexSearch> searches) {
+        List<String> keys = new ArrayList<String>(level.size());
+        for (CacheLookup lookup : level) {
+            keys.add(lookup.node.getCacheKey());
+        }
+        Map<String, TermsResult> cached = cache.getAll(keys);
+        List<CacheLookup> next = new ArrayList<CacheLookup>();
+        for (CacheLookup lookup : level) {
+            TermsResult result = cached.get(lookup.node.getCacheKey());
+            if (result != null) {
+                lookup.node.setResult(result);
+            } else {
+                lookup.missed(searches);
+                next.addAll(lookup.children);
+            }
+        }
+        return next;
+    }
+
+    public ResultNode getNode() {
+        return node;
+    }
+
+    public CacheLookup addChild(CacheLookup child) {
+        children.add(child);
+        return this;
+    }
+
+    /**
+     * @return lookups to do when result of this node is not found in cache
+     */
+    public List<CacheLookup> getChildren() {
+        return children;
+    }
+
+    /**
+     * Called when result of node is not found in cache, rollups do nothing here
+     *
+     * @param searches index part -> search, searches of missing results are added here
+     */
+    public void missed(Map<String, IndexSearch> searches) {
+    }
+}
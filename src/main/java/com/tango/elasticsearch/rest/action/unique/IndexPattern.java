@@ -0,0 +1,131 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.elasticsearch.ElasticSearchIllegalArgumentException;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+/**
+ * Naming of time based indices: <code>prefix + delimiter + date</code>, where date is printed with format in UTC and
+ * index holds events of <code>span</code> starting from it, e.g. <code>twitter-2014.03.15-00</code> for hourly indices.
+ */
+public class IndexPattern {
+
+    public static final String INDEX_PATTERNS_PARAM = "indexPatterns";
+    public static final String DEFAULT_FORMAT = "yyyy.MM.dd-HH";
+    public static final String DEFAULT_DELIMITER = "-";
+    public static final TimeValue DEFAULT_SPAN = TimeValue.timeValueHours(1);
+
+    private final String format;
+    private final DateTimeFormatter formatter;
+    private final String delimiter;
+    private final long span;
+    private final long slice;
+
+    /**
+     * @param slice length of cached slices of partly covered indices in milliseconds, not positive to disable slicing
+     */
+    public IndexPattern(String format, String delimiter, long span, long slice) {
+        if (delimiter.isEmpty()) {
+            throw new ElasticSearchIllegalArgumentException("Empty delimiter of index pattern " + format);
+        }
+        if (span <= 0) {
+            throw new ElasticSearchIllegalArgumentException("Index pattern " + format + " span has to be positive");
+        }
+        this.format = format;
+        this.formatter = DateTimeFormat.forPattern(format).withZone(DateTimeZone.UTC);
+        this.delimiter = delimiter;
+        this.span = span;
+        this.slice = slice;
+    }
+
+    /**
+     * Reads patterns from <code>indexPatterns.&lt;name&gt;.format|delimiter|span|slice</code> settings groups, ordered by
+     * name; default hourly pattern is returned if no pattern is configured.
+     *
+     * @param defaultSlice slice length used by patterns that don't set it
+     */
+    public static List<IndexPattern> fromSettings(Settings settings, long defaultSlice) {
+        List<IndexPattern> result = new ArrayList<IndexPattern>();
+        Map<String, Settings> groups = new TreeMap<String, Settings>(settings.getGroups(INDEX_PATTERNS_PARAM));
+        for (Map.Entry<String, Settings> group : groups.entrySet()) {
+            Settings pattern = group.getValue();
+            String format = pattern.get("format");
+            if (format == null) {
+                throw new ElasticSearchIllegalArgumentException("No format in index pattern " + group.getKey());
+            }
+            result.add(new IndexPattern(format, pattern.get("delimiter", DEFAULT_DELIMITER),
+                    pattern.getAsTime("span", DEFAULT_SPAN).millis(),
+                    pattern.getAsTime("slice", TimeValue.timeValueMillis(defaultSlice)).millis()));
+        }
+        if (result.isEmpty()) {
+            result.add(new IndexPattern(DEFAULT_FORMAT, DEFAULT_DELIMITER, DEFAULT_SPAN.millis(), defaultSlice));
+        }
+        return result;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public String getDelimiter() {
+        return delimiter;
+    }
+
+    public long getSpan() {
+        return span;
+    }
+
+    public long getSlice() {
+        return slice;
+    }
+
+    /**
+     * @return start of index time span, <code>-1</code> if date doesn't match format
+     */
+    public long parseDate(String date) {
+        try {
+            return formatter.parseMillis(date);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return start of span of index holding events at given time
+     */
+    public long indexStart(long time) {
+        return formatter.parseMillis(formatter.print(time));
+    }
+
+    public String indexName(String prefix, long indexStart) {
+        return prefix + delimiter + formatter.print(indexStart);
+    }
+
+    @Override
+    public String toString() {
+        return delimiter + format + "/" + TimeValue.timeValueMillis(span);
+    }
+}
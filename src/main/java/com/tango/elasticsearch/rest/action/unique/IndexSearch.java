@@ -0,0 +1,77 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.elasticsearch.action.search.SearchRequest;
+
+/**
+ * Search that has to be executed against one index because its result was not found in cache.
+ * <p/>
+ * One search serves all facets of request whose results are missing for the same part of index.
+ */
+public class IndexSearch {
+
+    private final String index;
+    private final String part;
+    private final SearchRequest request;
+    private final double coverage;
+    private final Map<String, ResultNode> nodes = new LinkedHashMap<String, ResultNode>();
+
+    /**
+     * @param part searched part of index (whole index, slice or sliver), unique within request
+     * @param coverage part of index time span covered by request, 0..1
+     */
+    public IndexSearch(String index, String part, SearchRequest request, double coverage) {
+        this.index = index;
+        this.part = part;
+        this.request = request;
+        this.coverage = coverage;
+    }
+
+    public String getIndex() {
+        return index;
+    }
+
+    public String getPart() {
+        return part;
+    }
+
+    public SearchRequest getRequest() {
+        return request;
+    }
+
+    public double getCoverage() {
+        return coverage;
+    }
+
+    /**
+     * @param node node facet search result is set to
+     */
+    public IndexSearch addNode(String facet, ResultNode node) {
+        nodes.put(facet, node);
+        return this;
+    }
+
+    /**
+     * @return facet name -> node its result is set to
+     */
+    public Map<String, ResultNode> getNodes() {
+        return nodes;
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Incremental results of open indices (indices still being written to): terms of documents up to a watermark, which
+ * is advanced by searching only documents newer than it.
+ * <p/>
+ * Thread safe, concurrent advances of the same state keep the first one.
+ */
+public class OpenIndexStates {
+
+    private final ConcurrentMap<String, State> states = new ConcurrentHashMap<String, State>();
+
+    /**
+     * @param key per index cache key of result
+     * @return state of open index, <code>null</code> if there is none
+     */
+    public State get(String key) {
+        return states.get(key);
+    }
+
+    /**
+     * Merges result of documents from state watermark (index start if there is no state) up to new watermark into
+     * state.
+     *
+     * @param expected state the delta was searched for, <code>null</code> if there was none
+     * @return <code>false</code> if state was changed meanwhile and delta was dropped
+     */
+    public boolean advance(String key, State expected, TermsResult delta, long watermark, long indexEnd) {
+        if (expected == null) {
+            return states.putIfAbsent(key, new State(delta, watermark, indexEnd)) == null;
+        }
+        if (watermark <= expected.watermark) {
+            return false;
+        }
+        State advanced = new State(TermsResult.merge(Arrays.asList(expected.result, delta)), watermark, indexEnd);
+        return states.replace(key, expected, advanced);
+    }
+
+    /**
+     * @return removed state, <code>null</code> if there was none
+     */
+    public State remove(String key) {
+        return states.remove(key);
+    }
+
+    public boolean contains(String key) {
+        return states.containsKey(key);
+    }
+
+    /**
+     * Drops states of indices closed before given time, they are cached as regular per index results by then
+     */
+    public void purge(long closedBefore) {
+        for (Iterator<State> iterator = states.values().iterator(); iterator.hasNext(); ) {
+            if (iterator.next().indexEnd < closedBefore) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public int size() {
+        return states.size();
+    }
+
+    public static class State {
+        private final TermsResult result;
+        private final long watermark;
+        private final long indexEnd;
+
+        State(TermsResult result, long watermark, long indexEnd) {
+            this.result = result;
+            this.watermark = watermark;
+            this.indexEnd = indexEnd;
+        }
+
+        /**
+         * @return result of index documents with <code>@timestamp</code> before watermark
+         */
+        public TermsResult getResult() {
+            return result;
+        }
+
+        public long getWatermark() {
+            return watermark;
+        }
+
+        public long getIndexEnd() {
+            return indexEnd;
+        }
+    }
+}
@@ -0,0 +1,566 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeConstants;
+import org.joda.time.DateTimeZone;
+
+import com.tango.elasticsearch.rest.action.unique.UniqueTermsAction.RequestParamsInfo;
+import com.tango.elasticsearch.rest.action.unique.stats.UniqueTermsStats;
+
+/**
+ * Plans what one requested time range of a request is made of: results of fully covered indices and of their day and
+ * week rollups are looked up in cache, partly covered indices are split into cached slices and slivers searched
+ * without caching, open indices requested from their start are searched incrementally.
+ * <p/>
+ * Thread safe, states of open indices are shared by all requests.
+ */
+public class RangePlanner {
+
+    private static final ESLogger logger = Loggers.getLogger(RangePlanner.class);
+
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final int DAYS_PER_WEEK = 7;
+
+    private final List<IndexPattern> indexPatterns;
+    private final UniqueTermsStats stats;
+    private final boolean incrementalEnabled;
+    private final long incrementalMarginMillis;
+    private final OpenIndexStates openIndexStates;
+
+    /**
+     * @param indexPatterns patterns time span of indices is parsed with
+     * @param incrementalEnabled <code>true</code> to search open indices incrementally
+     * @param incrementalMarginMillis documents this recent are not merged into state of open index
+     */
+    public RangePlanner(List<IndexPattern> indexPatterns, UniqueTermsStats stats, boolean incrementalEnabled,
+            long incrementalMarginMillis) {
+        this(indexPatterns, stats, incrementalEnabled, incrementalMarginMillis, new OpenIndexStates());
+    }
+
+    /**
+     * @param openIndexStates incremental states of open indices, shared by all requests
+     */
+    RangePlanner(List<IndexPattern> indexPatterns, UniqueTermsStats stats, boolean incrementalEnabled,
+            long incrementalMarginMillis, OpenIndexStates openIndexStates) {
+        this.indexPatterns = indexPatterns;
+        this.stats = stats;
+        this.incrementalEnabled = incrementalEnabled;
+        this.incrementalMarginMillis = incrementalMarginMillis;
+        this.openIndexStates = openIndexStates;
+    }
+
+    /**
+     * Looks up results of one facet in cache and adds searches for the missing ones, searches of the same index part
+     * are shared with other facets.
+     *
+     * @param cacheKeySuffix suffix of cache keys of facet results, <code>null</code> if request has no range
+     * @param requestParamsInfo requested range, <code>null</code> if request has none and indices are searched whole
+     * @param rollups <code>true</code> to look up day and week rollups of fully covered indices
+     * @param searchRequest request per index searches are created from
+     * @param now time of request, indices ending after it are open
+     * @return results of facet, added to results of plan too
+     */
+    public List<ResultNode> prepareFacet(String facet, String cacheKeySuffix, String[] indices,
+            RequestParamsInfo requestParamsInfo, boolean rollups, SearchRequest searchRequest, RangePlan plan,
+            long now) throws IOException {
+        Map<String, IndexSearch> searches = plan.searches;
+        List<CacheLookup> lookups = plan.lookups;
+        List<ResultNode> results = new ArrayList<ResultNode>();
+        plan.results.put(facet, results);
+        // prefix and pattern -> index start -> fully covered index
+        Map<String, TreeMap<Long, IndexTime>> coveredIndices = new HashMap<String, TreeMap<Long, IndexTime>>();
+        for (String index : indices) {
+            double coverage = 1;
+            long time = -1;
+            if (requestParamsInfo != null) {
+                IndexTime indexTime = parseIndexTime(index);
+                if (indexTime != null) {
+                    if (!intersects(indexTime, requestParamsInfo)) {
+                        // wildcards and aliases resolve to indices outside of requested range too
+                        if (logger.isTraceEnabled()) {
+                            logger.trace("Index " + index + " is outside of requested range, skipping");
+                        }
+                        continue;
+                    }
+                    time = indexTime.start;
+                    coverage = getCoverage(indexTime.start, indexTime.end, requestParamsInfo);
+                    // fully covered
+                    if (indexTime.start >= requestParamsInfo.getFromTime()
+                            && indexTime.end < requestParamsInfo.getToTime()) {
+                        String group = indexTime.prefix + UniqueTermsAction.CACHE_KEY_DELIMITER + indexTime.pattern;
+                        TreeMap<Long, IndexTime> prefixIndices = coveredIndices.get(group);
+                        if (prefixIndices == null) {
+                            prefixIndices = new TreeMap<Long, IndexTime>();
+                            coveredIndices.put(group, prefixIndices);
+                        }
+                        prefixIndices.put(indexTime.start, indexTime);
+                        continue;
+                    }
+                    if (prepareOpenIndex(facet, index, indexTime, requestParamsInfo, cacheKeySuffix, searchRequest,
+                            now, searches, results)) {
+                        continue;
+                    }
+                    if (prepareSlices(facet, index, indexTime, requestParamsInfo, cacheKeySuffix, searchRequest,
+                            searches, lookups, results)) {
+                        continue;
+                    }
+                    stats.partlyCovered();
+                }
+            }
+            ResultNode node = ResultNode.leaf(index, "").setTime(time);
+            results.add(node);
+            if (!addToSearch(searches, index, facet, node)) {
+                searches.put(index, new IndexSearch(index, index, createIndexSearchRequest(searchRequest, index),
+                        coverage).addNode(facet, node));
+            }
+        }
+        if (!coveredIndices.isEmpty()) {
+            for (TreeMap<Long, IndexTime> prefixIndices : coveredIndices.values()) {
+                prepareCoveredIndices(facet, prefixIndices, cacheKeySuffix, requestParamsInfo, rollups, searchRequest,
+                        lookups, results);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @return <code>false</code> if there is no search of given index part yet
+     */
+    private static boolean addToSearch(Map<String, IndexSearch> searches, String part, String facet, ResultNode node) {
+        IndexSearch search = searches.get(part);
+        if (search == null) {
+            return false;
+        }
+        search.addNode(facet, node);
+        return true;
+    }
+
+    /**
+     * Adds cache lookups of fully covered indices, starting with week and day rollups when all their indices are
+     * requested. Rollups that are not found in cache are built once all their indices results are known.
+     *
+     * @param indices index start -> fully covered index, all with the same prefix and pattern
+     */
+    private void prepareCoveredIndices(String facet, TreeMap<Long, IndexTime> indices, String cacheKeySuffix,
+            RequestParamsInfo requestParamsInfo, boolean rollups, SearchRequest searchRequest,
+            List<CacheLookup> lookups, List<ResultNode> results) {
+        IndexTime first = indices.firstEntry().getValue();
+        String prefix = first.prefix + first.pattern.getDelimiter();
+        long span = first.pattern.getSpan();
+        // day and week rollups are only built of indices that evenly divide a day
+        int indicesPerDay = span <= DAY_MILLIS && DAY_MILLIS % span == 0 ? (int) (DAY_MILLIS / span) : 0;
+        // week start -> day start -> index start -> index
+        TreeMap<Long, TreeMap<Long, TreeMap<Long, String>>> weeks =
+                new TreeMap<Long, TreeMap<Long, TreeMap<Long, String>>>();
+        for (Map.Entry<Long, IndexTime> entry : indices.entrySet()) {
+            DateTime hour = new DateTime(entry.getKey(), DateTimeZone.UTC);
+            long day = hour.withTimeAtStartOfDay().getMillis();
+            long week = hour.withDayOfWeek(DateTimeConstants.MONDAY).withTimeAtStartOfDay().getMillis();
+            TreeMap<Long, TreeMap<Long, String>> days = weeks.get(week);
+            if (days == null) {
+                days = new TreeMap<Long, TreeMap<Long, String>>();
+                weeks.put(week, days);
+            }
+            TreeMap<Long, String> hours = days.get(day);
+            if (hours == null) {
+                hours = new TreeMap<Long, String>();
+                days.put(day, hours);
+            }
+            hours.put(entry.getKey(), entry.getValue().index);
+        }
+        for (Map.Entry<Long, TreeMap<Long, TreeMap<Long, String>>> week : weeks.entrySet()) {
+            ResultNode weekNode = null;
+            CacheLookup weekLookup = null;
+            if (rollups && indicesPerDay > 0 && isFullWeek(week.getValue(), indicesPerDay)) {
+                String name = prefix + UniqueTermsAction.ES_INDEX_DAY_FORMAT.print(week.getKey()) + "|week";
+                weekNode = ResultNode.rollup(name, name + cacheKeySuffix).setTime(week.getKey());
+                weekLookup = new CacheLookup(weekNode);
+                results.add(weekNode);
+                lookups.add(weekLookup);
+            }
+            for (Map.Entry<Long, TreeMap<Long, String>> day : week.getValue().entrySet()) {
+                ResultNode dayNode = weekNode;
+                CacheLookup dayLookup = weekLookup;
+                if (rollups && indicesPerDay > 1 && day.getValue().size() == indicesPerDay) {
+                    String name = prefix + UniqueTermsAction.ES_INDEX_DAY_FORMAT.print(day.getKey()) + "|day";
+                    dayNode = ResultNode.rollup(name, name + cacheKeySuffix).setTime(day.getKey());
+                    dayLookup = new CacheLookup(dayNode);
+                    addNode(weekNode, dayNode, results);
+                    addLookup(weekLookup, dayLookup, lookups);
+                }
+                for (Map.Entry<Long, String> hour : day.getValue().entrySet()) {
+                    String index = hour.getValue();
+                    String cacheKey = index + cacheKeySuffix;
+                    IndexSearch search = new IndexSearch(index, index, createIndexSearchRequest(searchRequest, index),
+                            1);
+                    ResultNode node;
+                    CacheLookup lookup;
+                    if (openIndexStates.contains(cacheKey)) {
+                        // children are added when state is promoted
+                        node = ResultNode.rollup(index, cacheKey).setTime(hour.getKey());
+                        lookup = promoteOnMiss(facet, node, hour.getKey() + span, requestParamsInfo, searchRequest,
+                                search);
+                    } else {
+                        node = ResultNode.leaf(index, cacheKey).setTime(hour.getKey());
+                        lookup = searchOnMiss(facet, node, search);
+                    }
+                    addNode(dayNode, node, results);
+                    addLookup(dayLookup, lookup, lookups);
+                }
+            }
+        }
+    }
+
+    private static void addNode(ResultNode parent, ResultNode node, List<ResultNode> results) {
+        if (parent != null) {
+            parent.addChild(node);
+        } else {
+            results.add(node);
+        }
+    }
+
+    private static void addLookup(CacheLookup parent, CacheLookup lookup, List<CacheLookup> lookups) {
+        if (parent != null) {
+            parent.addChild(lookup);
+        } else {
+            lookups.add(lookup);
+        }
+    }
+
+    /**
+     * @param search search of node part, executed if node result is not found in cache
+     */
+    private static CacheLookup searchOnMiss(final String facet, final ResultNode node, final IndexSearch search) {
+        return new CacheLookup(node) {
+            @Override
+            public void missed(Map<String, IndexSearch> searches) {
+                addSearch(searches, facet, node, search);
+            }
+        };
+    }
+
+    private static void addSearch(Map<String, IndexSearch> searches, String facet, ResultNode node,
+            IndexSearch search) {
+        if (!addToSearch(searches, search.getPart(), facet, node)) {
+            searches.put(search.getPart(), search.addNode(facet, node));
+        }
+    }
+
+    /**
+     * @param node rollup without children yet, searched as a whole if index state is gone by the time of lookup
+     */
+    private CacheLookup promoteOnMiss(final String facet, final ResultNode node, final long indexEnd,
+            final RequestParamsInfo requestParamsInfo, final SearchRequest searchRequest, final IndexSearch search) {
+        return new CacheLookup(node) {
+            @Override
+            public void missed(Map<String, IndexSearch> searches) {
+                if (!promoteOpenIndex(facet, node, indexEnd, requestParamsInfo, searchRequest, searches)) {
+                    addSearch(searches, facet, node, search);
+                }
+            }
+        };
+    }
+
+    /**
+     * Splits partly covered index into slices of its pattern slice length
+     * ({@link UniqueTermsAction#SLICE_MINUTES_PARAM} minutes by default). Slices fully covered by requested time range
+     * are added to cache lookups and searched separately if missing, the rest of covered time range (at most one
+     * sliver before and one after the slices) is searched without caching.
+     *
+     * @return <code>false</code> if no slice is fully covered and index has to be searched as a whole
+     */
+    private boolean prepareSlices(String facet, String index, IndexTime indexTime,
+            RequestParamsInfo requestParamsInfo, String cacheKeySuffix, SearchRequest searchRequest,
+            Map<String, IndexSearch> searches, List<CacheLookup> lookups, List<ResultNode> results) throws IOException {
+        long sliceMillis = indexTime.pattern.getSlice();
+        if (sliceMillis <= 0) {
+            return false;
+        }
+        long from = requestParamsInfo.getFromTime();
+        long to = requestParamsInfo.getToTime();
+        long indexSpan = indexTime.end - indexTime.start;
+        long slicesStart = -1;
+        long slicesEnd = -1;
+        List<ResultNode> slices = new ArrayList<ResultNode>();
+        for (long sliceStart = indexTime.start; sliceStart + sliceMillis <= indexTime.end; sliceStart += sliceMillis) {
+            long sliceEnd = sliceStart + sliceMillis;
+            if (sliceStart < from || sliceEnd >= to) {
+                continue;
+            }
+            if (slicesStart < 0) {
+                slicesStart = sliceStart;
+            }
+            slicesEnd = sliceEnd;
+            String name = index + "|" + TimeUnit.MILLISECONDS.toMinutes(sliceStart - indexTime.start) + "m";
+            String cacheKey = name + "+" + TimeUnit.MILLISECONDS.toMinutes(sliceMillis) + "m" + cacheKeySuffix;
+            slices.add(ResultNode.leaf(name, cacheKey).setTime(sliceStart));
+        }
+        if (slicesStart < 0) {
+            return false;
+        }
+        for (ResultNode node : slices) {
+            results.add(node);
+            byte[] source = RequestTemplateParser.rangeSource(requestParamsInfo.getRequestTemplate(), node.getTime(),
+                    node.getTime() + sliceMillis, false);
+            lookups.add(searchOnMiss(facet, node, new IndexSearch(index, node.getName(),
+                    createIndexSearchRequest(searchRequest, index, source), (double) sliceMillis / indexSpan)));
+        }
+        long coveredStart = Math.max(from, indexTime.start);
+        if (coveredStart < slicesStart) {
+            addSliverSearch(facet, index, coveredStart, slicesStart, false, indexSpan, requestParamsInfo, searchRequest,
+                    searches, results);
+        }
+        if (to < indexTime.end) {
+            addSliverSearch(facet, index, slicesEnd, to, true, indexSpan, requestParamsInfo, searchRequest, searches,
+                    results);
+        } else if (slicesEnd < indexTime.end) {
+            addSliverSearch(facet, index, slicesEnd, indexTime.end, false, indexSpan, requestParamsInfo, searchRequest,
+                    searches, results);
+        }
+        return true;
+    }
+
+    /**
+     * Searches open index (whose time span has not ended yet) requested from its start incrementally. Documents older
+     * than the watermark of index state are not searched again, documents from watermark up to
+     * {@link UniqueTermsAction#INCREMENTAL_MARGIN_SECONDS_PARAM} seconds before requested end (or before now, if
+     * requested end is still ahead) are searched and merged into the state, the most recent ones (possibly still
+     * arriving late) are searched without caching.
+     *
+     * @return <code>false</code> if index is not open or not requested from its start
+     */
+    private boolean prepareOpenIndex(String facet, String index, IndexTime indexTime,
+            RequestParamsInfo requestParamsInfo, String cacheKeySuffix, SearchRequest searchRequest, long now,
+            Map<String, IndexSearch> searches, List<ResultNode> results) {
+        long from = requestParamsInfo.getFromTime();
+        long to = requestParamsInfo.getToTime();
+        if (!incrementalEnabled || from > indexTime.start || to >= indexTime.end || indexTime.end <= now) {
+            return false;
+        }
+        // states of indices that were never requested again after they closed
+        openIndexStates.purge(now - DAY_MILLIS);
+        final String key = index + cacheKeySuffix;
+        final OpenIndexStates.State state = openIndexStates.get(key);
+        long watermark = state != null ? state.getWatermark() : indexTime.start;
+        if (watermark > to) {
+            // state is ahead of requested end
+            return false;
+        }
+        long indexSpan = indexTime.end - indexTime.start;
+        if (state != null && state.getResult() != null) {
+            results.add(ResultNode.leaf(index, "").setResult(state.getResult()).setTime(indexTime.start));
+        }
+        // documents of the future haven't arrived yet, watermark must not pass them
+        final long settled = Math.min(to, now) - incrementalMarginMillis;
+        if (settled > watermark) {
+            final long indexEnd = indexTime.end;
+            addSliverSearch(facet, index, watermark, settled, false, indexSpan, requestParamsInfo, searchRequest,
+                    searches, results).setCallback(new ResultNode.ResultCallback() {
+                @Override
+                public void onResult(ResultNode node, TermsResult result) {
+                    if (result.getOtherCount() == 0) {
+                        openIndexStates.advance(key, state, result, settled, indexEnd);
+                    }
+                }
+            });
+            watermark = settled;
+        }
+        addSliverSearch(facet, index, watermark, to, true, indexSpan, requestParamsInfo, searchRequest, searches,
+                results);
+        stats.incrementalSearch();
+        return true;
+    }
+
+    /**
+     * Completes incremental state of closed index with documents newer than its watermark, the result is cached as
+     * per index result once the search completes.
+     *
+     * @param node rollup the state and search of the rest of index are added to
+     * @return <code>false</code> if index has no state
+     */
+    private boolean promoteOpenIndex(String facet, ResultNode node, long indexEnd, RequestParamsInfo requestParamsInfo,
+            SearchRequest searchRequest, Map<String, IndexSearch> searches) {
+        OpenIndexStates.State state = openIndexStates.remove(node.getCacheKey());
+        if (state == null || state.getResult() == null || state.getWatermark() >= indexEnd) {
+            return false;
+        }
+        stats.promoted();
+        String index = node.getName();
+        long indexStart = node.getTime();
+        node.addChild(ResultNode.leaf(index, "").setResult(state.getResult()).setTime(indexStart));
+        List<ResultNode> rest = new ArrayList<ResultNode>(1);
+        addSliverSearch(facet, index, state.getWatermark(), indexEnd, false, indexEnd - indexStart, requestParamsInfo,
+                searchRequest, searches, rest);
+        node.addChild(rest.get(0));
+        return true;
+    }
+
+    private ResultNode addSliverSearch(String facet, String index, long from, long to, boolean includeUpper,
+            long indexSpan, RequestParamsInfo requestParamsInfo, SearchRequest searchRequest,
+            Map<String, IndexSearch> searches, List<ResultNode> results) {
+        stats.partlyCovered();
+        ResultNode node = ResultNode.leaf(index, "").setTime(from);
+        results.add(node);
+        String part = index + "|" + from + "-" + to;
+        if (!addToSearch(searches, part, facet, node)) {
+            searches.put(part, new IndexSearch(index, part, createIndexSearchRequest(searchRequest, index,
+                    RequestTemplateParser.rangeSource(requestParamsInfo.getRequestTemplate(), from, to, includeUpper)),
+                    (double) (to - from) / indexSpan).addNode(facet, node));
+        }
+        return node;
+    }
+
+    private static boolean isFullWeek(TreeMap<Long, TreeMap<Long, String>> days, int indicesPerDay) {
+        if (days.size() != DAYS_PER_WEEK) {
+            return false;
+        }
+        for (TreeMap<Long, String> hours : days.values()) {
+            if (hours.size() != indicesPerDay) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static SearchRequest createIndexSearchRequest(SearchRequest searchRequest, String index) {
+        return createIndexSearchRequest(searchRequest, index, searchRequest.source());
+    }
+
+    static SearchRequest createIndexSearchRequest(SearchRequest searchRequest, String index, byte[] source) {
+        return createIndexSearchRequest(searchRequest, index, new BytesArray(source));
+    }
+
+    /**
+     * @param source request source, shared between per index requests
+     */
+    static SearchRequest createIndexSearchRequest(SearchRequest searchRequest, String index, BytesReference source) {
+        SearchRequest oneIndexSearchRequest = new SearchRequest(index);
+        if (source != null) {
+            oneIndexSearchRequest.source(source, false);
+        }
+        if (searchRequest.extraSource() != null) {
+            oneIndexSearchRequest.extraSource(searchRequest.extraSource(), false);
+        }
+        oneIndexSearchRequest.searchType(searchRequest.searchType());
+        oneIndexSearchRequest.types(searchRequest.types());
+        oneIndexSearchRequest.routing(searchRequest.routing());
+        oneIndexSearchRequest.preference(searchRequest.preference());
+        oneIndexSearchRequest.ignoreIndices(searchRequest.ignoreIndices());
+        oneIndexSearchRequest.listenerThreaded(false);
+        oneIndexSearchRequest.operationThreading(searchRequest.operationThreading());
+        return oneIndexSearchRequest;
+    }
+
+    /**
+     * @return index prefix and time span parsed from index name, <code>null</code> if index name matches no
+     *         {@link IndexPattern}
+     */
+    IndexTime parseIndexTime(String index) {
+        for (IndexPattern pattern : indexPatterns) {
+            String delimiter = pattern.getDelimiter();
+            int datePostfixStart = -1;
+            while ((datePostfixStart = index.indexOf(delimiter, datePostfixStart + 1)) >= 0) {
+                long start = pattern.parseDate(index.substring(datePostfixStart + delimiter.length()));
+                if (start >= 0) {
+                    return new IndexTime(index, index.substring(0, datePostfixStart), start, start + pattern.getSpan(),
+                            pattern);
+                }
+            }
+        }
+        if (logger.isTraceEnabled()) {
+            logger.trace("No date postfix found in index " + index);
+        }
+        return null;
+    }
+
+    /**
+     * @return <code>true</code> if index may hold documents of requested range, its end is inclusive
+     */
+    private static boolean intersects(IndexTime indexTime, RequestParamsInfo requestParamsInfo) {
+        return indexTime.end > requestParamsInfo.getFromTime() && indexTime.start <= requestParamsInfo.getToTime();
+    }
+
+    private static double getCoverage(long indexStart, long indexEnd, RequestParamsInfo requestParamsInfo) {
+        long covered = Math.min(indexEnd, requestParamsInfo.getToTime())
+                - Math.max(indexStart, requestParamsInfo.getFromTime());
+        return Math.max(0, Math.min(1, (double) covered / (indexEnd - indexStart)));
+    }
+
+    /**
+     * Searches, cache lookups and per facet results planned for one requested time range.
+     */
+    public static class RangePlan {
+        private final Map<String, IndexSearch> searches = new LinkedHashMap<String, IndexSearch>();
+        private final List<CacheLookup> lookups = new ArrayList<CacheLookup>();
+        private final Map<String, List<ResultNode>> results = new LinkedHashMap<String, List<ResultNode>>();
+
+        /**
+         * @return index part -> search, searches of missing lookups are added once lookups are done
+         */
+        public Map<String, IndexSearch> getSearches() {
+            return searches;
+        }
+
+        /**
+         * @return cache lookups of the first level, children are looked up if their parent is missing
+         */
+        public List<CacheLookup> getLookups() {
+            return lookups;
+        }
+
+        /**
+         * @return facet name -> results the response is aggregated of
+         */
+        public Map<String, List<ResultNode>> getResults() {
+            return results;
+        }
+    }
+
+    /**
+     * Time span of an index parsed from its name.
+     */
+    static class IndexTime {
+        final String index;
+        final String prefix;
+        final long start;
+        final long end;
+        final IndexPattern pattern;
+
+        IndexTime(String index, String prefix, long start, long end, IndexPattern pattern) {
+            this.index = index;
+            this.prefix = prefix;
+            this.start = start;
+            this.end = end;
+            this.pattern = pattern;
+        }
+    }
+}
@@ -0,0 +1,363 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.elasticsearch.common.bytes.BytesArray;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.tango.elasticsearch.rest.action.unique.shard.TransportDistinctTermsAction;
+import com.tango.elasticsearch.rest.action.unique.util.CanonicalJson;
+
+/**
+ * Extracts request template (canonical source without <code>@timestamp</code> range) and requested range from request
+ * source. Source is streamed into a canonical tree once, the tree is then serialized once per facet for facet cache keys
+ * and the template is parsed again to check shard collector support, so templates are cached by digest of request source.
+ * <p/>
+ * Request may contain several named terms facets, each gets its own cache key that doesn't depend on the other facets
+ * or on facet name. All <code>@timestamp</code> ranges of a request (e.g. one per facet filter) have to be the same.
+ * <code>@timestamp</code> is a range if it is an object under <code>range</code> or <code>numeric_range</code> query or
+ * filter or has range bounds, other occurrences (e.g. sort) are kept in template as they are.
+ * <p/>
+ * Thread safe.
+ */
+public class RequestTemplateParser {
+
+    public static final String TIMESTAMP_FIELD = "@timestamp";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String EMPTY_RANGE = '"' + TIMESTAMP_FIELD + "\":{}";
+    private static final String[] RANGE_BOUNDS = {"from", "to", "gte", "lte"};
+
+    private final Map<String, RequestTemplate> cache;
+
+    /**
+     * @param cacheSize max number of parsed templates kept, least recently used are evicted
+     */
+    public RequestTemplateParser(int cacheSize) {
+        this.cache = new TemplateCache(cacheSize);
+    }
+
+    public RequestTemplate parse(byte[] data, int offset, int length) throws IOException {
+        String digest = CanonicalJson.digest(data, offset, length);
+        RequestTemplate result;
+        synchronized (cache) {
+            result = cache.get(digest);
+        }
+        if (result == null) {
+            result = doParse(MAPPER.getFactory().createParser(data, offset, length));
+            synchronized (cache) {
+                cache.put(digest, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return source of given template with every <code>@timestamp</code> range set
+     */
+    public static byte[] rangeSource(String template, long from, long to, boolean includeUpper) {
+        int position = template.indexOf(EMPTY_RANGE);
+        if (position < 0) {
+            throw new IllegalArgumentException("No " + TIMESTAMP_FIELD + " range in template " + template);
+        }
+        StringBuilder result = new StringBuilder(template.length() + 64);
+        int copied = 0;
+        for (; position >= 0; position = template.indexOf(EMPTY_RANGE, position + EMPTY_RANGE.length())) {
+            result.append(template, copied, position + EMPTY_RANGE.length() - 1)
+                    .append("\"from\":").append(from)
+                    .append(",\"to\":").append(to)
+                    .append(",\"include_upper\":").append(includeUpper);
+            copied = position + EMPTY_RANGE.length() - 1;
+        }
+        result.append(template, copied, template.length());
+        try {
+            return result.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param sizes facet name -> terms facet size to set, per shard size of these facets is removed
+     * @return given request source with terms facet sizes replaced
+     */
+    public static byte[] facetSizeSource(byte[] source, int offset, int length, Map<String, Integer> sizes) throws IOException {
+        JsonNode root = MAPPER.readTree(MAPPER.getFactory().createParser(source, offset, length));
+        JsonNode facets = root != null ? root.findValue("facets") : null;
+        for (Map.Entry<String, Integer> size : sizes.entrySet()) {
+            JsonNode terms = facets != null ? facets.path(size.getKey()).path("terms") : null;
+            if (terms == null || !terms.isObject()) {
+                throw new IllegalArgumentException("No terms facet " + size.getKey() + " in request source");
+            }
+            ((ObjectNode) terms).put("size", size.getValue());
+            ((ObjectNode) terms).remove("shard_size");
+        }
+        return MAPPER.writeValueAsBytes(root);
+    }
+
+    private RequestTemplate doParse(JsonParser parser) throws IOException {
+        try {
+            ParseState state = new ParseState();
+            JsonNode root = readValue(parser, parser.nextToken(), null, state);
+            if (state.facets == null) {
+                throw new IllegalArgumentException("No facets found in requests");
+            }
+            if (state.facets.size() == 0) {
+                throw new IllegalArgumentException("No terms facet found in requests");
+            }
+            Map<String, String> facetFields = new LinkedHashMap<String, String>();
+            for (Iterator<Map.Entry<String, JsonNode>> iterator = state.facets.fields(); iterator.hasNext(); ) {
+                Map.Entry<String, JsonNode> facet = iterator.next();
+                JsonNode terms = facet.getValue().path("terms");
+                if (!terms.isObject()) {
+                    throw new IllegalArgumentException("Unexpected facet " + facet.getKey() + ", only terms facets are supported");
+                }
+                JsonNode field = terms.path("field");
+                facetFields.put(facet.getKey(), field.isTextual() ? field.asText() : "");
+            }
+            if (!state.timestampFound) {
+                throw new IllegalArgumentException("No " + TIMESTAMP_FIELD + " found in requests");
+            }
+            String source = MAPPER.writeValueAsString(root);
+            return new RequestTemplate(source, CanonicalJson.digest(source), getFacetCacheKeys(root, state.facets),
+                    facetFields, state.from, state.to, TransportDistinctTermsAction.getUnsupportedReason(new BytesArray(source)));
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * @return facet name -> digest of canonical source with this facet only, facet name excluded
+     */
+    private static Map<String, String> getFacetCacheKeys(JsonNode root, ObjectNode facets) throws IOException {
+        Map<String, JsonNode> definitions = new LinkedHashMap<String, JsonNode>();
+        for (Iterator<Map.Entry<String, JsonNode>> iterator = facets.fields(); iterator.hasNext(); ) {
+            Map.Entry<String, JsonNode> facet = iterator.next();
+            definitions.put(facet.getKey(), facet.getValue());
+        }
+        facets.removeAll();
+        String base = MAPPER.writeValueAsString(root);
+        facets.setAll(definitions);
+        Map<String, String> result = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, JsonNode> definition : definitions.entrySet()) {
+            result.put(definition.getKey(), CanonicalJson.digest(base + MAPPER.writeValueAsString(definition.getValue())));
+        }
+        return result;
+    }
+
+    /**
+     * @param parent name of the field <code>@timestamp</code> object belongs to
+     */
+    private static boolean isRange(String parent, JsonNode value) {
+        if (!value.isObject()) {
+            return false;
+        }
+        if ("range".equals(parent) || "numeric_range".equals(parent)) {
+            return true;
+        }
+        for (String bound : RANGE_BOUNDS) {
+            if (value.has(bound)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String bound(JsonNode range, String name, String alias) {
+        return range.has(name) ? range.path(name).asText() : range.path(alias).asText();
+    }
+
+    /**
+     * @param parent name of the field value belongs to (array elements belong to the field of array), null for root
+     */
+    private JsonNode readValue(JsonParser parser, JsonToken token, String parent, ParseState state) throws IOException {
+        JsonNodeFactory factory = JsonNodeFactory.instance;
+        if (token == null) {
+            throw new IllegalArgumentException("Unexpected end of request source");
+        }
+        switch (token) {
+            case START_OBJECT:
+                TreeMap<String, JsonNode> fields = new TreeMap<String, JsonNode>();
+                while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    // first matching field in document order, like JsonNode.findValue
+                    boolean facets = state.facets == null && "facets".equals(name);
+                    JsonNode value = readValue(parser, parser.nextToken(), name, state);
+                    if (facets) {
+                        if (!value.isObject()) {
+                            throw new IllegalArgumentException("Unexpected facets " + value);
+                        }
+                        state.facets = (ObjectNode) value;
+                    }
+                    if (TIMESTAMP_FIELD.equals(name)) {
+                        if (isRange(parent, value)) {
+                            String from = bound(value, "from", "gte");
+                            String to = bound(value, "to", "lte");
+                            if (state.rangeFound && (!state.from.equals(from) || !state.to.equals(to))) {
+                                throw new IllegalArgumentException("Different " + TIMESTAMP_FIELD + " ranges in request");
+                            }
+                            state.rangeFound = true;
+                            state.from = from;
+                            state.to = to;
+                            value = factory.objectNode();
+                        }
+                        state.timestampFound = true;
+                    }
+                    fields.put(name, value);
+                }
+                if (token != JsonToken.END_OBJECT) {
+                    throw new IllegalArgumentException("Unexpected token " + token);
+                }
+                ObjectNode object = factory.objectNode();
+                for (Map.Entry<String, JsonNode> field : fields.entrySet()) {
+                    object.set(field.getKey(), field.getValue());
+                }
+                return object;
+            case START_ARRAY:
+                ArrayNode array = factory.arrayNode();
+                while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                    array.add(readValue(parser, token, parent, state));
+                }
+                return array;
+            case VALUE_STRING:
+                return factory.textNode(parser.getText());
+            case VALUE_NUMBER_INT:
+                return parser.getNumberType() == JsonParser.NumberType.BIG_INTEGER
+                        ? factory.numberNode(parser.getBigIntegerValue()) : factory.numberNode(parser.getLongValue());
+            case VALUE_NUMBER_FLOAT:
+                return CanonicalJson.number(parser.getDecimalValue());
+            case VALUE_TRUE:
+                return factory.booleanNode(true);
+            case VALUE_FALSE:
+                return factory.booleanNode(false);
+            case VALUE_NULL:
+                return factory.nullNode();
+            default:
+                throw new IllegalArgumentException("Unexpected token " + token);
+        }
+    }
+
+    private static class ParseState {
+        private ObjectNode facets;
+        private boolean timestampFound;
+        private boolean rangeFound;
+        private String from = "";
+        private String to = "";
+    }
+
+    /**
+     * Parsed request source.
+     */
+    public static class RequestTemplate {
+        private final String source;
+        private final String cacheKey;
+        private final Map<String, String> facetCacheKeys;
+        private final Map<String, String> facetFields;
+        private final String from;
+        private final String to;
+        private final String shardCollectorUnsupported;
+
+        RequestTemplate(String source, String cacheKey, Map<String, String> facetCacheKeys, Map<String, String> facetFields,
+                String from, String to, String shardCollectorUnsupported) {
+            this.source = source;
+            this.cacheKey = cacheKey;
+            this.facetCacheKeys = facetCacheKeys;
+            this.facetFields = facetFields;
+            this.from = from;
+            this.to = to;
+            this.shardCollectorUnsupported = shardCollectorUnsupported;
+        }
+
+        /**
+         * @return canonical request source with empty <code>@timestamp</code> range
+         */
+        public String getSource() {
+            return source;
+        }
+
+        /**
+         * @return digest of canonical source
+         */
+        public String getCacheKey() {
+            return cacheKey;
+        }
+
+        /**
+         * @return facet name -> digest of canonical source with this facet only, in facet name order
+         */
+        public Map<String, String> getFacetCacheKeys() {
+            return facetCacheKeys;
+        }
+
+        /**
+         * @return facet name -> field of its terms, empty if terms don't come from a single field
+         */
+        public Map<String, String> getFacetFields() {
+            return facetFields;
+        }
+
+        /**
+         * @return range start as in request (milliseconds or <code>now</code>), empty if not specified
+         */
+        public String getFrom() {
+            return from;
+        }
+
+        /**
+         * @return range end as in request (milliseconds or <code>now</code>), empty if not specified
+         */
+        public String getTo() {
+            return to;
+        }
+
+        /**
+         * @return why facets of request can't be collected per shard, <code>null</code> if they can
+         */
+        public String getShardCollectorUnsupported() {
+            return shardCollectorUnsupported;
+        }
+    }
+
+    private static class TemplateCache extends LinkedHashMap<String, RequestTemplate> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        private TemplateCache(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, RequestTemplate> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+
+import com.tango.elasticsearch.rest.action.unique.cache.CacheWrapper;
+import com.tango.elasticsearch.rest.action.unique.codec.RoaringBitmap;
+import com.tango.elasticsearch.rest.action.unique.sketch.HyperLogLog;
+
+/**
+ * Builds response of a request out of its per index results: facet results are merged, bucketed into histogram or
+ * compared with results of another range. Rollups whose children all became known are cached on the way.
+ * <p/>
+ * Thread safe.
+ */
+public class ResponseAssembler {
+
+    private static final ESLogger logger = Loggers.getLogger(ResponseAssembler.class);
+
+    private final TermsMerger merger;
+    private final CacheWrapper<String, TermsResult> cache;
+
+    /**
+     * @param cache cache merged rollups are put to
+     */
+    public ResponseAssembler(TermsMerger merger, CacheWrapper<String, TermsResult> cache) {
+        this.merger = merger;
+        this.cache = cache;
+    }
+
+    /**
+     * @param results facet name -> results of requested range
+     * @param compareResults facet name -> results of compared range, <code>null</code> if comparison is not requested
+     * @param interval histogram interval in milliseconds, <code>0</code> if histogram is not requested
+     */
+    public UniqueTermsResponse assemble(Map<String, List<ResultNode>> results,
+            Map<String, List<ResultNode>> compareResults, UniqueTermsMode mode, int precision, long interval) {
+        List<UniqueTermsResponse.UniqueTerms> facets = new ArrayList<UniqueTermsResponse.UniqueTerms>(results.size());
+        TermsHistogram histogram = interval > 0 ? new TermsHistogram(interval, mode, precision) : null;
+        for (Map.Entry<String, List<ResultNode>> facet : results.entrySet()) {
+            if (histogram != null) {
+                facets.add(histogram.aggregate(facet.getKey(), facet.getValue()));
+                continue;
+            }
+            List<TermsResult> searchResults = collectResults(facet.getValue());
+            if (compareResults == null) {
+                facets.add(aggregateTerms(facet.getKey(), searchResults, mode, precision));
+                continue;
+            }
+            TermsResult merged = merger.merge(searchResults);
+            TermsResult compared = merger.merge(collectResults(compareResults.get(facet.getKey())));
+            facets.add(toUniqueTerms(facet.getKey(), merged, mode, precision).setComparison(compare(merged, compared)));
+        }
+        return new UniqueTermsResponse(facets);
+    }
+
+    /**
+     * @param searchResults results to merge, <code>null</code> if there are none
+     */
+    public UniqueTermsResponse.UniqueTerms aggregateTerms(String name, Collection<TermsResult> searchResults,
+            UniqueTermsMode mode, int precision) {
+        TermsResult merged = searchResults != null
+                ? merger.merge(new ArrayList<TermsResult>(searchResults)) : null;
+        return toUniqueTerms(name, merged, mode, precision);
+    }
+
+    /**
+     * Merges rollups whose children are all known and caches them
+     *
+     * @return results of given nodes, of their children if not known
+     */
+    private List<TermsResult> collectResults(List<ResultNode> nodes) {
+        List<ResultNode> rollups = new ArrayList<ResultNode>();
+        List<TermsResult> results = new ArrayList<TermsResult>();
+        for (ResultNode node : nodes) {
+            node.resolve(rollups);
+            node.collect(results);
+        }
+        for (ResultNode rollup : rollups) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Put to cache for key '" + rollup.getCacheKey() + "'");
+            }
+            cache.put(rollup.getCacheKey(), rollup.getResult(), rollup.getCost());
+        }
+        return results;
+    }
+
+    /**
+     * @param merged bitmap result of requested range, <code>null</code> if there are no results
+     * @param compared bitmap result of compared range, <code>null</code> if there are no results
+     */
+    private static UniqueTermsResponse.Comparison compare(TermsResult merged, TermsResult compared) {
+        RoaringBitmap bitmap = merged != null ? merged.getBitmap() : RoaringBitmap.EMPTY;
+        RoaringBitmap compareBitmap = compared != null ? compared.getBitmap() : RoaringBitmap.EMPTY;
+        long unique = bitmap.cardinality();
+        long compareUnique = compareBitmap.cardinality();
+        long overlap = RoaringBitmap.and(bitmap, compareBitmap).cardinality();
+        return new UniqueTermsResponse.Comparison(compareUnique, compared != null ? compared.getTotalCount() : 0,
+                overlap, unique - overlap, compareUnique - overlap);
+    }
+
+    /**
+     * @param merged results of all indices merged, <code>null</code> if there are none
+     */
+    private static UniqueTermsResponse.UniqueTerms toUniqueTerms(String name, TermsResult merged, UniqueTermsMode mode,
+            int precision) {
+        if (merged == null) {
+            return new UniqueTermsResponse.UniqueTerms(name, 0, 0, 0, 0,
+                    mode == UniqueTermsMode.HLL ? HyperLogLog.relativeError(precision) : 0);
+        }
+        long unique;
+        double error = 0;
+        if (merged.getSketch() != null) {
+            unique = merged.getSketch().cardinality();
+            error = merged.getSketch().relativeError();
+        } else if (merged.getHashes() != null) {
+            unique = merged.getHashes().length;
+        } else if (merged.getBitmap() != null) {
+            unique = merged.getBitmap().cardinality();
+        } else {
+            unique = merged.getTerms().size();
+        }
+        return new UniqueTermsResponse.UniqueTerms(name, unique, merged.getTotalCount(), merged.getMissingCount(),
+                merged.getOtherCount(), error);
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.tango.elasticsearch.rest.action.unique.cache.AdmissionCacheWrapper;
+
+/**
+ * Result of one index or of a rollup over several indices (day, week).
+ * <p/>
+ * Result is either known upfront (found in cache), set when index search completes or merged from children results
+ * when all of them are complete.
+ */
+public class ResultNode {
+
+    /**
+     * Notified when result of searched node is set
+     */
+    public interface ResultCallback {
+        void onResult(ResultNode node, TermsResult result);
+    }
+
+    private final String name;
+    private final String cacheKey;
+    private final List<ResultNode> children;
+    private volatile TermsResult result;
+    // microseconds to recompute result, 0 if unknown
+    private volatile long cost;
+    private long time = -1;
+    private ResultCallback callback;
+
+    private ResultNode(String name, String cacheKey, List<ResultNode> children) {
+        this.name = name;
+        this.cacheKey = cacheKey;
+        this.children = children;
+    }
+
+    /**
+     * @param cacheKey key to cache result with, empty if result should not be cached
+     */
+    public static ResultNode leaf(String name, String cacheKey) {
+        return new ResultNode(name, cacheKey, Collections.<ResultNode>emptyList());
+    }
+
+    public static ResultNode rollup(String name, String cacheKey) {
+        return new ResultNode(name, cacheKey, new ArrayList<ResultNode>());
+    }
+
+    public ResultNode addChild(ResultNode child) {
+        children.add(child);
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getCacheKey() {
+        return cacheKey;
+    }
+
+    public boolean isCacheable() {
+        return cacheKey.length() > 0;
+    }
+
+    public List<ResultNode> getChildren() {
+        return children;
+    }
+
+    /**
+     * @return start of time span covered by node, <code>-1</code> if unknown
+     */
+    public long getTime() {
+        return time;
+    }
+
+    public ResultNode setTime(long time) {
+        this.time = time;
+        return this;
+    }
+
+    /**
+     * @return time to recompute result in microseconds: measured search time of searched leaves, children costs plus
+     *         merge time of merged rollups, <code>0</code> if unknown (result found in cache)
+     */
+    public long getCost() {
+        return cost;
+    }
+
+    /**
+     * Sets cost, has to be called before result is set
+     */
+    public ResultNode setCost(long cost) {
+        this.cost = cost;
+        return this;
+    }
+
+    public ResultNode setCallback(ResultCallback callback) {
+        this.callback = callback;
+        return this;
+    }
+
+    public TermsResult getResult() {
+        return result;
+    }
+
+    public ResultNode setResult(TermsResult result) {
+        this.result = result;
+        if (callback != null && result != null) {
+            callback.onResult(this, result);
+        }
+        return this;
+    }
+
+    /**
+     * @return <code>true</code> if result is known and not truncated
+     */
+    public boolean isComplete() {
+        return result != null && result.getOtherCount() == 0;
+    }
+
+    /**
+     * Merges results of rollups whose children are all complete
+     *
+     * @param merged rollups merged by this call are added here
+     */
+    public void resolve(Collection<ResultNode> merged) {
+        if (result != null || children.isEmpty()) {
+            return;
+        }
+        for (ResultNode child : children) {
+            child.resolve(merged);
+        }
+        List<TermsResult> childResults = new ArrayList<TermsResult>(children.size());
+        long childrenCost = 0;
+        for (ResultNode child : children) {
+            if (!child.isComplete()) {
+                return;
+            }
+            childResults.add(child.result);
+            // cached children cost at least a default search
+            childrenCost += child.cost > 0 ? child.cost : AdmissionCacheWrapper.DEFAULT_COST;
+        }
+        long start = System.nanoTime();
+        result = TermsResult.merge(childResults);
+        cost = childrenCost + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        merged.add(this);
+    }
+
+    /**
+     * Collects own result if known, children results otherwise
+     */
+    public void collect(Collection<TermsResult> results) {
+        if (result != null) {
+            results.add(result);
+        } else {
+            for (ResultNode child : children) {
+                child.collect(results);
+            }
+        }
+    }
+}
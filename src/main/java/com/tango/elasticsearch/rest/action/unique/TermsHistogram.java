@@ -0,0 +1,250 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.hppc.LongOpenHashSet;
+
+import com.tango.elasticsearch.rest.action.unique.codec.RoaringBitmap;
+import com.tango.elasticsearch.rest.action.unique.codec.TermsBlock;
+import com.tango.elasticsearch.rest.action.unique.sketch.HyperLogLog;
+
+/**
+ * Aggregates per index results into per interval and running cumulative unique counts.
+ * <p/>
+ * Results are grouped by interval start and every result is read once: it is merged into its interval distinct set,
+ * which is then merged into the cumulative one in time order.
+ */
+public class TermsHistogram {
+
+    private final long interval;
+    private final UniqueTermsMode mode;
+    private final int precision;
+
+    /**
+     * @param interval bucket length in milliseconds, buckets are aligned to epoch (UTC)
+     */
+    public TermsHistogram(long interval, UniqueTermsMode mode, int precision) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Histogram interval must be positive");
+        }
+        this.interval = interval;
+        this.mode = mode;
+        this.precision = precision;
+    }
+
+    /**
+     * @param nodes leaf nodes with known result and time, see {@link ResultNode#getTime()}
+     */
+    public UniqueTermsResponse.UniqueTerms aggregate(String name, Collection<ResultNode> nodes) {
+        TreeMap<Long, List<TermsResult>> buckets = new TreeMap<Long, List<TermsResult>>();
+        for (ResultNode node : nodes) {
+            if (node.getTime() < 0) {
+                throw new IllegalArgumentException("Histogram requires time based indices, got " + node.getName());
+            }
+            long bucket = node.getTime() - node.getTime() % interval;
+            List<TermsResult> results = buckets.get(bucket);
+            if (results == null) {
+                results = new ArrayList<TermsResult>();
+                buckets.put(bucket, results);
+            }
+            node.collect(results);
+        }
+        Accumulator cumulative = newAccumulator();
+        List<UniqueTermsResponse.Bucket> histogram = new ArrayList<UniqueTermsResponse.Bucket>(buckets.size());
+        long total = 0;
+        long missing = 0;
+        long other = 0;
+        for (Map.Entry<Long, List<TermsResult>> entry : buckets.entrySet()) {
+            Accumulator bucket = newAccumulator();
+            long bucketTotal = 0;
+            long bucketMissing = 0;
+            long bucketOther = 0;
+            for (TermsResult result : entry.getValue()) {
+                bucket.add(result);
+                bucketTotal += result.getTotalCount();
+                bucketMissing += result.getMissingCount();
+                bucketOther += result.getOtherCount();
+            }
+            cumulative.addAll(bucket);
+            histogram.add(new UniqueTermsResponse.Bucket(entry.getKey(), bucket.count(), cumulative.count(), bucketTotal,
+                    bucketMissing, bucketOther));
+            total += bucketTotal;
+            missing += bucketMissing;
+            other += bucketOther;
+        }
+        return new UniqueTermsResponse.UniqueTerms(name, cumulative.count(), total, missing, other, cumulative.error())
+                .setHistogram(histogram);
+    }
+
+    private Accumulator newAccumulator() {
+        switch (mode) {
+            case HLL:
+                return new SketchAccumulator(precision);
+            case HASH:
+                return new HashAccumulator();
+            case BITMAP:
+                return new BitmapAccumulator();
+            default:
+                return new TermsAccumulator();
+        }
+    }
+
+    /**
+     * Distinct set of one bucket or of all buckets so far, accumulators of the same mode only are merged.
+     */
+    private interface Accumulator {
+
+        void add(TermsResult result);
+
+        void addAll(Accumulator other);
+
+        long count();
+
+        double error();
+    }
+
+    private static class TermsAccumulator implements Accumulator {
+
+        private final Set<BytesRef> terms = new HashSet<BytesRef>();
+
+        @Override
+        public void add(TermsResult result) {
+            TermsBlock.TermsIterator iterator = result.getTerms().iterator();
+            BytesRef term;
+            while ((term = iterator.next()) != null) {
+                if (!terms.contains(term)) {
+                    terms.add(BytesRef.deepCopyOf(term));
+                }
+            }
+        }
+
+        @Override
+        public void addAll(Accumulator other) {
+            terms.addAll(((TermsAccumulator) other).terms);
+        }
+
+        @Override
+        public long count() {
+            return terms.size();
+        }
+
+        @Override
+        public double error() {
+            return 0;
+        }
+    }
+
+    private static class HashAccumulator implements Accumulator {
+
+        private final LongOpenHashSet hashes = new LongOpenHashSet();
+
+        @Override
+        public void add(TermsResult result) {
+            for (long hash : result.getHashes()) {
+                hashes.add(hash);
+            }
+        }
+
+        @Override
+        public void addAll(Accumulator other) {
+            hashes.addAll(((HashAccumulator) other).hashes);
+        }
+
+        @Override
+        public long count() {
+            return hashes.size();
+        }
+
+        @Override
+        public double error() {
+            return 0;
+        }
+    }
+
+    private static class BitmapAccumulator implements Accumulator {
+
+        private RoaringBitmap bitmap = RoaringBitmap.EMPTY;
+        // or-ed all at once when count is needed
+        private final List<RoaringBitmap> added = new ArrayList<RoaringBitmap>();
+
+        @Override
+        public void add(TermsResult result) {
+            added.add(result.getBitmap());
+        }
+
+        @Override
+        public void addAll(Accumulator other) {
+            added.add(((BitmapAccumulator) other).union());
+        }
+
+        @Override
+        public long count() {
+            return union().cardinality();
+        }
+
+        @Override
+        public double error() {
+            return 0;
+        }
+
+        private RoaringBitmap union() {
+            if (!added.isEmpty()) {
+                added.add(bitmap);
+                bitmap = RoaringBitmap.or(added);
+                added.clear();
+            }
+            return bitmap;
+        }
+    }
+
+    private static class SketchAccumulator implements Accumulator {
+
+        private final HyperLogLog sketch;
+
+        SketchAccumulator(int precision) {
+            sketch = new HyperLogLog(precision);
+        }
+
+        @Override
+        public void add(TermsResult result) {
+            sketch.merge(result.getSketch());
+        }
+
+        @Override
+        public void addAll(Accumulator other) {
+            sketch.merge(((SketchAccumulator) other).sketch);
+        }
+
+        @Override
+        public long count() {
+            return sketch.cardinality();
+        }
+
+        @Override
+        public double error() {
+            return sketch.relativeError();
+        }
+    }
+}
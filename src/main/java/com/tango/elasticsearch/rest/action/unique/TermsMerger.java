@@ -0,0 +1,88 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.elasticsearch.common.util.concurrent.jsr166y.ForkJoinPool;
+import org.elasticsearch.common.util.concurrent.jsr166y.RecursiveTask;
+
+/**
+ * Merges results of many indices by tree reduction on a fork-join pool: groups of up to threshold results are merged
+ * in parallel (k-way union of sorted terms or hashes, register max of sketches, or of bitmap containers), then merged
+ * pairwise up the tree.
+ * <p/>
+ * Requests with few results are merged on the calling thread.
+ */
+public class TermsMerger {
+
+    public static final int DEFAULT_THRESHOLD = 16;
+
+    private final ForkJoinPool pool;
+    private final int threshold;
+
+    /**
+     * @param pool pool to merge on, <code>null</code> to always merge on the calling thread
+     * @param threshold max number of results merged by one task
+     */
+    public TermsMerger(ForkJoinPool pool, int threshold) {
+        this.pool = pool;
+        this.threshold = Math.max(2, threshold);
+    }
+
+    /**
+     * @return merged result, <code>null</code> if there are no results
+     */
+    public TermsResult merge(List<TermsResult> results) {
+        if (results.isEmpty()) {
+            return null;
+        }
+        if (pool == null || results.size() <= threshold) {
+            return TermsResult.merge(results);
+        }
+        return pool.invoke(new MergeTask(results, 0, results.size(), threshold));
+    }
+
+    private static class MergeTask extends RecursiveTask<TermsResult> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<TermsResult> results;
+        private final int from;
+        private final int to;
+        private final int threshold;
+
+        private MergeTask(List<TermsResult> results, int from, int to, int threshold) {
+            this.results = results;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected TermsResult compute() {
+            if (to - from <= threshold) {
+                return TermsResult.merge(results.subList(from, to));
+            }
+            int middle = (from + to) >>> 1;
+            MergeTask left = new MergeTask(results, from, middle, threshold);
+            left.fork();
+            TermsResult right = new MergeTask(results, middle, to, threshold).compute();
+            return TermsResult.merge(Arrays.asList(left.join(), right));
+        }
+    }
+}
@@ -15,28 +15,123 @@
  */
 package com.tango.elasticsearch.rest.action.unique;
 
-import java.io.Serializable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
 import java.util.List;
 
+import com.tango.elasticsearch.rest.action.unique.codec.RoaringBitmap;
+import com.tango.elasticsearch.rest.action.unique.codec.TermDictionary;
+import com.tango.elasticsearch.rest.action.unique.codec.TermHashes;
+import com.tango.elasticsearch.rest.action.unique.codec.TermsBlock;
+import com.tango.elasticsearch.rest.action.unique.sketch.HyperLogLog;
+
 /**
+ * Per index unique terms result, this is what is stored in cache.
+ * <p/>
+ * Terms are kept in compact {@link TermsBlock} form both on heap and in serialized form.
+ *
  * @author Nina Safonova (nsafonova)
  */
-public class TermsResult implements Serializable {
+public class TermsResult implements Externalizable {
+
+    private static final long serialVersionUID = 2L;
+
+    private static final byte FORMAT_VERSION = 1;
+    private static final byte TERMS = 0;
+    private static final byte SKETCH = 1;
+    private static final byte HASHES = 2;
+    private static final byte BITMAP = 3;
+
+    private TermsBlock terms;
+    private HyperLogLog sketch;
+    private long[] hashes;
+    private RoaringBitmap bitmap;
+    private long total;
+    private long missing;
+    private long other;
 
-    private final List<String> uniqueTerms;
-    private final long total;
-    private final long missing;
-    private final long other;
+    /**
+     * For deserialization only
+     */
+    public TermsResult() {
+    }
 
     public TermsResult(List<String> uniqueTerms, long total, long missing, long other) {
-        this.uniqueTerms = uniqueTerms;
+        this(TermsBlock.fromStrings(uniqueTerms), null, null, null, total, missing, other);
+    }
+
+    public TermsResult(TermsBlock terms, long total, long missing, long other) {
+        this(terms, null, null, null, total, missing, other);
+    }
+
+    public TermsResult(HyperLogLog sketch, long total, long missing, long other) {
+        this(null, sketch, null, null, total, missing, other);
+    }
+
+    /**
+     * @param hashes sorted unique term hashes, see {@link TermHashes}
+     */
+    public TermsResult(long[] hashes, long total, long missing, long other) {
+        this(null, null, hashes, null, total, missing, other);
+    }
+
+    /**
+     * @param bitmap ids of unique terms, see {@link TermDictionary}
+     */
+    public TermsResult(RoaringBitmap bitmap, long total, long missing, long other) {
+        this(null, null, null, bitmap, total, missing, other);
+    }
+
+    private TermsResult(TermsBlock terms, HyperLogLog sketch, long[] hashes, RoaringBitmap bitmap, long total,
+            long missing, long other) {
+        this.terms = terms;
+        this.sketch = sketch;
+        this.hashes = hashes;
+        this.bitmap = bitmap;
         this.total = total;
         this.missing = missing;
         this.other = other;
     }
 
+    /**
+     * @return unique terms decoded from {@link #getTerms()}, <code>null</code> if result is not {@link UniqueTermsMode#EXACT}
+     */
     public List<String> getUniqueTerms() {
-        return uniqueTerms;
+        return terms != null ? terms.toList() : null;
+    }
+
+    /**
+     * @return encoded unique terms, <code>null</code> if result is not {@link UniqueTermsMode#EXACT}
+     */
+    public TermsBlock getTerms() {
+        return terms;
+    }
+
+    /**
+     * @return distinct count sketch, <code>null</code> if result is not {@link UniqueTermsMode#HLL}
+     */
+    public HyperLogLog getSketch() {
+        return sketch;
+    }
+
+    /**
+     * @return sorted unique term hashes, <code>null</code> if result is not {@link UniqueTermsMode#HASH}
+     */
+    public long[] getHashes() {
+        return hashes;
+    }
+
+    /**
+     * @return ids of unique terms, <code>null</code> if result is not {@link UniqueTermsMode#BITMAP}
+     */
+    public RoaringBitmap getBitmap() {
+        return bitmap;
     }
 
     public long getTotalCount() {
@@ -50,4 +145,117 @@ public class TermsResult implements Serializable {
     public long getOtherCount() {
         return other;
     }
+
+    /**
+     * @return approximate size of encoded result in bytes
+     */
+    public long sizeInBytes() {
+        long size = 32;
+        if (sketch != null) {
+            size += 1 << sketch.getPrecision();
+        } else if (hashes != null) {
+            size += 8L * hashes.length;
+        } else if (bitmap != null) {
+            size += bitmap.sizeInBytes();
+        } else {
+            size += terms.sizeInBytes();
+        }
+        return size;
+    }
+
+    /**
+     * Merges results of the same kind, counters are summed up
+     */
+    public static TermsResult merge(List<TermsResult> results) {
+        long total = 0;
+        long missing = 0;
+        long other = 0;
+        for (TermsResult result : results) {
+            total += result.total;
+            missing += result.missing;
+            other += result.other;
+        }
+        TermsResult first = results.get(0);
+        if (first.sketch != null) {
+            HyperLogLog sketch = new HyperLogLog(first.sketch.getPrecision());
+            for (TermsResult result : results) {
+                sketch.merge(result.sketch);
+            }
+            return new TermsResult(sketch, total, missing, other);
+        } else if (first.hashes != null) {
+            List<long[]> hashes = new ArrayList<long[]>(results.size());
+            for (TermsResult result : results) {
+                hashes.add(result.hashes);
+            }
+            return new TermsResult(TermHashes.union(hashes), total, missing, other);
+        } else if (first.bitmap != null) {
+            List<RoaringBitmap> bitmaps = new ArrayList<RoaringBitmap>(results.size());
+            for (TermsResult result : results) {
+                bitmaps.add(result.bitmap);
+            }
+            return new TermsResult(RoaringBitmap.or(bitmaps), total, missing, other);
+        } else {
+            List<TermsBlock> blocks = new ArrayList<TermsBlock>(results.size());
+            for (TermsResult result : results) {
+                blocks.add(result.terms);
+            }
+            return new TermsResult(TermsBlock.union(blocks), total, missing, other);
+        }
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        writeTo(out);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        read(in);
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeByte(FORMAT_VERSION);
+        out.writeLong(total);
+        out.writeLong(missing);
+        out.writeLong(other);
+        if (sketch != null) {
+            out.writeByte(SKETCH);
+            sketch.writeTo(out);
+        } else if (hashes != null) {
+            out.writeByte(HASHES);
+            TermHashes.writeTo(hashes, out);
+        } else if (bitmap != null) {
+            out.writeByte(BITMAP);
+            bitmap.writeTo(out);
+        } else {
+            out.writeByte(TERMS);
+            terms.writeTo(out);
+        }
+    }
+
+    public static TermsResult readFrom(DataInput in) throws IOException {
+        TermsResult result = new TermsResult();
+        result.read(in);
+        return result;
+    }
+
+    private void read(DataInput in) throws IOException {
+        byte version = in.readByte();
+        if (version != FORMAT_VERSION) {
+            throw new StreamCorruptedException("Unsupported terms result format version: " + version);
+        }
+        total = in.readLong();
+        missing = in.readLong();
+        other = in.readLong();
+        byte type = in.readByte();
+        if (type == SKETCH) {
+            sketch = HyperLogLog.readFrom(in);
+        } else if (type == HASHES) {
+            hashes = TermHashes.readFrom(in);
+        } else if (type == BITMAP) {
+            bitmap = RoaringBitmap.readFrom(in);
+        } else {
+            terms = TermsBlock.readFrom(in);
+        }
+    }
 }
@@ -0,0 +1,56 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique;
+
+import static org.elasticsearch.rest.RestStatus.OK;
+import static org.elasticsearch.rest.action.support.RestXContentBuilder.restContentBuilder;
+
+import java.io.IOException;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestHandler;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.XContentRestResponse;
+
+import com.tango.elasticsearch.rest.action.unique.stats.UniqueTermsStats;
+
+/**
+ * Returns unique terms statistics of the node.
+ */
+public class UniqueStatsHandler implements RestHandler {
+
+    private static final ESLogger logger = Loggers.getLogger(UniqueStatsHandler.class);
+
+    private final UniqueTermsStats stats;
+
+    public UniqueStatsHandler(UniqueTermsStats stats) {
+        this.stats = stats;
+    }
+
+    @Override
+    public void handleRequest(RestRequest request, RestChannel channel) {
+        try {
+            XContentBuilder builder = restContentBuilder(request).startObject();
+            stats.toXContent(builder, request);
+            channel.sendResponse(new XContentRestResponse(request, OK, builder.endObject()));
+        } catch (IOException e) {
+            logger.error("Failed to send response", e);
+        }
+    }
+}
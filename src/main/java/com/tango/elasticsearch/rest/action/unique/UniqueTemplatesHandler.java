@@ -0,0 +1,112 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique;
+
+import static org.elasticsearch.rest.RestStatus.BAD_REQUEST;
+import static org.elasticsearch.rest.RestStatus.NOT_FOUND;
+import static org.elasticsearch.rest.RestStatus.OK;
+import static org.elasticsearch.rest.action.support.RestXContentBuilder.restContentBuilder;
+
+import java.io.IOException;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestHandler;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.XContentRestResponse;
+
+import com.tango.elasticsearch.rest.action.unique.materialize.Materializer;
+import com.tango.elasticsearch.rest.action.unique.materialize.QueryTemplate;
+import com.tango.elasticsearch.rest.action.unique.sketch.HyperLogLog;
+
+/**
+ * Registers, removes and lists query templates materialized in background.
+ */
+public class UniqueTemplatesHandler implements RestHandler {
+
+    private static final ESLogger logger = Loggers.getLogger(UniqueTemplatesHandler.class);
+
+    private final UniqueTermsAction action;
+    private final Materializer materializer;
+
+    public UniqueTemplatesHandler(UniqueTermsAction action, Materializer materializer) {
+        this.action = action;
+        this.materializer = materializer;
+    }
+
+    @Override
+    public void handleRequest(RestRequest request, RestChannel channel) {
+        try {
+            XContentBuilder builder = restContentBuilder(request).startObject();
+            switch (request.method()) {
+                case GET:
+                    builder.startObject("templates");
+                    for (QueryTemplate template : materializer.getTemplates()) {
+                        template.toXContent(builder, request);
+                    }
+                    builder.endObject();
+                    materializer.toXContent(builder, request);
+                    break;
+                case DELETE:
+                    if (!materializer.remove(request.param("name"))) {
+                        channel.sendResponse(new XContentRestResponse(request, NOT_FOUND,
+                                builder.field("error", "No template with name " + request.param("name")).endObject()));
+                        return;
+                    }
+                    builder.field("acknowledged", true);
+                    break;
+                default:
+                    QueryTemplate template;
+                    try {
+                        template = parseTemplate(request);
+                    } catch (Exception e) {
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("failed to parse template", e);
+                        }
+                        channel.sendResponse(new XContentRestResponse(request, BAD_REQUEST,
+                                builder.field("error", e.getMessage()).endObject()));
+                        return;
+                    }
+                    materializer.register(template);
+                    builder.field("acknowledged", true);
+            }
+            channel.sendResponse(new XContentRestResponse(request, OK, builder.endObject()));
+        } catch (IOException e) {
+            logger.error("Failed to send response", e);
+        }
+    }
+
+    private QueryTemplate parseTemplate(RestRequest request) throws IOException {
+        if (!request.hasContent()) {
+            throw new IllegalArgumentException("Empty template source");
+        }
+        String indexPrefix = request.param("index");
+        if (indexPrefix.indexOf(',') >= 0) {
+            throw new IllegalArgumentException("Template has to be registered for exactly one index prefix");
+        }
+        UniqueTermsMode mode = UniqueTermsMode.fromString(request.param("mode"));
+        int precision = request.paramAsInt("precision", HyperLogLog.DEFAULT_PRECISION);
+        HyperLogLog.checkPrecision(precision);
+        UniqueTermsAction.RequestParamsInfo info = action.getRequestInfo(request.content());
+        if (info == null) {
+            throw new IllegalArgumentException("Template has to contain @timestamp range with from and to");
+        }
+        return new QueryTemplate(request.param("name"), indexPrefix, info.getRequestTemplate(), info.getRequestCacheKey(),
+                info.getFacetCacheKeys(), info.getFacetFields(), mode, precision);
+    }
+}
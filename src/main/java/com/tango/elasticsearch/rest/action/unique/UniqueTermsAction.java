@@ -15,37 +15,60 @@
  */
 package com.tango.elasticsearch.rest.action.unique;
 
+import static org.elasticsearch.rest.RestRequest.Method.DELETE;
 import static org.elasticsearch.rest.RestRequest.Method.GET;
 import static org.elasticsearch.rest.RestRequest.Method.POST;
+import static org.elasticsearch.rest.RestRequest.Method.PUT;
 import static org.elasticsearch.rest.RestStatus.BAD_REQUEST;
 import static org.elasticsearch.rest.RestStatus.OK;
 import static org.elasticsearch.rest.action.support.RestXContentBuilder.restContentBuilder;
 
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicReference;
 
 import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.config.CacheConfiguration;
 
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.ElasticSearchIllegalArgumentException;
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.common.settings.Settings;
-import org.elasticsearch.common.util.concurrent.AtomicArray;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.util.concurrent.jsr166y.ForkJoinPool;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.rest.BaseRestHandler;
 import org.elasticsearch.rest.RestChannel;
@@ -57,41 +80,341 @@ import org.elasticsearch.rest.action.search.RestSearchAction;
 import org.elasticsearch.search.facet.Facet;
 import org.elasticsearch.search.facet.Facets;
 import org.elasticsearch.search.facet.terms.TermsFacet;
-import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.tango.elasticsearch.rest.action.unique.cache.AdmissionCacheWrapper;
 import com.tango.elasticsearch.rest.action.unique.cache.CacheWrapper;
+import com.tango.elasticsearch.rest.action.unique.cache.CountingCacheWrapper;
 import com.tango.elasticsearch.rest.action.unique.cache.EhcacheWrapper;
+import com.tango.elasticsearch.rest.action.unique.cache.ExpiringCache;
+import com.tango.elasticsearch.rest.action.unique.cache.IndexCacheWrapper;
+import com.tango.elasticsearch.rest.action.unique.cache.MappedCacheWrapper;
+import com.tango.elasticsearch.rest.action.unique.cache.ValueCodec;
+import com.tango.elasticsearch.rest.action.unique.codec.TermDictionaries;
+import com.tango.elasticsearch.rest.action.unique.codec.TermDictionary;
+import com.tango.elasticsearch.rest.action.unique.codec.TermHashes;
+import com.tango.elasticsearch.rest.action.unique.codec.TermsBlock;
+import com.tango.elasticsearch.rest.action.unique.materialize.Materializer;
+import com.tango.elasticsearch.rest.action.unique.materialize.QueryTemplate;
+import com.tango.elasticsearch.rest.action.unique.search.FanOutScheduler;
+import com.tango.elasticsearch.rest.action.unique.search.FanOutTask;
+import com.tango.elasticsearch.rest.action.unique.search.FanOutTimings;
+import com.tango.elasticsearch.rest.action.unique.search.IndexSizes;
+import com.tango.elasticsearch.rest.action.unique.search.SingleFlight;
+import com.tango.elasticsearch.rest.action.unique.shard.DistinctTermsAction;
+import com.tango.elasticsearch.rest.action.unique.shard.DistinctTermsRequest;
+import com.tango.elasticsearch.rest.action.unique.shard.DistinctTermsResponse;
+import com.tango.elasticsearch.rest.action.unique.sketch.HyperLogLog;
+import com.tango.elasticsearch.rest.action.unique.stats.UniqueTermsStats;
+import com.tango.elasticsearch.rest.action.unique.util.CanonicalJson;
 
 public class UniqueTermsAction extends BaseRestHandler {
 
-    public static final DateTimeFormatter ES_INDEX_DATE_FORMAT = DateTimeFormat.forPattern("yyyy.MM.dd-HH").withZone(
+    public static final DateTimeFormatter ES_INDEX_DAY_FORMAT = DateTimeFormat.forPattern("yyyy.MM.dd").withZone(
             DateTimeZone.forTimeZone(TimeZone.getTimeZone("Etc/UTC")));
-    public static final char INDEX_NAME_PREFIX_DELIMITER = '-';
     public static final String TARGET_FACET_NAME = "terms";
+    public static final char CACHE_KEY_DELIMITER = '|';
+    public static final String CACHE_TYPE_PARAM = "cacheType";
+    public static final String EHCACHE_CACHE_TYPE = "ehcache";
+    public static final String MAPPED_CACHE_TYPE = "mapped";
+    public static final String INDEX_CACHE_TYPE = "index";
+    public static final String MAPPED_CACHE_PATH_PARAM = "mappedCachePath";
+    public static final String MAPPED_CACHE_MAX_SIZE_PARAM = "mappedCacheMaxSize";
+    public static final String MAPPED_CACHE_SEGMENT_SIZE_PARAM = "mappedCacheSegmentSize";
+    public static final String MAPPED_CACHE_MAX_ENTRIES_PARAM = "mappedCacheMaxEntries";
+    public static final String DEFAULT_MAPPED_CACHE_DIRECTORY = "unique-terms-cache";
+    public static final ByteSizeValue DEFAULT_MAPPED_CACHE_MAX_SIZE = new ByteSizeValue(10, ByteSizeUnit.GB);
+    public static final ByteSizeValue DEFAULT_MAPPED_CACHE_SEGMENT_SIZE = new ByteSizeValue(256, ByteSizeUnit.MB);
+    public static final int DEFAULT_MAPPED_CACHE_MAX_ENTRIES = 1000000;
+    public static final String INDEX_CACHE_NAME_PARAM = "indexCacheName";
+    public static final String INDEX_CACHE_SHARDS_PARAM = "indexCacheShards";
+    public static final String INDEX_CACHE_REPLICAS_PARAM = "indexCacheReplicas";
+    public static final String INDEX_CACHE_TTL_PARAM = "indexCacheTtl";
+    public static final String INDEX_CACHE_TIMEOUT_PARAM = "indexCacheTimeout";
+    public static final String INDEX_CACHE_NEAR_SIZE_PARAM = "indexCacheNearSize";
+    public static final String DEFAULT_INDEX_CACHE_NAME = ".unique_cache";
+    public static final int DEFAULT_INDEX_CACHE_SHARDS = 2;
+    public static final int DEFAULT_INDEX_CACHE_REPLICAS = 1;
+    public static final TimeValue DEFAULT_INDEX_CACHE_TTL = TimeValue.timeValueHours(24 * 30);
+    public static final TimeValue DEFAULT_INDEX_CACHE_TIMEOUT = TimeValue.timeValueSeconds(5);
+    public static final ByteSizeValue DEFAULT_INDEX_CACHE_NEAR_SIZE = new ByteSizeValue(64, ByteSizeUnit.MB);
+    public static final String ADMISSION_ENABLED_PARAM = "admissionEnabled";
+    public static final String ADMISSION_MAX_SIZE_PARAM = "admissionMaxSize";
+    public static final String ADMISSION_MAX_ENTRIES_PARAM = "admissionMaxEntries";
     public static final String EHCACHE_CONFIG_PATH_PARAM = "ehcacheConfigPath";
     public static final String EHCACHE_CACHE_NAME_PARAM = "ehcacheCacheName";
     public static final String EHCAHCE_DEFAULT_CACHE_NAME = "searchResponses";
+    public static final String MAX_CONCURRENT_SEARCHES_PARAM = "maxConcurrentSearches";
+    public static final String MAX_CONCURRENT_SEARCHES_PER_NODE_PARAM = "maxConcurrentSearchesPerNode";
+    public static final String MAX_QUEUED_SEARCHES_PARAM = "maxQueuedSearches";
+    public static final int DEFAULT_MAX_CONCURRENT_SEARCHES = 32;
+    public static final int DEFAULT_MAX_CONCURRENT_SEARCHES_PER_NODE = 8;
+    public static final int DEFAULT_MAX_QUEUED_SEARCHES = 10000;
+    public static final String INDEX_SIZES_REFRESH_SECONDS_PARAM = "indexSizesRefreshSeconds";
+    public static final int DEFAULT_INDEX_SIZES_REFRESH_SECONDS = 60;
+    public static final String CACHE_LOOKUP_THREADS_PARAM = "cacheLookupThreads";
+    public static final String CACHE_LOOKUP_QUEUE_SIZE_PARAM = "cacheLookupQueueSize";
+    public static final int DEFAULT_CACHE_LOOKUP_THREADS = 4;
+    public static final int DEFAULT_CACHE_LOOKUP_QUEUE_SIZE = 1000;
+    public static final String MERGE_PARALLELISM_PARAM = "mergeParallelism";
+    public static final String MERGE_THRESHOLD_PARAM = "mergeThreshold";
+    public static final String ROLLUPS_ENABLED_PARAM = "rollupsEnabled";
+    public static final String SLICE_MINUTES_PARAM = "sliceMinutes";
+    public static final int DEFAULT_SLICE_MINUTES = 15;
+    public static final String PARSED_TEMPLATES_CACHE_SIZE_PARAM = "parsedTemplatesCacheSize";
+    public static final int DEFAULT_PARSED_TEMPLATES_CACHE_SIZE = 1000;
+    public static final String MATERIALIZE_INTERVAL_SECONDS_PARAM = "materializeIntervalSeconds";
+    public static final String MATERIALIZE_DELAY_MINUTES_PARAM = "materializeDelayMinutes";
+    public static final String MATERIALIZE_LOOKBACK_HOURS_PARAM = "materializeLookbackHours";
+    public static final int DEFAULT_MATERIALIZE_INTERVAL_SECONDS = 60;
+    public static final int DEFAULT_MATERIALIZE_DELAY_MINUTES = 5;
+    public static final int DEFAULT_MATERIALIZE_LOOKBACK_HOURS = 24;
+    public static final String COLLECTOR_PARAM = "collector";
+    public static final String SHARD_COLLECTOR = "shard";
+    public static final String FACET_COLLECTOR = "facet";
+    public static final String HISTOGRAM_PARAM = "histogram";
+    public static final String COMPLETION_MAX_SIZE_PARAM = "completionMaxSize";
+    public static final int DEFAULT_COMPLETION_MAX_SIZE = 10000000;
+    public static final String INCREMENTAL_ENABLED_PARAM = "incrementalEnabled";
+    public static final String INCREMENTAL_MARGIN_SECONDS_PARAM = "incrementalMarginSeconds";
+    public static final int DEFAULT_INCREMENTAL_MARGIN_SECONDS = 60;
+    public static final String DICTIONARY_PATH_PARAM = "dictionaryPath";
+    public static final String DEFAULT_DICTIONARY_DIRECTORY = "unique-terms-dictionary";
+    public static final String COMPARE_FROM_PARAM = "compareFrom";
+    public static final String COMPARE_TO_PARAM = "compareTo";
+    public static final String NOW_GRANULARITY_PARAM = "nowGranularity";
+    public static final String RESPONSE_CACHE_TTL_PARAM = "responseCacheTtl";
+    public static final String RESPONSE_CACHE_MAX_ENTRIES_PARAM = "responseCacheMaxEntries";
+    public static final int DEFAULT_RESPONSE_CACHE_MAX_ENTRIES = 1000;
+
+    private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final ValueCodec<TermsResult> TERMS_RESULT_CODEC = new ValueCodec<TermsResult>() {
+        @Override
+        public void write(TermsResult value, DataOutput out) throws IOException {
+            value.writeTo(out);
+        }
+
+        @Override
+        public TermsResult read(DataInput in) throws IOException {
+            return TermsResult.readFrom(in);
+        }
+    };
 
     private CacheWrapper<String, TermsResult> cache;
+    // innermost cache, closed with the handler
+    private CacheWrapper<String, TermsResult> backend;
+    private FanOutScheduler scheduler;
+    // looks up cached results off the threads handling requests, lookups run inline if null
+    private ExecutorService lookupExecutor;
+    private ResponseAssembler assembler = new ResponseAssembler(new TermsMerger(null, TermsMerger.DEFAULT_THRESHOLD),
+            null);
+    private ClusterService clusterService;
+    // index of cluster wide cache, never searched for terms
+    private String cacheIndex;
+    private Materializer materializer;
+    private final SingleFlight<TermsResult> inFlight = new SingleFlight<TermsResult>();
+    private UniqueTermsStats stats;
+    private RequestTemplateParser templateParser = new RequestTemplateParser(DEFAULT_PARSED_TEMPLATES_CACHE_SIZE);
+    private boolean rollupsEnabled = true;
+    private List<IndexPattern> indexPatterns = Collections.singletonList(new IndexPattern(IndexPattern.DEFAULT_FORMAT,
+            IndexPattern.DEFAULT_DELIMITER, IndexPattern.DEFAULT_SPAN.millis(),
+            TimeUnit.MINUTES.toMillis(DEFAULT_SLICE_MINUTES)));
+    private RangePlanner planner;
+    private String defaultCollector = SHARD_COLLECTOR;
+    private int completionMaxSize = DEFAULT_COMPLETION_MAX_SIZE;
+    private TermDictionaries dictionaries = new TermDictionaries(null);
+    // now is rounded down to multiple of it, so that refreshes of the same dashboard ask for the same range
+    private long nowGranularityMillis;
+    // responses by query and snapped range, null if disabled
+    private ExpiringCache<String, UniqueTermsResponse> responseCache;
 
     protected UniqueTermsAction() {
         super(ImmutableSettings.EMPTY, null);
+        stats = new UniqueTermsStats(null, null, null, inFlight);
+        planner = new RangePlanner(indexPatterns, stats, true,
+                TimeUnit.SECONDS.toMillis(DEFAULT_INCREMENTAL_MARGIN_SECONDS));
     }
 
     @Inject
-    public UniqueTermsAction(Settings settings, Client client, RestController controller) {
+    public UniqueTermsAction(Settings settings, Client client, RestController controller,
+            ClusterService clusterService) {
         super(settings, client);
+        this.clusterService = clusterService;
+        templateParser = new RequestTemplateParser(
+                componentSettings.getAsInt(PARSED_TEMPLATES_CACHE_SIZE_PARAM, DEFAULT_PARSED_TEMPLATES_CACHE_SIZE));
+        backend = createCache(settings);
+        AdmissionCacheWrapper<String, TermsResult> admission = createAdmission(backend);
+        CountingCacheWrapper<String, TermsResult> countingCache = new CountingCacheWrapper<String, TermsResult>(
+                admission != null ? admission : backend);
+        cache = countingCache;
+        scheduler = new FanOutScheduler(clusterService, new IndexSizes(client, TimeUnit.SECONDS.toMillis(
+                componentSettings.getAsInt(INDEX_SIZES_REFRESH_SECONDS_PARAM, DEFAULT_INDEX_SIZES_REFRESH_SECONDS))),
+                componentSettings.getAsInt(MAX_CONCURRENT_SEARCHES_PARAM, DEFAULT_MAX_CONCURRENT_SEARCHES),
+                componentSettings.getAsInt(MAX_CONCURRENT_SEARCHES_PER_NODE_PARAM,
+                        DEFAULT_MAX_CONCURRENT_SEARCHES_PER_NODE),
+                componentSettings.getAsInt(MAX_QUEUED_SEARCHES_PARAM, DEFAULT_MAX_QUEUED_SEARCHES));
+        lookupExecutor = EsExecutors.newFixed(
+                componentSettings.getAsInt(CACHE_LOOKUP_THREADS_PARAM, DEFAULT_CACHE_LOOKUP_THREADS),
+                componentSettings.getAsInt(CACHE_LOOKUP_QUEUE_SIZE_PARAM, DEFAULT_CACHE_LOOKUP_QUEUE_SIZE),
+                EsExecutors.daemonThreadFactory(settings, "unique_cache_lookup"));
+        int mergeParallelism = componentSettings.getAsInt(MERGE_PARALLELISM_PARAM,
+                EsExecutors.boundedNumberOfProcessors(settings));
+        TermsMerger merger = new TermsMerger(mergeParallelism > 1 ? new ForkJoinPool(mergeParallelism) : null,
+                componentSettings.getAsInt(MERGE_THRESHOLD_PARAM, TermsMerger.DEFAULT_THRESHOLD));
+        assembler = new ResponseAssembler(merger, cache);
+        stats = new UniqueTermsStats(countingCache, admission, scheduler, inFlight);
+        rollupsEnabled = componentSettings.getAsBoolean(ROLLUPS_ENABLED_PARAM, true);
+        indexPatterns = IndexPattern.fromSettings(componentSettings,
+                TimeUnit.MINUTES.toMillis(componentSettings.getAsInt(SLICE_MINUTES_PARAM, DEFAULT_SLICE_MINUTES)));
+        defaultCollector = componentSettings.get(COLLECTOR_PARAM, SHARD_COLLECTOR);
+        // fails on unknown collector before node starts serving requests
+        isShardCollector(defaultCollector);
+        completionMaxSize = componentSettings.getAsInt(COMPLETION_MAX_SIZE_PARAM, DEFAULT_COMPLETION_MAX_SIZE);
+        boolean incrementalEnabled = componentSettings.getAsBoolean(INCREMENTAL_ENABLED_PARAM, true);
+        int incrementalMargin = componentSettings.getAsInt(INCREMENTAL_MARGIN_SECONDS_PARAM,
+                DEFAULT_INCREMENTAL_MARGIN_SECONDS);
+        planner = new RangePlanner(indexPatterns, stats, incrementalEnabled,
+                TimeUnit.SECONDS.toMillis(incrementalMargin));
+        dictionaries = new TermDictionaries(new File(componentSettings.get(DICTIONARY_PATH_PARAM,
+                new File(settings.get("path.home", "."), DEFAULT_DICTIONARY_DIRECTORY).getPath())));
+        nowGranularityMillis = componentSettings.getAsTime(NOW_GRANULARITY_PARAM, TimeValue.timeValueMillis(0))
+                .millis();
+        long responseCacheTtl = componentSettings.getAsTime(RESPONSE_CACHE_TTL_PARAM, TimeValue.timeValueMillis(0))
+                .millis();
+        if (responseCacheTtl > 0) {
+            responseCache = new ExpiringCache<String, UniqueTermsResponse>(componentSettings.getAsInt(
+                    RESPONSE_CACHE_MAX_ENTRIES_PARAM, DEFAULT_RESPONSE_CACHE_MAX_ENTRIES), responseCacheTtl);
+        }
+        controller.registerHandler(GET, "/{index}/_unique", this);
+        controller.registerHandler(POST, "/{index}/_unique", this);
+        materializer = new Materializer(new Materializer.Target() {
+            @Override
+            public boolean needsMaterialization(QueryTemplate template, long hourStart) {
+                RangePlanner.IndexTime indexTime = getClosedIndex(template, hourStart);
+                if (indexTime == null) {
+                    return false;
+                }
+                String index = indexTime.index;
+                for (String facet : template.getFacetCacheKeys().keySet()) {
+                    if (getCachedValue(getHourCacheKey(template, index, facet)) == null) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public void materialize(QueryTemplate template, long hourStart, ActionListener<TermsResult> listener) {
+                UniqueTermsAction.this.materialize(template, hourStart, listener);
+            }
+        }, TimeUnit.SECONDS.toMillis(componentSettings.getAsInt(MATERIALIZE_INTERVAL_SECONDS_PARAM,
+                DEFAULT_MATERIALIZE_INTERVAL_SECONDS)),
+                TimeUnit.MINUTES.toMillis(componentSettings.getAsInt(MATERIALIZE_DELAY_MINUTES_PARAM,
+                        DEFAULT_MATERIALIZE_DELAY_MINUTES)),
+                componentSettings.getAsInt(MATERIALIZE_LOOKBACK_HOURS_PARAM, DEFAULT_MATERIALIZE_LOOKBACK_HOURS));
+        UniqueTemplatesHandler templatesHandler = new UniqueTemplatesHandler(this, materializer);
+        controller.registerHandler(PUT, "/{index}/_unique/_template/{name}", templatesHandler);
+        controller.registerHandler(POST, "/{index}/_unique/_template/{name}", templatesHandler);
+        controller.registerHandler(DELETE, "/_unique/_template/{name}", templatesHandler);
+        controller.registerHandler(GET, "/_unique/_template", templatesHandler);
+        controller.registerHandler(GET, "/_unique/_stats", new UniqueStatsHandler(stats));
+        materializer.start();
+    }
+
+    private CacheWrapper<String, TermsResult> createCache(Settings settings) {
+        String cacheType = componentSettings.get(CACHE_TYPE_PARAM, EHCACHE_CACHE_TYPE);
+        if (MAPPED_CACHE_TYPE.equals(cacheType)) {
+            File path = new File(componentSettings.get(MAPPED_CACHE_PATH_PARAM,
+                    new File(settings.get("path.home", "."), DEFAULT_MAPPED_CACHE_DIRECTORY).getPath()));
+            long segmentSize = componentSettings.getAsBytesSize(MAPPED_CACHE_SEGMENT_SIZE_PARAM,
+                    DEFAULT_MAPPED_CACHE_SEGMENT_SIZE).bytes();
+            // segments are mapped as one buffer each
+            if (segmentSize > Integer.MAX_VALUE) {
+                throw new ElasticSearchIllegalArgumentException(MAPPED_CACHE_SEGMENT_SIZE_PARAM + " can't exceed "
+                        + new ByteSizeValue(Integer.MAX_VALUE) + ", got " + new ByteSizeValue(segmentSize));
+            }
+            try {
+                return new MappedCacheWrapper<TermsResult>(path, TERMS_RESULT_CODEC,
+                        componentSettings.getAsBytesSize(MAPPED_CACHE_MAX_SIZE_PARAM, DEFAULT_MAPPED_CACHE_MAX_SIZE)
+                                .bytes(),
+                        (int) segmentSize,
+                        componentSettings.getAsInt(MAPPED_CACHE_MAX_ENTRIES_PARAM, DEFAULT_MAPPED_CACHE_MAX_ENTRIES));
+            } catch (IOException e) {
+                throw new ElasticSearchException("Failed to open unique terms cache in " + path, e);
+            }
+        } else if (INDEX_CACHE_TYPE.equals(cacheType)) {
+            cacheIndex = componentSettings.get(INDEX_CACHE_NAME_PARAM, DEFAULT_INDEX_CACHE_NAME);
+            return new IndexCacheWrapper<TermsResult>(client, cacheIndex, TERMS_RESULT_CODEC,
+                    componentSettings.getAsInt(INDEX_CACHE_SHARDS_PARAM, DEFAULT_INDEX_CACHE_SHARDS),
+                    componentSettings.getAsInt(INDEX_CACHE_REPLICAS_PARAM, DEFAULT_INDEX_CACHE_REPLICAS),
+                    componentSettings.getAsTime(INDEX_CACHE_TTL_PARAM, DEFAULT_INDEX_CACHE_TTL),
+                    componentSettings.getAsTime(INDEX_CACHE_TIMEOUT_PARAM, DEFAULT_INDEX_CACHE_TIMEOUT),
+                    componentSettings.getAsBytesSize(INDEX_CACHE_NEAR_SIZE_PARAM, DEFAULT_INDEX_CACHE_NEAR_SIZE)
+                            .bytes());
+        } else if (!EHCACHE_CACHE_TYPE.equals(cacheType)) {
+            throw new ElasticSearchIllegalArgumentException("Unknown unique terms cache type: " + cacheType);
+        }
         String ehcacheConfigPath = componentSettings.get(EHCACHE_CONFIG_PATH_PARAM);
-        cache = new EhcacheWrapper<String, TermsResult>(
+        return new EhcacheWrapper<String, TermsResult>(
                 componentSettings.get(EHCACHE_CACHE_NAME_PARAM, EHCAHCE_DEFAULT_CACHE_NAME),
                 new CacheManager(ehcacheConfigPath));
-        controller.registerHandler(GET, "/{index}/_unique", this);
-        controller.registerHandler(POST, "/{index}/_unique", this);
+    }
+
+    /**
+     * Stops background work and releases cache and dictionary files, called when node closes.
+     */
+    public void close() {
+        if (materializer != null) {
+            materializer.stop();
+        }
+        if (lookupExecutor != null) {
+            lookupExecutor.shutdown();
+        }
+        try {
+            if (backend instanceof Closeable) {
+                ((Closeable) backend).close();
+            }
+            dictionaries.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close unique terms cache", e);
+        }
+    }
+
+    /**
+     * @return admission policy in front of given cache, <code>null</code> if disabled or cache capacity is unknown
+     */
+    private AdmissionCacheWrapper<String, TermsResult> createAdmission(CacheWrapper<String, TermsResult> backend) {
+        if (!componentSettings.getAsBoolean(ADMISSION_ENABLED_PARAM, true)) {
+            return null;
+        }
+        long maxSize = componentSettings.getAsBytesSize(ADMISSION_MAX_SIZE_PARAM, new ByteSizeValue(0)).bytes();
+        if (maxSize <= 0) {
+            if (backend instanceof MappedCacheWrapper) {
+                maxSize = componentSettings.getAsBytesSize(MAPPED_CACHE_MAX_SIZE_PARAM, DEFAULT_MAPPED_CACHE_MAX_SIZE)
+                        .bytes();
+            } else if (backend instanceof EhcacheWrapper) {
+                Ehcache ehcache = ((EhcacheWrapper<?, ?>) backend).getCache();
+                if (ehcache != null) {
+                    CacheConfiguration configuration = ehcache.getCacheConfiguration();
+                    maxSize = configuration.getMaxBytesLocalDisk() > 0
+                            ? configuration.getMaxBytesLocalDisk() : configuration.getMaxBytesLocalHeap();
+                }
+            }
+        }
+        if (maxSize <= 0) {
+            logger.info("Unique terms cache size is unknown, cache admission is disabled");
+            return null;
+        }
+        AdmissionCacheWrapper.Weigher<TermsResult> weigher = new AdmissionCacheWrapper.Weigher<TermsResult>() {
+            @Override
+            public long weigh(TermsResult value) {
+                return value.sizeInBytes();
+            }
+        };
+        return new AdmissionCacheWrapper<String, TermsResult>(backend, weigher, maxSize,
+                componentSettings.getAsInt(ADMISSION_MAX_ENTRIES_PARAM, DEFAULT_MAPPED_CACHE_MAX_ENTRIES));
     }
 
     @Override
@@ -99,93 +422,490 @@ public class UniqueTermsAction extends BaseRestHandler {
         if (logger.isDebugEnabled()) {
             logger.debug("Received unique terms request");
         }
-        final Map<SearchRequest, String> searchRequestsToCacheKeyMap = new HashMap<SearchRequest, String>();
-        final List<TermsResult> cachedResults = new ArrayList<TermsResult>();
+        final RangePlanner.RangePlan plan = new RangePlanner.RangePlan();
+        final RangePlanner.RangePlan comparePlan;
+        final UniqueTermsMode mode;
+        final int precision;
+        final boolean shardCollector;
+        final long interval;
+        final PreparedRequest prepared;
         try {
-            prepareRequestsForProcessing(request, searchRequestsToCacheKeyMap, cachedResults);
+            mode = UniqueTermsMode.fromString(request.param("mode"));
+            precision = request.paramAsInt("precision", HyperLogLog.DEFAULT_PRECISION);
+            HyperLogLog.checkPrecision(precision);
+            shardCollector = isShardCollector(request.param(COLLECTOR_PARAM, defaultCollector));
+            TimeValue histogram = TimeValue.parseTimeValue(request.param(HISTOGRAM_PARAM), null);
+            interval = histogram != null ? histogram.millis() : 0;
+            comparePlan = request.hasParam(COMPARE_FROM_PARAM) || request.hasParam(COMPARE_TO_PARAM)
+                    ? new RangePlanner.RangePlan() : null;
+            if (comparePlan != null && mode != UniqueTermsMode.BITMAP) {
+                throw new ElasticSearchIllegalArgumentException("Range comparison requires bitmap mode");
+            }
+            if (comparePlan != null && interval > 0) {
+                throw new ElasticSearchIllegalArgumentException("Range comparison can't be combined with histogram");
+            }
+            prepared = prepareRequestsForProcessing(request, mode, precision, interval, plan, comparePlan);
         } catch (Exception e) {
             if (logger.isDebugEnabled()) {
                 logger.debug("failed to parse search request parameters", e);
             }
             try {
                 XContentBuilder builder = restContentBuilder(request);
-                channel.sendResponse(new XContentRestResponse(request, BAD_REQUEST, builder.startObject().field("error", e.getMessage()).endObject()));
+                channel.sendResponse(new XContentRestResponse(request, BAD_REQUEST,
+                        builder.startObject().field("error", e.getMessage()).endObject()));
             } catch (IOException e1) {
                 logger.error("Failed to send failure response", e1);
             }
             return;
         }
-        if (!searchRequestsToCacheKeyMap.isEmpty()) {
-            submitSearchRequests(request, channel, searchRequestsToCacheKeyMap, cachedResults);
-        } else {
+        if (prepared.response != null) {
+            stats.responseCacheHit();
             try {
-                aggregateResults(cachedResults, request, channel);
-            } catch (IOException ex) {
-                processFailure(ex, channel, request);
+                sendResponse(prepared.response, new FanOutTimings(), request, channel);
+            } catch (Exception e) {
+                processFailure(e, channel, request);
+            }
+            return;
+        }
+        final PendingRequest pending = new PendingRequest(request, channel, mode, precision, prepared.dictionaries,
+                interval, isShardCollected(shardCollector, prepared.template), plan.getResults(),
+                comparePlan != null ? comparePlan.getResults() : null, prepared.responseKey);
+        final List<List<CacheLookup>> lookups = new ArrayList<List<CacheLookup>>(2);
+        // searches not depending on cache start right away, searches of cache misses once their lookups are done
+        for (RangePlanner.RangePlan rangePlan : comparePlan != null ? Arrays.asList(plan, comparePlan)
+                : Arrays.asList(plan)) {
+            submitSearchRequests(pending, new ArrayList<IndexSearch>(rangePlan.getSearches().values()));
+            if (!rangePlan.getLookups().isEmpty()) {
+                lookups.add(rangePlan.getLookups());
+            }
+        }
+        if (lookups.isEmpty()) {
+            pending.done(null);
+            return;
+        }
+        if (lookupExecutor == null) {
+            lookUp(lookups, pending);
+            return;
+        }
+        try {
+            lookupExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    lookUp(lookups, pending);
+                }
+            });
+        } catch (EsRejectedExecutionException e) {
+            pending.done(e);
+        }
+    }
+
+    /**
+     * Looks up results in cache level by level (weeks, days, indices), all keys of one level at once. Searches of
+     * results missing at one level are submitted before the next level is looked up.
+     * <p/>
+     * Lookups of compared ranges are done separately, as one search sets result of one node per facet only.
+     *
+     * @param ranges lookups of requested range and of range it is compared with, if any
+     */
+    private void lookUp(List<List<CacheLookup>> ranges, PendingRequest pending) {
+        try {
+            List<List<CacheLookup>> levels = new ArrayList<List<CacheLookup>>(ranges);
+            while (!levels.isEmpty()) {
+                List<List<CacheLookup>> nextLevels = new ArrayList<List<CacheLookup>>(levels.size());
+                for (List<CacheLookup> level : levels) {
+                    Map<String, IndexSearch> searches = new LinkedHashMap<String, IndexSearch>();
+                    List<CacheLookup> next = CacheLookup.lookUpLevel(level, cache, searches);
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Cached values missing for " + searches.size() + " searches of " + level.size()
+                                + " keys");
+                    }
+                    submitSearchRequests(pending, new ArrayList<IndexSearch>(searches.values()));
+                    if (!next.isEmpty()) {
+                        nextLevels.add(next);
+                    }
+                }
+                levels = nextLevels;
+            }
+        } catch (Throwable e) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("failed to look up cached results", e);
             }
+            pending.done(e);
+            return;
         }
+        pending.done(null);
     }
 
-    private void submitSearchRequests(final RestRequest request, final RestChannel channel, Map<SearchRequest, String> searchRequestsToCacheKeyMap,
-            final List<TermsResult> cachedResponses) {
-        int indexIndex = 0;
-        final AtomicArray<Throwable> searchErrors = new AtomicArray<Throwable>(searchRequestsToCacheKeyMap.size());
-        final AtomicInteger counter = new AtomicInteger(searchRequestsToCacheKeyMap.size());
-        final AtomicArray<TermsResult> searchResults = new AtomicArray<TermsResult>(searchRequestsToCacheKeyMap.size());
-        for (Map.Entry<SearchRequest, String> searchRequestEntry : searchRequestsToCacheKeyMap.entrySet()) {
-            final String requestKey = searchRequestEntry.getValue();
-            final SearchRequest searchRequest = searchRequestEntry.getKey();
-            final int index = indexIndex;
-            client.search(searchRequest, new ActionListener<SearchResponse>() {
-                @Override
-                public void onResponse(SearchResponse response) {
-                    try {
-                        TermsResult result = extractTermsResult(response);
-                        searchResults.set(index, result);
-                        if (requestKey.length() > 0 && result != null && result.getOtherCount() == 0) {
-                            putToCache(requestKey, result);
+    private static boolean isShardCollector(String collector) {
+        if (!SHARD_COLLECTOR.equals(collector) && !FACET_COLLECTOR.equals(collector)) {
+            throw new ElasticSearchIllegalArgumentException("Unknown unique terms collector: " + collector);
+        }
+        return SHARD_COLLECTOR.equals(collector);
+    }
+
+    /**
+     * Facets the shard collector can't handle (scripts, regular expressions, nested facets, ...) are searched with
+     * terms facets even if shard collector is asked for.
+     *
+     * @param requested <code>true</code> if shard collector is asked for
+     */
+    private boolean isShardCollected(boolean requested, RequestTemplateParser.RequestTemplate template) {
+        String unsupported = template.getShardCollectorUnsupported();
+        if (requested && unsupported != null && logger.isDebugEnabled()) {
+            logger.debug("Searching with terms facets instead of shard collector: " + unsupported);
+        }
+        return requested && unsupported == null;
+    }
+
+    private void submitSearchRequests(final PendingRequest pending, List<IndexSearch> searches) {
+        if (searches.isEmpty()) {
+            return;
+        }
+        int nodes = 0;
+        for (IndexSearch search : searches) {
+            nodes += search.getNodes().size();
+        }
+        pending.add(searches.size(), nodes);
+        List<FanOutTask> tasks = new ArrayList<FanOutTask>(searches.size());
+        List<ActionListener<TermsResult>> leaders = new ArrayList<ActionListener<TermsResult>>(nodes);
+        for (IndexSearch search : searches) {
+            Map<String, ActionListener<TermsResult>> searchLeaders =
+                    new LinkedHashMap<String, ActionListener<TermsResult>>();
+            for (Map.Entry<String, ResultNode> entry : search.getNodes().entrySet()) {
+                final ResultNode node = entry.getValue();
+                final ActionListener<TermsResult> listener = new ActionListener<TermsResult>() {
+                    @Override
+                    public void onResponse(TermsResult result) {
+                        node.setResult(result);
+                        pending.done(null);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        pending.done(e);
+                    }
+                };
+                ActionListener<TermsResult> leader = node.isCacheable() ? inFlight.join(node.getCacheKey(), listener)
+                        : listener;
+                if (leader != null) {
+                    leaders.add(leader);
+                    searchLeaders.put(entry.getKey(), resultListener(node, leader));
+                }
+            }
+            if (!searchLeaders.isEmpty()) {
+                tasks.add(createSearchTask(search, pending.mode, pending.precision, pending.dictionaries,
+                        pending.shardCollector, false, pending.timings, searchLeaders));
+            }
+        }
+        if (tasks.isEmpty()) {
+            return;
+        }
+        try {
+            scheduler.submit(tasks);
+        } catch (EsRejectedExecutionException e) {
+            // fails this request once all its searches are done, including ones other requests wait for
+            for (ActionListener<TermsResult> leader : leaders) {
+                leader.onFailure(e);
+            }
+        }
+    }
+
+    /**
+     * @return listener caching complete result and passing it to given listener
+     */
+    private ActionListener<TermsResult> resultListener(final ResultNode node,
+            final ActionListener<TermsResult> listener) {
+        // recompute cost of cached result, queueing included
+        final long started = System.nanoTime();
+        return new ActionListener<TermsResult>() {
+            @Override
+            public void onResponse(TermsResult result) {
+                try {
+                    long cost = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - started);
+                    // rollups over this node add it to their own cost
+                    node.setCost(cost);
+                    if (node.isCacheable() && result != null) {
+                        if (result.getOtherCount() == 0) {
+                            putToCache(node.getCacheKey(), result, cost);
+                        } else {
+                            stats.truncated();
                         }
-                        if (counter.decrementAndGet() == 0) {
-                            Throwable throwable = checkErrors(searchErrors);
-                            if (throwable != null) {
-                                processFailure(throwable, channel, request);
-                            } else {
-                                Collections.addAll(cachedResponses, searchResults.toArray(new TermsResult[searchResults.length()]));
-                                aggregateResults(cachedResponses, request, channel);
+                    }
+                } catch (Exception e) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("failed to execute search (building response)", e);
+                    }
+                    listener.onFailure(e);
+                    return;
+                }
+                listener.onResponse(result);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                listener.onFailure(e);
+            }
+        };
+    }
+
+    /**
+     * Truncated terms facets are searched again with size covering all their terms, see
+     * {@link #COMPLETION_MAX_SIZE_PARAM}.
+     *
+     * @param dictionaries facet name -> dictionary exact results are encoded with, <code>null</code> unless mode is
+     *            {@link UniqueTermsMode#BITMAP}
+     * @param shardCollector <code>true</code> to collect terms with {@link DistinctTermsAction}, terms facet is used
+     *            otherwise
+     * @param listeners facet name -> listener of facet result, facets not listed here are not extracted
+     */
+    private FanOutTask createSearchTask(final IndexSearch search, final UniqueTermsMode mode, final int precision,
+            final Map<String, TermDictionary> dictionaries, final boolean shardCollector, final boolean background,
+            final FanOutTimings timings, final Map<String, ActionListener<TermsResult>> listeners) {
+        return new FanOutTask(search.getIndex(), search.getCoverage(), background) {
+            @Override
+            protected void execute() {
+                if (shardCollector) {
+                    executeDistinct();
+                    return;
+                }
+                client.search(search.getRequest(), new ActionListener<SearchResponse>() {
+                    @Override
+                    public void onResponse(SearchResponse response) {
+                        completed();
+                        Map<String, Integer> completionSizes = new LinkedHashMap<String, Integer>();
+                        for (Map.Entry<String, ActionListener<TermsResult>> listener : listeners.entrySet()) {
+                            TermsResult result;
+                            try {
+                                long start = System.nanoTime();
+                                result = extractTermsResult(response, listener.getKey(), mode, precision);
+                                stats.getExtractTime().record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                            } catch (Exception e) {
+                                if (logger.isDebugEnabled()) {
+                                    logger.debug("failed to execute search (building response)", e);
+                                }
+                                listener.getValue().onFailure(e);
+                                continue;
                             }
+                            int completionSize = getCompletionSize(response, listener.getKey(), result);
+                            if (completionSize > 0) {
+                                completionSizes.put(listener.getKey(), completionSize);
+                                continue;
+                            }
+                            respond(listener.getKey(), listener.getValue(), result);
                         }
-                    } catch (Exception e) {
-                        if (logger.isDebugEnabled()) {
-                            logger.debug("failed to execute search (building response)", e);
+                        if (!completionSizes.isEmpty()) {
+                            complete(completionSizes);
                         }
-                        onFailure(e);
                     }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        completed();
+                        failAll(e);
+                    }
+                });
+            }
+
+            /**
+             * Searches index part again for truncated facets, completion search is not completed again unless its
+             * size could still grow
+             */
+            private void complete(Map<String, Integer> sizes) {
+                Map<String, ActionListener<TermsResult>> truncated =
+                        new LinkedHashMap<String, ActionListener<TermsResult>>();
+                for (String facet : sizes.keySet()) {
+                    truncated.put(facet, listeners.get(facet));
                 }
+                try {
+                    SearchRequest searchRequest = search.getRequest();
+                    BytesArray source = searchRequest.source().toBytesArray();
+                    byte[] completionSource = RequestTemplateParser.facetSizeSource(source.array(),
+                            source.arrayOffset(), source.length(), sizes);
+                    SearchRequest completionRequest = RangePlanner.createIndexSearchRequest(searchRequest,
+                            search.getIndex(), completionSource);
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Completing truncated facets " + sizes + " of " + search.getPart());
+                    }
+                    stats.completionSearch();
+                    scheduler.submit(Collections.singletonList(createSearchTask(
+                            new IndexSearch(search.getIndex(), search.getPart(), completionRequest,
+                                    search.getCoverage()),
+                            mode, precision, dictionaries, false, background, timings, truncated)));
+                } catch (Exception e) {
+                    for (ActionListener<TermsResult> listener : truncated.values()) {
+                        listener.onFailure(e);
+                    }
+                }
+            }
 
-                private Throwable checkErrors(AtomicArray<Throwable> searchErrors) {
-                    Throwable result = null;
-                    for (int i = 0; i < searchErrors.length(); i++) {
-                        Throwable th = searchErrors.get(i);
-                        if (th != null) {
-                            result = th;
-                            break;
+            private void executeDistinct() {
+                SearchRequest searchRequest = search.getRequest();
+                DistinctTermsRequest distinctRequest = new DistinctTermsRequest(searchRequest.indices())
+                        .source(searchRequest.source())
+                        .types(searchRequest.types())
+                        // bitmaps are encoded here, with dictionary of this node
+                        .mode(mode == UniqueTermsMode.BITMAP ? UniqueTermsMode.EXACT : mode, precision);
+                distinctRequest.listenerThreaded(false);
+                ActionListener<DistinctTermsResponse> responseListener = new ActionListener<DistinctTermsResponse>() {
+                    @Override
+                    public void onResponse(DistinctTermsResponse response) {
+                        completed();
+                        if (response.getFailedShards() > 0) {
+                            failAll(new ElasticSearchException("Failed to collect unique terms of " + getIndex()
+                                    + " on " + response.getFailedShards() + " shards: "
+                                    + response.getShardFailures()[0].reason()));
+                            return;
                         }
+                        for (Map.Entry<String, ActionListener<TermsResult>> listener : listeners.entrySet()) {
+                            respond(listener.getKey(), listener.getValue(),
+                                    response.getResults().get(listener.getKey()));
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        completed();
+                        failAll(e);
                     }
-                    return result;
+                };
+                client.execute(DistinctTermsAction.INSTANCE, distinctRequest, responseListener);
+            }
+
+            private void respond(String facet, ActionListener<TermsResult> listener, TermsResult result) {
+                TermsResult encoded;
+                try {
+                    encoded = encode(result, facet, dictionaries);
+                } catch (Exception e) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("failed to encode terms of " + facet, e);
+                    }
+                    listener.onFailure(e);
+                    return;
                 }
+                listener.onResponse(encoded);
+            }
 
-                @Override
-                public void onFailure(Throwable e) {
-                    searchErrors.set(index, e);
-                    if (counter.decrementAndGet() <= 0) {
-                        processFailure(e, channel, request);
+            @Override
+            protected void failed(Throwable e) {
+                timings.add(this);
+                failAll(e);
+            }
+
+            private void failAll(Throwable e) {
+                for (ActionListener<TermsResult> listener : listeners.values()) {
+                    listener.onFailure(e);
+                }
+            }
+
+            private void completed() {
+                finished();
+                timings.add(this);
+                stats.getSearchTime().record(getRunTimeMicros());
+            }
+        };
+    }
+
+    /**
+     * Searches whole index of template closed by given hour in background and caches results of its facets missing in
+     * cache.
+     *
+     * @param listener notified once all facets are done
+     */
+    private void materialize(final QueryTemplate template, long hourStart, final ActionListener<TermsResult> listener) {
+        final RangePlanner.IndexTime indexTime = getClosedIndex(template, hourStart);
+        if (indexTime == null) {
+            listener.onResponse(null);
+            return;
+        }
+        final String index = indexTime.index;
+        final FanOutTimings timings = new FanOutTimings();
+        Map<String, ResultNode> nodes = new LinkedHashMap<String, ResultNode>();
+        for (String facet : template.getFacetCacheKeys().keySet()) {
+            String cacheKey = getHourCacheKey(template, index, facet);
+            if (getCachedValue(cacheKey) == null) {
+                nodes.put(facet, ResultNode.leaf(index, cacheKey));
+            }
+        }
+        if (nodes.isEmpty()) {
+            listener.onResponse(null);
+            return;
+        }
+        final AtomicInteger counter = new AtomicInteger(nodes.size());
+        final AtomicBoolean failed = new AtomicBoolean();
+        Map<String, ActionListener<TermsResult>> leaders = new LinkedHashMap<String, ActionListener<TermsResult>>();
+        // notified once per facet
+        ActionListener<TermsResult> facetListener = new ActionListener<TermsResult>() {
+            @Override
+            public void onResponse(TermsResult result) {
+                if (counter.decrementAndGet() == 0 && !failed.get()) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Materialized template " + template.getName() + " for " + index + " ("
+                                + timings + ")");
                     }
+                    listener.onResponse(result);
                 }
-            });
-            indexIndex++;
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                counter.decrementAndGet();
+                if (failed.compareAndSet(false, true)) {
+                    listener.onFailure(e);
+                }
+            }
+        };
+        for (Map.Entry<String, ResultNode> entry : nodes.entrySet()) {
+            ResultNode node = entry.getValue();
+            ActionListener<TermsResult> leader = inFlight.joinBackground(node.getCacheKey(), facetListener);
+            // facets being searched for a request already are not searched again
+            if (leader != null) {
+                leaders.put(entry.getKey(), resultListener(node, leader));
+            }
+        }
+        if (leaders.isEmpty()) {
+            return;
+        }
+        try {
+            SearchRequest searchRequest = new SearchRequest(index);
+            searchRequest.source(RequestTemplateParser.rangeSource(template.getSource(), indexTime.start, indexTime.end,
+                    false));
+            searchRequest.listenerThreaded(false);
+            boolean shardCollected = isShardCollected(isShardCollector(defaultCollector),
+                    parseTemplate(new BytesArray(template.getSource())));
+            scheduler.submit(Collections.singletonList(createSearchTask(new IndexSearch(index, index, searchRequest, 1),
+                    template.getMode(), template.getPrecision(),
+                    getDictionaries(template.getMode(), template.getFacetFields()), shardCollected, true, timings,
+                    leaders)));
+        } catch (Exception e) {
+            for (ActionListener<TermsResult> leader : leaders.values()) {
+                leader.onFailure(e);
+            }
         }
     }
 
+    /**
+     * @return existing index of template whose time span ends with given hour, <code>null</code> if there is none
+     */
+    private RangePlanner.IndexTime getClosedIndex(QueryTemplate template, long hourStart) {
+        for (IndexPattern pattern : indexPatterns) {
+            long start = pattern.indexStart(hourStart);
+            if (start + pattern.getSpan() != hourStart + HOUR_MILLIS) {
+                continue;
+            }
+            String index = pattern.indexName(template.getIndexPrefix(), start);
+            if (clusterService == null || clusterService.state().metaData().hasIndex(index)) {
+                return new RangePlanner.IndexTime(index, template.getIndexPrefix(), start, start + pattern.getSpan(),
+                        pattern);
+            }
+        }
+        return null;
+    }
+
+    private String getHourCacheKey(QueryTemplate template, String index, String facet) {
+        return index + CACHE_KEY_DELIMITER + template.getFacetCacheKeys().get(facet)
+                + getCacheKeySuffix(template.getMode(), template.getPrecision(), template.getFacetFields().get(facet));
+    }
+
     private void processFailure(Throwable e, RestChannel channel, RestRequest request) {
         try {
             channel.sendResponse(new XContentThrowableRestResponse(request, e));
@@ -194,125 +914,323 @@ public class UniqueTermsAction extends BaseRestHandler {
         }
     }
 
-    private TermsResult extractTermsResult(SearchResponse searchResponse) {
+    /**
+     * @return terms facet size that returns all terms of truncated result, <code>0</code> if result is complete or
+     *         can't be completed with a bigger size
+     */
+    protected int getCompletionSize(SearchResponse searchResponse, String facetName, TermsResult result) {
+        if (result == null || result.getOtherCount() == 0 || completionMaxSize <= 0) {
+            return 0;
+        }
+        int returned = ((TermsFacet) searchResponse.getFacets().getFacets().get(facetName)).getEntries().size();
+        // every value not returned is at most one more unique term
+        long size = Math.min(completionMaxSize, returned + result.getOtherCount());
+        return size > returned ? (int) size : 0;
+    }
+
+    private TermsResult extractTermsResult(SearchResponse searchResponse, String facetName, UniqueTermsMode mode,
+            int precision) {
         TermsResult result = null;
         Facets facets = searchResponse.getFacets();
         if (facets != null) {
-            Facet facet = facets.getFacets().get(TARGET_FACET_NAME);
+            Facet facet = facets.getFacets().get(facetName);
             if (facet != null && facet instanceof TermsFacet) {
-                List<String> terms = new ArrayList<String>();
                 TermsFacet termsFacet = (TermsFacet) facet;
                 List<? extends TermsFacet.Entry> entries = termsFacet.getEntries();
-                for (TermsFacet.Entry term : entries) {
-                    terms.add(term.getTerm().string());
+                long bytesTransferred = 0;
+                if (mode == UniqueTermsMode.HLL) {
+                    HyperLogLog sketch = new HyperLogLog(precision);
+                    for (TermsFacet.Entry term : entries) {
+                        BytesArray bytes = term.getTerm().bytes().toBytesArray();
+                        bytesTransferred += bytes.length();
+                        sketch.offer(bytes.array(), bytes.arrayOffset(), bytes.length());
+                    }
+                    result = new TermsResult(sketch, termsFacet.getTotalCount(), termsFacet.getMissingCount(),
+                            termsFacet.getOtherCount());
+                } else if (mode == UniqueTermsMode.HASH) {
+                    long[] hashes = new long[entries.size()];
+                    int i = 0;
+                    for (TermsFacet.Entry term : entries) {
+                        BytesArray bytes = term.getTerm().bytes().toBytesArray();
+                        bytesTransferred += bytes.length();
+                        hashes[i++] = TermHashes.hash(bytes.array(), bytes.arrayOffset(), bytes.length());
+                    }
+                    result = new TermsResult(TermHashes.sortedUnique(hashes, i), termsFacet.getTotalCount(),
+                            termsFacet.getMissingCount(), termsFacet.getOtherCount());
+                } else {
+                    List<BytesRef> terms = new ArrayList<BytesRef>(entries.size());
+                    for (TermsFacet.Entry term : entries) {
+                        BytesRef bytes = term.getTerm().bytes().toBytesRef();
+                        bytesTransferred += bytes.length;
+                        terms.add(bytes);
+                    }
+                    result = new TermsResult(TermsBlock.fromBytesRefs(terms), termsFacet.getTotalCount(),
+                            termsFacet.getMissingCount(), termsFacet.getOtherCount());
                 }
-                result = new TermsResult(terms, termsFacet.getTotalCount(), termsFacet.getMissingCount(), termsFacet.getOtherCount());
+                stats.termsTransferred(entries.size(), bytesTransferred);
             }
         }
         return result;
     }
 
-    private void prepareRequestsForProcessing(RestRequest request,
-            Map<SearchRequest, String> searchRequestsToCacheKeyMap,
-            List<TermsResult> cachedResponses) throws IOException {
+    /**
+     * @param interval histogram interval in milliseconds, <code>0</code> if histogram is not requested
+     * @param comparePlan plan of range requested range is compared with, <code>null</code> if comparison is not
+     *            requested
+     * @return dictionaries and response cache key of request, or memoized response in which case nothing is planned
+     */
+    private PreparedRequest prepareRequestsForProcessing(RestRequest request, UniqueTermsMode mode,
+            int precision, long interval, RangePlanner.RangePlan plan, RangePlanner.RangePlan comparePlan)
+            throws IOException {
         SearchRequest searchRequest = RestSearchAction.parseSearchRequest(request);
-        String[] indices = searchRequest.indices();
+        String[] indices = resolveIndices(searchRequest);
         if (searchRequest.source() == null) {
             throw new IllegalArgumentException("Empty request source");
         }
-        RequestParamsInfo requestParamsInfo = getRequestInfo(new String(searchRequest.source().copyBytesArray().array()));
+        if (request.contentUnsafe()) {
+            // copy once, all per index requests share the copy
+            searchRequest.source(searchRequest.source().copyBytesArray(), false);
+            if (searchRequest.extraSource() != null) {
+                searchRequest.extraSource(searchRequest.extraSource().copyBytesArray(), false);
+            }
+        }
+        RequestTemplateParser.RequestTemplate template = parseTemplate(searchRequest.source());
+        long granularity = request.paramAsTime(NOW_GRANULARITY_PARAM, TimeValue.timeValueMillis(nowGranularityMillis))
+                .millis();
+        long now = System.currentTimeMillis();
+        if (granularity > 0) {
+            now -= now % granularity;
+        }
+        RequestParamsInfo requestParamsInfo = getRequestInfo(template, now);
+        if (granularity > 0 && requestParamsInfo != null
+                && ("now".equals(template.getFrom()) || "now".equals(template.getTo()))) {
+            // partly covered indices are searched with request source, it has to ask for the snapped range too
+            searchRequest.source(RequestTemplateParser.rangeSource(template.getSource(),
+                    requestParamsInfo.getFromTime(), requestParamsInfo.getToTime(), true));
+        }
+        if (interval > 0 && requestParamsInfo == null) {
+            throw new ElasticSearchIllegalArgumentException("Histogram requires @timestamp range in request");
+        }
+        RequestParamsInfo compareInfo = null;
+        SearchRequest compareRequest = null;
+        if (comparePlan != null) {
+            String compareFrom = request.param(COMPARE_FROM_PARAM);
+            String compareTo = request.param(COMPARE_TO_PARAM);
+            if (requestParamsInfo == null || compareFrom == null || compareTo == null) {
+                throw new ElasticSearchIllegalArgumentException("Range comparison requires @timestamp range in "
+                        + "request, " + COMPARE_FROM_PARAM + " and " + COMPARE_TO_PARAM);
+            }
+            compareInfo = new RequestParamsInfo(parseTime(compareFrom, now), parseTime(compareTo, now),
+                    template.getSource(), template.getCacheKey(), template.getFacetCacheKeys(),
+                    template.getFacetFields());
+            // per index searches of compared range are created from it, its own index is never searched
+            compareRequest = RangePlanner.createIndexSearchRequest(searchRequest, "", RequestTemplateParser.rangeSource(
+                    template.getSource(), compareInfo.getFromTime(), compareInfo.getToTime(), true));
+        }
+        PreparedRequest result = new PreparedRequest(template, getDictionaries(mode, template.getFacetFields()));
         if (request.paramAsBoolean("clearCache", false)) {
             cache.clear();
+            if (responseCache != null) {
+                responseCache.clear();
+            }
+        } else if (responseCache != null && requestParamsInfo != null && searchRequest.extraSource() == null) {
+            result.responseKey = getResponseCacheKey(template, indices, searchRequest, request, mode, precision,
+                    interval, requestParamsInfo, compareInfo);
+            result.response = responseCache.get(result.responseKey);
+            if (result.response != null) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Unique terms response found in response cache");
+                }
+                return result;
+            }
         }
         searchRequest.listenerThreaded(false);
-        for (String index : indices) {
-            String cacheKey = "";
-            if (requestParamsInfo != null) {
-                boolean cachedValueFound = false;
-                int datePostfixStart;
-                while ((datePostfixStart = index.indexOf(INDEX_NAME_PREFIX_DELIMITER)) >= 0) {
-                    String dateStr = index.substring(datePostfixStart + 1);
-                    try {
-                        DateTime dateTime = ES_INDEX_DATE_FORMAT.parseDateTime(dateStr);
-                        long indexStart = dateTime.getMillis();
-                        // plus 1 hour
-                        long indexEnd = dateTime.plusHours(1).getMillis();
-                        // fully covered
-                        if (indexStart >= requestParamsInfo.getFromTime() && indexEnd < requestParamsInfo.getToTime()) {
-                            // trying to get from cache
-                            cacheKey = index + requestParamsInfo.getRequestCacheKey();
-                            TermsResult cached = getCachedValue(cacheKey);
-                            if (cached != null) {
-                                cachedValueFound = true;
-                                cachedResponses.add(cached);
-                            }
-                        }
-                        break;
-                    } catch (IllegalArgumentException ex) {
-                        if (logger.isTraceEnabled()) {
-                            logger.trace("Error parsing date from " + dateStr + ": " + ex.getMessage(), ex);
-                        }
+        for (Map.Entry<String, String> facet : template.getFacetCacheKeys().entrySet()) {
+            String cacheKeySuffix = requestParamsInfo != null ? CACHE_KEY_DELIMITER + facet.getValue()
+                    + getCacheKeySuffix(mode, precision, template.getFacetFields().get(facet.getKey())) : null;
+            // histogram buckets are built from hourly results, rollups would hide them
+            List<ResultNode> facetResults = planner.prepareFacet(facet.getKey(), cacheKeySuffix, indices,
+                    requestParamsInfo, rollupsEnabled && interval <= 0, searchRequest, plan, now);
+            if (comparePlan != null) {
+                planner.prepareFacet(facet.getKey(), cacheKeySuffix, indices, compareInfo, rollupsEnabled,
+                        compareRequest, comparePlan, now);
+            }
+            if (interval > 0) {
+                for (ResultNode node : facetResults) {
+                    if (node.getTime() < 0) {
+                        throw new ElasticSearchIllegalArgumentException("Histogram requires time based indices, got "
+                                + node.getName());
                     }
                 }
-                if (cachedValueFound) {
-                    continue;
-                }
             }
-            SearchRequest oneIndexSearchRequest = new SearchRequest(index);
-            if (searchRequest.source() != null) {
-                oneIndexSearchRequest.source(searchRequest.source().copyBytesArray().array());
+        }
+        return result;
+    }
+
+    /**
+     * @return digest of everything response depends on: query template, concrete indices, request parameters and
+     *         requested ranges with <code>now</code> already snapped
+     */
+    private static String getResponseCacheKey(RequestTemplateParser.RequestTemplate template, String[] indices,
+            SearchRequest searchRequest, RestRequest request, UniqueTermsMode mode, int precision, long interval,
+            RequestParamsInfo requestParamsInfo, RequestParamsInfo compareInfo) {
+        StringBuilder key = new StringBuilder(template.getCacheKey());
+        key.append(CACHE_KEY_DELIMITER).append(Arrays.toString(indices));
+        key.append(CACHE_KEY_DELIMITER).append(Arrays.toString(searchRequest.types()));
+        key.append(CACHE_KEY_DELIMITER).append(searchRequest.routing());
+        key.append(CACHE_KEY_DELIMITER).append(mode).append(CACHE_KEY_DELIMITER).append(precision);
+        key.append(CACHE_KEY_DELIMITER).append(interval);
+        key.append(CACHE_KEY_DELIMITER).append(request.param(COLLECTOR_PARAM, ""));
+        key.append(CACHE_KEY_DELIMITER).append(requestParamsInfo.getFromTime())
+                .append(CACHE_KEY_DELIMITER).append(requestParamsInfo.getToTime());
+        if (compareInfo != null) {
+            key.append(CACHE_KEY_DELIMITER).append(compareInfo.getFromTime())
+                    .append(CACHE_KEY_DELIMITER).append(compareInfo.getToTime());
+        }
+        return CanonicalJson.digest(key.toString());
+    }
+
+    /**
+     * Resolves aliases and wildcards to concrete indices, so that their time spans are known. Indices reached through
+     * filtering aliases are kept as requested, the alias filter is applied by search only.
+     */
+    private String[] resolveIndices(SearchRequest searchRequest) {
+        String[] indices = searchRequest.indices();
+        if (clusterService == null) {
+            return indices;
+        }
+        if (indices == null || indices.length == 0) {
+            indices = new String[]{"_all"};
+        }
+        MetaData metaData = clusterService.state().metaData();
+        Set<String> result = new LinkedHashSet<String>();
+        for (String expression : indices) {
+            String[] concrete = metaData.concreteIndices(new String[]{expression}, searchRequest.ignoreIndices(), true);
+            boolean filtered = false;
+            for (String index : concrete) {
+                if (metaData.filteringAliases(index, expression) != null) {
+                    filtered = true;
+                    break;
+                }
             }
-            if (searchRequest.extraSource() != null) {
-                oneIndexSearchRequest.extraSource(searchRequest.extraSource().copyBytesArray().array());
+            if (filtered) {
+                result.add(expression);
+            } else {
+                Collections.addAll(result, concrete);
+                result.remove(cacheIndex);
             }
-            oneIndexSearchRequest.searchType(searchRequest.searchType());
-            oneIndexSearchRequest.types(searchRequest.types());
-            oneIndexSearchRequest.routing(searchRequest.routing());
-            oneIndexSearchRequest.preference(searchRequest.preference());
-            oneIndexSearchRequest.ignoreIndices(searchRequest.ignoreIndices());
-            oneIndexSearchRequest.listenerThreaded(false);
-            oneIndexSearchRequest.operationThreading(searchRequest.operationThreading());
-            searchRequestsToCacheKeyMap.put(oneIndexSearchRequest, cacheKey);
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * @param field field of facet terms, bitmaps of different term dictionaries are never mixed
+     */
+    private String getCacheKeySuffix(UniqueTermsMode mode, int precision, String field) {
+        switch (mode) {
+            case HLL:
+                return "|hll" + precision;
+            case HASH:
+                return "|hash";
+            case BITMAP:
+                return "|bitmap" + getDictionary(field).getId();
+            default:
+                return "";
+        }
+    }
+
+    private TermDictionary getDictionary(String field) {
+        try {
+            return dictionaries.get(field);
+        } catch (IOException e) {
+            throw new ElasticSearchException("Failed to open term dictionary of field [" + field + "]", e);
         }
     }
-    private void aggregateResults(List<TermsResult> searchResults, RestRequest request, RestChannel channel)
+
+    /**
+     * @param facetFields facet name -> field of its terms
+     * @return facet name -> dictionary its terms are encoded with, <code>null</code> if mode is not
+     *         {@link UniqueTermsMode#BITMAP}
+     */
+    private Map<String, TermDictionary> getDictionaries(UniqueTermsMode mode, Map<String, String> facetFields) {
+        if (mode != UniqueTermsMode.BITMAP) {
+            return null;
+        }
+        Map<String, TermDictionary> result = new HashMap<String, TermDictionary>();
+        for (Map.Entry<String, String> facet : facetFields.entrySet()) {
+            result.put(facet.getKey(), getDictionary(facet.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * @param dictionaries facet name -> dictionary, <code>null</code> to keep result as is
+     * @return exact result with its terms replaced by their ids
+     */
+    private static TermsResult encode(TermsResult result, String facet, Map<String, TermDictionary> dictionaries)
             throws IOException {
+        if (result == null || dictionaries == null) {
+            return result;
+        }
+        return new TermsResult(dictionaries.get(facet).encode(result.getTerms()), result.getTotalCount(),
+                result.getMissingCount(), result.getOtherCount());
+    }
+
+    /**
+     * @param compareResults facet name -> results of compared range, <code>null</code> if comparison is not requested
+     * @param responseKey key to memoize response with, <code>null</code> if it should not be memoized
+     */
+    private void aggregateResults(Map<String, List<ResultNode>> results, Map<String, List<ResultNode>> compareResults,
+            UniqueTermsMode mode, int precision, long interval, String responseKey, FanOutTimings timings,
+            RestRequest request, RestChannel channel) throws IOException {
         if (logger.isDebugEnabled()) {
-            logger.debug("Unique terms per index results collected, start aggregating");
+            logger.debug("Unique terms per index results collected (" + timings + "), start aggregating");
+        }
+        long start = System.nanoTime();
+        UniqueTermsResponse uniqueTermsResponse = assembler.assemble(results, compareResults, mode, precision,
+                interval);
+        if (responseKey != null) {
+            responseCache.put(responseKey, uniqueTermsResponse);
         }
-        UniqueTermsResponse uniqueTermsResponse = aggregateResults(searchResults);
+        stats.getAggregateTime().record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
         if (logger.isDebugEnabled()) {
             logger.debug("Unique terms results aggregated");
         }
+        sendResponse(uniqueTermsResponse, timings, request, channel);
+    }
+
+    private void sendResponse(UniqueTermsResponse uniqueTermsResponse, FanOutTimings timings, RestRequest request,
+            RestChannel channel) throws IOException {
+        long start = System.nanoTime();
         XContentBuilder builder = restContentBuilder(request);
         builder.startObject();
         uniqueTermsResponse.toXContent(builder, request);
+        if (request.paramAsBoolean("timing", false)) {
+            timings.toXContent(builder, request);
+        }
         builder.endObject();
         channel.sendResponse(new XContentRestResponse(request, OK, builder));
+        stats.getSerializeTime().record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
     }
 
     protected UniqueTermsResponse aggregateResults(Collection<TermsResult> searchResults) {
-        int other = 0;
-        int total = 0;
-        int missing = 0;
-        Set<String> uniqueValues = new HashSet<String>();
-        if (searchResults != null) {
-            for (TermsResult searchResult : searchResults) {
-                uniqueValues.addAll(searchResult.getUniqueTerms());
-                total += searchResult.getTotalCount();
-                missing += searchResult.getMissingCount();
-                other += searchResult.getOtherCount();
-            }
-        }
-        return new UniqueTermsResponse(Arrays.asList(
-                new UniqueTermsResponse.UniqueTerms(TARGET_FACET_NAME, uniqueValues.size(), total, missing, other)));
+        return aggregateResults(searchResults, UniqueTermsMode.EXACT, HyperLogLog.DEFAULT_PRECISION);
+    }
+
+    protected UniqueTermsResponse aggregateResults(Collection<TermsResult> searchResults, UniqueTermsMode mode,
+            int precision) {
+        return new UniqueTermsResponse(Arrays.asList(assembler.aggregateTerms(TARGET_FACET_NAME, searchResults, mode,
+                precision)));
     }
 
-    private void putToCache(String key, TermsResult value) {
+    /**
+     * @param cost microseconds it took to compute value, not positive if unknown
+     */
+    private void putToCache(String key, TermsResult value, long cost) {
         if (logger.isDebugEnabled()) {
             logger.debug("Put to cache for key '" + key + "'");
         }
-        cache.put(key, value);
+        cache.put(key, value, cost);
     }
 
     private TermsResult getCachedValue(String key) {
@@ -342,57 +1260,157 @@ public class UniqueTermsAction extends BaseRestHandler {
      * @throws IOException
      */
     protected RequestParamsInfo getRequestInfo(String requestSource) throws IOException {
+        if (requestSource == null) {
+            return null;
+        }
+        return getRequestInfo(new BytesArray(requestSource));
+    }
+
+    /**
+     * @return requested time range and request template, <code>null</code> if source has no complete time range
+     */
+    protected RequestParamsInfo getRequestInfo(BytesReference requestSource) throws IOException {
+        return getRequestInfo(parseTemplate(requestSource), System.currentTimeMillis());
+    }
+
+    private RequestTemplateParser.RequestTemplate parseTemplate(BytesReference requestSource) throws IOException {
+        BytesArray bytes = requestSource.toBytesArray();
+        return templateParser.parse(bytes.array(), bytes.arrayOffset(), bytes.length());
+    }
+
+    /**
+     * @param now time <code>now</code> in request range stands for
+     */
+    private static RequestParamsInfo getRequestInfo(RequestTemplateParser.RequestTemplate template, long now) {
         RequestParamsInfo result = null;
-        if (requestSource != null) {
-            ObjectMapper objectMapper = new ObjectMapper();
-            JsonNode jsonNode = objectMapper.readTree(requestSource);
-            JsonNode facets = jsonNode.findValue("facets");
-            {
-                if (facets.isMissingNode()) {
-                    throw new IllegalArgumentException("No facets found in requests");
-                }
-                Iterator<String> iterator = facets.fieldNames();
-                while (iterator.hasNext()) {
-                    String facetName = iterator.next();
-                    if (!TARGET_FACET_NAME.equals(facetName)) {
-                        throw new IllegalArgumentException("Unexpected facet name: " + facetName);
-                    }
-                }
+        String from = template.getFrom();
+        String to = template.getTo();
+        if (from.length() > 0 && to.length() > 0) {
+            result = new RequestParamsInfo(parseTime(from, now), parseTime(to, now), template.getSource(),
+                    template.getCacheKey(), template.getFacetCacheKeys(), template.getFacetFields());
+        }
+        return result;
+    }
+
+    /**
+     * @param value milliseconds or <code>now</code>
+     */
+    private static long parseTime(String value, long now) {
+        return "now".equals(value) ? now : Long.parseLong(value);
+    }
+
+    /**
+     * What request planning hands over to request execution.
+     */
+    private static class PreparedRequest {
+        private final RequestTemplateParser.RequestTemplate template;
+        private final Map<String, TermDictionary> dictionaries;
+        // key response is memoized with, null if it isn't
+        private String responseKey;
+        // memoized response, nothing is planned if set
+        private UniqueTermsResponse response;
+
+        private PreparedRequest(RequestTemplateParser.RequestTemplate template,
+                Map<String, TermDictionary> dictionaries) {
+            this.template = template;
+            this.dictionaries = dictionaries;
+        }
+    }
+
+    /**
+     * Outstanding work of one request: cache lookups and results of submitted searches. Response is sent once all of
+     * them are done, failure of any of them fails the request.
+     */
+    private class PendingRequest {
+        private final RestRequest request;
+        private final RestChannel channel;
+        private final UniqueTermsMode mode;
+        private final int precision;
+        private final Map<String, TermDictionary> dictionaries;
+        private final long interval;
+        private final boolean shardCollector;
+        private final Map<String, List<ResultNode>> results;
+        private final Map<String, List<ResultNode>> compareResults;
+        private final String responseKey;
+        private final FanOutTimings timings = new FanOutTimings();
+        // lookups count as one until they are all done
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private final AtomicInteger searches = new AtomicInteger();
+        private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        private PendingRequest(RestRequest request, RestChannel channel, UniqueTermsMode mode, int precision,
+                Map<String, TermDictionary> dictionaries, long interval, boolean shardCollector,
+                Map<String, List<ResultNode>> results, Map<String, List<ResultNode>> compareResults,
+                String responseKey) {
+            this.request = request;
+            this.channel = channel;
+            this.mode = mode;
+            this.precision = precision;
+            this.dictionaries = dictionaries;
+            this.interval = interval;
+            this.shardCollector = shardCollector;
+            this.results = results;
+            this.compareResults = compareResults;
+            this.responseKey = responseKey;
+        }
+
+        /**
+         * @param nodes number of results the searches are going to set
+         */
+        void add(int searchCount, int nodes) {
+            searches.addAndGet(searchCount);
+            pending.addAndGet(nodes);
+        }
+
+        /**
+         * @param e failure of lookups or search, <code>null</code> if successful
+         */
+        void done(Throwable e) {
+            if (e != null) {
+                failure.compareAndSet(null, e);
+            }
+            if (pending.decrementAndGet() != 0) {
+                return;
             }
-            JsonNode terms = facets.path(TARGET_FACET_NAME);
-            if (terms.isMissingNode()) {
-                throw new IllegalArgumentException(String.format("No facet with name '%s' found in requests", TARGET_FACET_NAME));
-            }
-            JsonNode range = jsonNode.findValue("@timestamp");
-            if (range.isMissingNode()) {
-                throw new IllegalArgumentException("No @timestamp found in requests");
-            }
-            String from = range.path("from").asText();
-            String to = range.path("to").asText();
-            if (from.length() > 0 && to.length() > 0) {
-                long currentTime = System.currentTimeMillis();
-                long fromLong = "now".equals(from) ? currentTime : Long.parseLong(from);
-                long toLong = "now".equals(to) ? currentTime : Long.parseLong(to);
-                Iterator<JsonNode> iterator = range.elements();
-                while (iterator.hasNext()) {
-                    iterator.next();
-                    iterator.remove();
+            stats.request(searches.get());
+            if (failure.get() != null) {
+                processFailure(failure.get(), channel, request);
+                return;
+            }
+            try {
+                aggregateResults(results, compareResults, mode, precision, interval, responseKey, timings, request,
+                        channel);
+            } catch (Exception ex) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("failed to execute search (building response)", ex);
                 }
-                result = new RequestParamsInfo(fromLong, toLong, objectMapper.writeValueAsString(jsonNode));
+                processFailure(ex, channel, request);
             }
         }
-        return result;
     }
 
     public static class RequestParamsInfo {
         private long fromTime;
         private long toTime;
+        private String requestTemplate;
         private String requestCacheKey;
+        private Map<String, String> facetCacheKeys;
+        private Map<String, String> facetFields;
 
-        public RequestParamsInfo(long fromLong, long toLong, String requestCacheKey) {
+        /**
+         * @param requestTemplate canonical request source without <code>@timestamp</code> range
+         * @param requestCacheKey digest of request template
+         * @param facetCacheKeys facet name -> digest of request template with this facet only
+         * @param facetFields facet name -> field of its terms, empty if terms don't come from a single field
+         */
+        public RequestParamsInfo(long fromLong, long toLong, String requestTemplate, String requestCacheKey,
+                Map<String, String> facetCacheKeys, Map<String, String> facetFields) {
             this.fromTime = fromLong;
             this.toTime = toLong;
+            this.requestTemplate = requestTemplate;
             this.requestCacheKey = requestCacheKey;
+            this.facetCacheKeys = facetCacheKeys;
+            this.facetFields = facetFields;
         }
 
         public long getFromTime() {
@@ -403,9 +1421,21 @@ public class UniqueTermsAction extends BaseRestHandler {
             return toTime;
         }
 
+        public String getRequestTemplate() {
+            return requestTemplate;
+        }
+
         public String getRequestCacheKey() {
             return requestCacheKey;
         }
 
+        public Map<String, String> getFacetCacheKeys() {
+            return facetCacheKeys;
+        }
+
+        public Map<String, String> getFacetFields() {
+            return facetFields;
+        }
+
     }
 }
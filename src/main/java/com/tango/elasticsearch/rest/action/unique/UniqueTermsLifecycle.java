@@ -0,0 +1,48 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique;
+
+import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * Ties {@link UniqueTermsAction} to node lifecycle, REST handlers have none of their own.
+ */
+public class UniqueTermsLifecycle extends AbstractLifecycleComponent<UniqueTermsLifecycle> {
+
+    private final UniqueTermsAction action;
+
+    @Inject
+    public UniqueTermsLifecycle(Settings settings, UniqueTermsAction action) {
+        super(settings);
+        this.action = action;
+    }
+
+    @Override
+    protected void doStart() throws ElasticSearchException {
+    }
+
+    @Override
+    protected void doStop() throws ElasticSearchException {
+    }
+
+    @Override
+    protected void doClose() throws ElasticSearchException {
+        action.close();
+    }
+}
@@ -0,0 +1,54 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique;
+
+/**
+ * Way unique terms are counted, selected by <code>mode</code> request parameter.
+ */
+public enum UniqueTermsMode {
+
+    /**
+     * Exact count, every unique term is kept
+     */
+    EXACT,
+
+    /**
+     * Approximate count, each index is reduced to HyperLogLog sketch
+     */
+    HLL,
+
+    /**
+     * Exact up to 64-bit hash collisions, each index is reduced to sorted term hashes
+     */
+    HASH,
+
+    /**
+     * Exact count, each index is reduced to bitmap of term ids assigned by node local term dictionary
+     */
+    BITMAP;
+
+    public static UniqueTermsMode fromString(String value) {
+        if (value == null || value.length() == 0) {
+            return EXACT;
+        }
+        for (UniqueTermsMode mode : values()) {
+            if (mode.name().equalsIgnoreCase(value)) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown mode: " + value);
+    }
+}
@@ -16,6 +16,7 @@
 package com.tango.elasticsearch.rest.action.unique;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.elasticsearch.action.ActionResponse;
@@ -49,35 +50,97 @@ public class UniqueTermsResponse extends ActionResponse implements ToXContent {
     public static class UniqueTerms implements ToXContent, Streamable {
 
         private String name;
-        private int unique;
-        private int total;
-        private int missing;
-        private int other;
+        private long unique;
+        private long total;
+        private long missing;
+        private long other;
+        private double error;
+        private List<Bucket> histogram;
+        private Comparison comparison;
 
-        public UniqueTerms(String name, int unique, int total, int missing, int other) {
+        public UniqueTerms(String name, long unique, long total, long missing, long other) {
+            this(name, unique, total, missing, other, 0);
+        }
+
+        public UniqueTerms(String name, long unique, long total, long missing, long other, double error) {
             this.name = name;
             this.unique = unique;
             this.total = total;
             this.missing = missing;
             this.other = other;
+            this.error = error;
+        }
+
+        /**
+         * @param histogram per interval counts in time order, <code>null</code> if histogram was not requested
+         */
+        public UniqueTerms setHistogram(List<Bucket> histogram) {
+            this.histogram = histogram;
+            return this;
+        }
+
+        public List<Bucket> getHistogram() {
+            return histogram;
+        }
+
+        /**
+         * @param comparison comparison with another range, <code>null</code> if it was not requested
+         */
+        public UniqueTerms setComparison(Comparison comparison) {
+            this.comparison = comparison;
+            return this;
+        }
+
+        public Comparison getComparison() {
+            return comparison;
+        }
+
+        public long getUnique() {
+            return unique;
         }
 
         @Override
         public void readFrom(StreamInput in) throws IOException {
             name = in.readString();
-            unique = in.readVInt();
-            total = in.readVInt();
-            missing = in.readVInt();
-            other = in.readVInt();
+            unique = in.readVLong();
+            total = in.readVLong();
+            missing = in.readVLong();
+            other = in.readVLong();
+            error = in.readDouble();
+            if (in.readBoolean()) {
+                int size = in.readVInt();
+                histogram = new ArrayList<Bucket>(size);
+                for (int i = 0; i < size; i++) {
+                    Bucket bucket = new Bucket();
+                    bucket.readFrom(in);
+                    histogram.add(bucket);
+                }
+            }
+            if (in.readBoolean()) {
+                comparison = new Comparison();
+                comparison.readFrom(in);
+            }
         }
 
         @Override
         public void writeTo(StreamOutput out) throws IOException {
             out.writeString(name);
-            out.writeVInt(unique);
-            out.writeVInt(total);
-            out.writeVInt(missing);
-            out.writeVInt(other);
+            out.writeVLong(unique);
+            out.writeVLong(total);
+            out.writeVLong(missing);
+            out.writeVLong(other);
+            out.writeDouble(error);
+            out.writeBoolean(histogram != null);
+            if (histogram != null) {
+                out.writeVInt(histogram.size());
+                for (Bucket bucket : histogram) {
+                    bucket.writeTo(out);
+                }
+            }
+            out.writeBoolean(comparison != null);
+            if (comparison != null) {
+                comparison.writeTo(out);
+            }
         }
 
         @Override
@@ -87,6 +150,167 @@ public class UniqueTermsResponse extends ActionResponse implements ToXContent {
             builder.field("total", total);
             builder.field("missing", missing);
             builder.field("other", other);
+            if (error > 0) {
+                builder.field("error", error);
+            }
+            if (histogram != null) {
+                builder.startArray("histogram");
+                for (Bucket bucket : histogram) {
+                    bucket.toXContent(builder, params);
+                }
+                builder.endArray();
+            }
+            if (comparison != null) {
+                comparison.toXContent(builder, params);
+            }
+            builder.endObject();
+            return builder;
+        }
+    }
+
+    /**
+     * Unique terms of compared range and how they overlap with terms of requested range.
+     */
+    public static class Comparison implements ToXContent, Streamable {
+
+        private long unique;
+        private long total;
+        private long overlap;
+        private long onlyInRange;
+        private long onlyInCompare;
+
+        Comparison() {
+        }
+
+        /**
+         * @param overlap terms present in both ranges
+         * @param onlyInRange terms of requested range not present in compared range
+         * @param onlyInCompare terms of compared range not present in requested range
+         */
+        public Comparison(long unique, long total, long overlap, long onlyInRange, long onlyInCompare) {
+            this.unique = unique;
+            this.total = total;
+            this.overlap = overlap;
+            this.onlyInRange = onlyInRange;
+            this.onlyInCompare = onlyInCompare;
+        }
+
+        public long getUnique() {
+            return unique;
+        }
+
+        public long getOverlap() {
+            return overlap;
+        }
+
+        public long getOnlyInRange() {
+            return onlyInRange;
+        }
+
+        public long getOnlyInCompare() {
+            return onlyInCompare;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            unique = in.readVLong();
+            total = in.readVLong();
+            overlap = in.readVLong();
+            onlyInRange = in.readVLong();
+            onlyInCompare = in.readVLong();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeVLong(unique);
+            out.writeVLong(total);
+            out.writeVLong(overlap);
+            out.writeVLong(onlyInRange);
+            out.writeVLong(onlyInCompare);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject("compare");
+            builder.field("unique", unique);
+            builder.field("total", total);
+            builder.field("overlap", overlap);
+            builder.field("only_in_range", onlyInRange);
+            builder.field("only_in_compare", onlyInCompare);
+            builder.endObject();
+            return builder;
+        }
+    }
+
+    /**
+     * Distinct count of one histogram interval and of all intervals up to and including it.
+     */
+    public static class Bucket implements ToXContent, Streamable {
+
+        private long time;
+        private long unique;
+        private long cumulative;
+        private long total;
+        private long missing;
+        private long other;
+
+        Bucket() {
+        }
+
+        public Bucket(long time, long unique, long cumulative, long total, long missing, long other) {
+            this.time = time;
+            this.unique = unique;
+            this.cumulative = cumulative;
+            this.total = total;
+            this.missing = missing;
+            this.other = other;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public long getUnique() {
+            return unique;
+        }
+
+        public long getCumulative() {
+            return cumulative;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            time = in.readVLong();
+            unique = in.readVLong();
+            cumulative = in.readVLong();
+            total = in.readVLong();
+            missing = in.readVLong();
+            other = in.readVLong();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeVLong(time);
+            out.writeVLong(unique);
+            out.writeVLong(cumulative);
+            out.writeVLong(total);
+            out.writeVLong(missing);
+            out.writeVLong(other);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject();
+            builder.field("time", time);
+            builder.field("unique", unique);
+            builder.field("cumulative", cumulative);
+            builder.field("total", total);
+            builder.field("missing", missing);
+            builder.field("other", other);
             builder.endObject();
             return builder;
         }
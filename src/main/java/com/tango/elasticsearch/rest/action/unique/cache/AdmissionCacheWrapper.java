@@ -0,0 +1,230 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Cost aware TinyLFU admission and eviction in front of any cache.
+ * <p/>
+ * Wrapper tracks keys it admitted with their weights (bytes) in access order, up to max weight. A new entry that
+ * doesn't fit is admitted only if its value, recent access frequency times recompute cost, is higher than the summed
+ * value of least recently used entries that have to go to make room for it; those are then removed from wrapped cache.
+ * So a big or a one-off entry can't push out many cheap entries that are read often.
+ */
+public class AdmissionCacheWrapper<K, V> implements CacheWrapper<K, V> {
+
+    protected static final Logger LOG = Logger.getLogger(AdmissionCacheWrapper.class);
+
+    /**
+     * Cost of values put without measured cost, microseconds
+     */
+    public static final long DEFAULT_COST = 1000;
+
+    /**
+     * Size of cached value in bytes
+     */
+    public interface Weigher<V> {
+        long weigh(V value);
+    }
+
+    private final CacheWrapper<K, V> cache;
+    private final Weigher<V> weigher;
+    private final long maxWeight;
+    private final FrequencySketch sketch;
+    // admitted key -> weight and cost, least recently used first
+    private final LinkedHashMap<K, Resident> residents = new LinkedHashMap<K, Resident>(16, 0.75f, true);
+    private long weight;
+    private long admitted;
+    private long rejected;
+    private long evicted;
+
+    /**
+     * @param maxWeight total weight of admitted entries, should not exceed capacity of wrapped cache
+     * @param maxEntries expected max number of entries, sizes frequency sketch
+     */
+    public AdmissionCacheWrapper(CacheWrapper<K, V> cache, Weigher<V> weigher, long maxWeight, int maxEntries) {
+        this.cache = cache;
+        this.weigher = weigher;
+        this.maxWeight = maxWeight;
+        this.sketch = new FrequencySketch(maxEntries);
+    }
+
+    @Override
+    public void put(K key, V value) {
+        put(key, value, DEFAULT_COST);
+    }
+
+    @Override
+    public void put(K key, V value, long cost) {
+        List<K> victims = new ArrayList<K>();
+        synchronized (this) {
+            if (!admit(key, weigher.weigh(value), cost > 0 ? cost : DEFAULT_COST, victims)) {
+                rejected++;
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Not admitted to cache: " + key);
+                }
+                return;
+            }
+            admitted++;
+            evicted += victims.size();
+        }
+        for (K victim : victims) {
+            cache.remove(victim);
+        }
+        cache.put(key, value, cost);
+    }
+
+    @Override
+    public V get(K key) {
+        synchronized (this) {
+            sketch.increment(key);
+            // touches access order
+            residents.get(key);
+        }
+        V value = cache.get(key);
+        if (value == null) {
+            synchronized (this) {
+                // evicted by wrapped cache itself
+                Resident resident = residents.remove(key);
+                if (resident != null) {
+                    weight -= resident.weight;
+                }
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public Map<K, V> getAll(Collection<K> keys) {
+        synchronized (this) {
+            for (K key : keys) {
+                sketch.increment(key);
+                residents.get(key);
+            }
+        }
+        Map<K, V> values = cache.getAll(keys);
+        if (values.size() < keys.size()) {
+            synchronized (this) {
+                for (K key : keys) {
+                    if (!values.containsKey(key)) {
+                        Resident resident = residents.remove(key);
+                        if (resident != null) {
+                            weight -= resident.weight;
+                        }
+                    }
+                }
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public void remove(K key) {
+        synchronized (this) {
+            Resident resident = residents.remove(key);
+            if (resident != null) {
+                weight -= resident.weight;
+            }
+        }
+        cache.remove(key);
+    }
+
+    @Override
+    public void clear() {
+        synchronized (this) {
+            residents.clear();
+            weight = 0;
+            sketch.clear();
+        }
+        cache.clear();
+    }
+
+    /**
+     * @param victims keys to remove from wrapped cache are added here if entry is admitted
+     */
+    private boolean admit(K key, long entryWeight, long cost, List<K> victims) {
+        if (entryWeight > maxWeight) {
+            return false;
+        }
+        Resident previous = residents.remove(key);
+        if (previous != null) {
+            weight -= previous.weight;
+        }
+        long candidate = score(key, cost);
+        long freed = 0;
+        long victimsScore = 0;
+        for (Iterator<Map.Entry<K, Resident>> iterator = residents.entrySet().iterator();
+             weight - freed + entryWeight > maxWeight && iterator.hasNext(); ) {
+            Map.Entry<K, Resident> victim = iterator.next();
+            victims.add(victim.getKey());
+            freed += victim.getValue().weight;
+            victimsScore += score(victim.getKey(), victim.getValue().cost);
+        }
+        if (candidate <= victimsScore) {
+            victims.clear();
+            if (previous != null) {
+                residents.put(key, previous);
+                weight += previous.weight;
+            }
+            return false;
+        }
+        for (K victim : victims) {
+            residents.remove(victim);
+        }
+        weight -= freed;
+        residents.put(key, new Resident(entryWeight, cost));
+        weight += entryWeight;
+        return true;
+    }
+
+    private long score(K key, long cost) {
+        return Math.max(1, sketch.frequency(key)) * cost;
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public synchronized long getAdmitted() {
+        return admitted;
+    }
+
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    public synchronized long getEvicted() {
+        return evicted;
+    }
+
+    private static class Resident {
+        private final long weight;
+        private final long cost;
+
+        private Resident(long weight, long cost) {
+            this.weight = weight;
+            this.cost = cost;
+        }
+    }
+}
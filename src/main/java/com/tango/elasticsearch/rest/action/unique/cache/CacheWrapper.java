@@ -15,12 +15,27 @@
  */
 package com.tango.elasticsearch.rest.action.unique.cache;
 
+import java.util.Collection;
+import java.util.Map;
+
 public interface CacheWrapper<K, V> {
 
     void put(K key, V value);
 
+    /**
+     * @param cost time spent computing value in microseconds, used by cost aware wrappers only
+     */
+    void put(K key, V value, long cost);
+
     V get(K key);
 
+    /**
+     * @return found keys and their values, missing keys are left out
+     */
+    Map<K, V> getAll(Collection<K> keys);
+
+    void remove(K key);
+
     void clear();
 
 }
\ No newline at end of file
@@ -0,0 +1,84 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.cache;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts hits, misses and puts of wrapped cache.
+ */
+public class CountingCacheWrapper<K, V> implements CacheWrapper<K, V> {
+
+    private final CacheWrapper<K, V> cache;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong puts = new AtomicLong();
+
+    public CountingCacheWrapper(CacheWrapper<K, V> cache) {
+        this.cache = cache;
+    }
+
+    @Override
+    public void put(K key, V value) {
+        puts.incrementAndGet();
+        cache.put(key, value);
+    }
+
+    @Override
+    public void put(K key, V value, long cost) {
+        puts.incrementAndGet();
+        cache.put(key, value, cost);
+    }
+
+    @Override
+    public V get(K key) {
+        V value = cache.get(key);
+        (value != null ? hits : misses).incrementAndGet();
+        return value;
+    }
+
+    @Override
+    public Map<K, V> getAll(Collection<K> keys) {
+        Map<K, V> values = cache.getAll(keys);
+        hits.addAndGet(values.size());
+        misses.addAndGet(keys.size() - values.size());
+        return values;
+    }
+
+    @Override
+    public void remove(K key) {
+        cache.remove(key);
+    }
+
+    @Override
+    public void clear() {
+        cache.clear();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getPuts() {
+        return puts.get();
+    }
+}
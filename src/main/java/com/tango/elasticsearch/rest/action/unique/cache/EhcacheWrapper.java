@@ -15,6 +15,9 @@
  */
 package com.tango.elasticsearch.rest.action.unique.cache;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -57,15 +60,44 @@ public class EhcacheWrapper<K, V> implements CacheWrapper<K, V> {
         getCache().put(new Element(key, value));
     }
 
+    @Override
+    public void put(K key, V value, long cost) {
+        put(key, value);
+    }
+
     @Override
     public V get(final K key) {
         Element element = getCache().get(key);
         if (element != null) {
-            return (V) element.getObjectValue();
+            // only values of type V are put into the cache
+            @SuppressWarnings("unchecked")
+            V value = (V) element.getObjectValue();
+            return value;
         }
         return null;
     }
 
+    @Override
+    public Map<K, V> getAll(Collection<K> keys) {
+        Map<K, V> values = new HashMap<K, V>();
+        for (Map.Entry<Object, Element> entry : getCache().getAll(keys).entrySet()) {
+            if (entry.getValue() != null) {
+                // ehcache returns requested keys and values put by this wrapper
+                @SuppressWarnings("unchecked")
+                K key = (K) entry.getKey();
+                @SuppressWarnings("unchecked")
+                V value = (V) entry.getValue().getObjectValue();
+                values.put(key, value);
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public void remove(final K key) {
+        getCache().remove(key);
+    }
+
     @Override
     public void clear() {
         try {
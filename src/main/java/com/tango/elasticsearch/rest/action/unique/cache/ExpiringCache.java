@@ -0,0 +1,99 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Small least recently used heap cache whose entries expire a fixed time after they were put.
+ */
+public class ExpiringCache<K, V> {
+
+    private final long ttlMillis;
+    private final LruMap<K, Entry<V>> entries;
+
+    /**
+     * @param maxEntries max number of entries kept, least recently used are evicted
+     * @param ttlMillis time entry is returned for after it was put
+     */
+    public ExpiringCache(int maxEntries, long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.entries = new LruMap<K, Entry<V>>(maxEntries);
+    }
+
+    public V get(K key) {
+        return get(key, System.currentTimeMillis());
+    }
+
+    /**
+     * @return value put less than ttl before given time, <code>null</code> if there is none
+     */
+    public synchronized V get(K key, long now) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expires <= now) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    public void put(K key, V value) {
+        put(key, value, System.currentTimeMillis());
+    }
+
+    public synchronized void put(K key, V value, long now) {
+        entries.put(key, new Entry<V>(value, now + ttlMillis));
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private static class LruMap<K, V> extends LinkedHashMap<K, V> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxEntries;
+
+        private LruMap(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > maxEntries;
+        }
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long expires;
+
+        private Entry(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,338 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.deletebyquery.DeleteByQueryResponse;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.indices.IndexAlreadyExistsException;
+import org.elasticsearch.indices.IndexMissingException;
+
+import com.tango.elasticsearch.rest.action.unique.util.MurmurHash3;
+
+/**
+ * Cache shared by all nodes of the cluster, keeping encoded values as documents of a dedicated index.
+ * <p/>
+ * Document id is 128-bit hash of the key, document source (SMILE) holds the key and binary value. Values are read
+ * with (multi) get, so they are visible right after put, and kept in a small {@link NearCache} on every node.
+ * Entries expire after ttl of the index mapping. The index is created on first put.
+ */
+public class IndexCacheWrapper<V> implements CacheWrapper<String, V> {
+
+    protected static final Logger LOG = Logger.getLogger(IndexCacheWrapper.class);
+
+    public static final String TYPE = "result";
+
+    private static final long SEED = 0x5be0cd19137e2179L;
+    private static final String KEY_FIELD = "key";
+    private static final String VALUE_FIELD = "value";
+
+    private final Client client;
+    private final String index;
+    private final ValueCodec<V> codec;
+    private final int shards;
+    private final int replicas;
+    private final TimeValue ttl;
+    private final TimeValue timeout;
+    private final NearCache<String, V> nearCache;
+    private final AtomicBoolean indexCreated = new AtomicBoolean();
+
+    /**
+     * @param ttl time entries are kept in the index
+     * @param timeout max time to wait for get
+     * @param nearCacheSize max total size of values kept on this node in bytes
+     */
+    public IndexCacheWrapper(Client client, String index, ValueCodec<V> codec, int shards, int replicas, TimeValue ttl,
+            TimeValue timeout, long nearCacheSize) {
+        this.client = client;
+        this.index = index;
+        this.codec = codec;
+        this.shards = shards;
+        this.replicas = replicas;
+        this.ttl = ttl;
+        this.timeout = timeout;
+        this.nearCache = new NearCache<String, V>(nearCacheSize);
+    }
+
+    @Override
+    public void put(String key, V value) {
+        final byte[] valueBytes;
+        try {
+            valueBytes = encode(value);
+        } catch (IOException e) {
+            LOG.warn("Failed to encode cache value for key " + key, e);
+            return;
+        }
+        nearCache.put(key, value, valueBytes.length);
+        final String id = toId(key);
+        final XContentBuilder source;
+        try {
+            source = toSource(key, valueBytes);
+        } catch (IOException e) {
+            LOG.warn("Failed to build cache document for key " + key, e);
+            return;
+        }
+        ensureIndex(new Runnable() {
+            @Override
+            public void run() {
+                client.prepareIndex(index, TYPE, id).setSource(source).execute(new ActionListener<IndexResponse>() {
+                    @Override
+                    public void onResponse(IndexResponse response) {
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        if (ExceptionsHelper.unwrapCause(e) instanceof IndexMissingException) {
+                            indexCreated.set(false);
+                        }
+                        LOG.warn("Failed to put value to cache index " + index, e);
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public void put(String key, V value, long cost) {
+        put(key, value);
+    }
+
+    @Override
+    public V get(String key) {
+        return getAll(Collections.singletonList(key)).get(key);
+    }
+
+    /**
+     * Waits up to timeout for values missing in near cache, so it is called off network threads.
+     */
+    @Override
+    public Map<String, V> getAll(Collection<String> keys) {
+        Map<String, V> values = new HashMap<String, V>();
+        List<String> remote = new ArrayList<String>(keys.size());
+        for (String key : keys) {
+            V value = nearCache.get(key);
+            if (value != null) {
+                values.put(key, value);
+            } else {
+                remote.add(key);
+            }
+        }
+        if (remote.isEmpty()) {
+            return values;
+        }
+        MultiGetRequestBuilder request = client.prepareMultiGet().setRealtime(true);
+        for (String key : remote) {
+            request.add(index, TYPE, toId(key));
+        }
+        MultiGetResponse response;
+        try {
+            response = request.execute().actionGet(timeout);
+        } catch (Exception e) {
+            if (!(ExceptionsHelper.unwrapCause(e) instanceof IndexMissingException)) {
+                LOG.warn("Failed to get values from cache index " + index, e);
+            }
+            return values;
+        }
+        MultiGetItemResponse[] items = response.getResponses();
+        for (int i = 0; i < items.length; i++) {
+            if (items[i].isFailed()) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Failed to get value from cache index " + index + ": " + items[i].getFailure().getMessage());
+                }
+                continue;
+            }
+            GetResponse item = items[i].getResponse();
+            if (!item.isExists()) {
+                continue;
+            }
+            String key = remote.get(i);
+            try {
+                byte[] valueBytes = fromSource(key, item.getSourceAsBytesRef());
+                if (valueBytes != null) {
+                    V value = codec.read(new DataInputStream(new ByteArrayInputStream(valueBytes)));
+                    nearCache.put(key, value, valueBytes.length);
+                    values.put(key, value);
+                }
+            } catch (IOException e) {
+                LOG.warn("Failed to decode cache value for key " + key, e);
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public void remove(String key) {
+        nearCache.remove(key);
+        client.prepareDelete(index, TYPE, toId(key)).execute(new ActionListener<DeleteResponse>() {
+            @Override
+            public void onResponse(DeleteResponse response) {
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Failed to remove value from cache index " + index, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Clears near cache of this node and starts deleting all documents of the index, doesn't wait for the deletion
+     */
+    @Override
+    public void clear() {
+        nearCache.clear();
+        client.prepareDeleteByQuery(index).setQuery(QueryBuilders.matchAllQuery())
+                .execute(new ActionListener<DeleteByQueryResponse>() {
+                    @Override
+                    public void onResponse(DeleteByQueryResponse response) {
+                        LOG.info("Cleared cache index " + index);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        if (!(ExceptionsHelper.unwrapCause(e) instanceof IndexMissingException)) {
+                            LOG.warn("Error clearing cache index " + index, e);
+                        }
+                    }
+                });
+    }
+
+    public NearCache<String, V> getNearCache() {
+        return nearCache;
+    }
+
+    private void ensureIndex(final Runnable then) {
+        if (indexCreated.get()) {
+            then.run();
+            return;
+        }
+        XContentBuilder mapping;
+        try {
+            mapping = XContentFactory.jsonBuilder().startObject().startObject(TYPE)
+                    .startObject("_all").field("enabled", false).endObject()
+                    .startObject("_ttl").field("enabled", true).field("default", ttl.millis()).endObject()
+                    .startObject("properties")
+                    .startObject(KEY_FIELD).field("type", "string").field("index", "no").endObject()
+                    .startObject(VALUE_FIELD).field("type", "binary").endObject()
+                    .endObject().endObject().endObject();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to build cache index mapping", e);
+        }
+        client.admin().indices().prepareCreate(index)
+                .setSettings(ImmutableSettings.settingsBuilder()
+                        .put("number_of_shards", shards).put("number_of_replicas", replicas))
+                .addMapping(TYPE, mapping)
+                .execute(new ActionListener<CreateIndexResponse>() {
+                    @Override
+                    public void onResponse(CreateIndexResponse response) {
+                        LOG.info("Created cache index " + index);
+                        indexCreated.set(true);
+                        then.run();
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        if (ExceptionsHelper.unwrapCause(e) instanceof IndexAlreadyExistsException) {
+                            indexCreated.set(true);
+                            then.run();
+                        } else {
+                            LOG.warn("Failed to create cache index " + index, e);
+                        }
+                    }
+                });
+    }
+
+    private byte[] encode(V value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        codec.write(value, out);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    static String toId(String key) {
+        byte[] keyBytes;
+        try {
+            keyBytes = key.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        long[] hash = MurmurHash3.hash128(keyBytes, 0, keyBytes.length, SEED);
+        return String.format("%016x%016x", hash[0], hash[1]);
+    }
+
+    static XContentBuilder toSource(String key, byte[] value) throws IOException {
+        return XContentFactory.smileBuilder().startObject().field(KEY_FIELD, key).field(VALUE_FIELD, value).endObject();
+    }
+
+    /**
+     * @return value bytes, <code>null</code> if document belongs to a different key with the same hash
+     */
+    static byte[] fromSource(String key, BytesReference source) throws IOException {
+        XContentParser parser = XContentHelper.createParser(source);
+        try {
+            String documentKey = null;
+            byte[] value = null;
+            String field = null;
+            XContentParser.Token token;
+            while ((token = parser.nextToken()) != null) {
+                if (token == XContentParser.Token.FIELD_NAME) {
+                    field = parser.currentName();
+                } else if (KEY_FIELD.equals(field) && token == XContentParser.Token.VALUE_STRING) {
+                    documentKey = parser.text();
+                } else if (VALUE_FIELD.equals(field) && token.isValue()) {
+                    value = parser.binaryValue();
+                }
+            }
+            return key.equals(documentKey) ? value : null;
+        } finally {
+            parser.close();
+        }
+    }
+}
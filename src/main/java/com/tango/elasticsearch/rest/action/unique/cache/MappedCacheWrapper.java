@@ -0,0 +1,547 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+import com.tango.elasticsearch.rest.action.unique.util.MurmurHash3;
+
+/**
+ * Cache keeping encoded values in memory mapped segment files, outside of JVM heap.
+ * <p/>
+ * Values are appended to the newest segment, when total size of segments exceeds the limit the oldest segment is
+ * dropped as a whole. Keys are looked up in a memory mapped open addressing table of 128-bit key hashes pointing to
+ * records in segments, so reopening the cache after restart only maps the files back. The index is rewritten with
+ * live slots only when a segment is dropped or too many entries were removed, so that lookups of missing keys don't
+ * probe through dead slots.
+ * <p/>
+ * Segment record: <code>int key length, int value length, key bytes (UTF-8), value bytes</code>.
+ * Index slot: <code>long hash, long hash, int segment generation, int record offset, int record length, int unused</code>.
+ * <p/>
+ * Owner has to {@link #close()} the cache, so that written entries are forced to disk.
+ */
+public class MappedCacheWrapper<V> implements CacheWrapper<String, V>, Closeable {
+
+    protected static final Logger LOG = Logger.getLogger(MappedCacheWrapper.class);
+
+    private static final int MAGIC = 0x55544d43;
+    private static final int VERSION = 1;
+    private static final String INDEX_FILE = "index.dat";
+    private static final String REBUILT_INDEX_FILE = "index.dat.tmp";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    // magic, version, capacity, first live generation
+    private static final int INDEX_HEADER_SIZE = 16;
+    private static final int SLOT_SIZE = 32;
+    // magic, write position
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final long SEED = 0x3c6ef372fe94f82bL;
+    private static final int REMOVED_GENERATION = -1;
+    // share of index slots that may hold removed entries before index is rebuilt
+    private static final int MAX_REMOVED_RATIO = 4;
+
+    private final File directory;
+    private final ValueCodec<V> codec;
+    private final long maxSize;
+    private final int segmentSize;
+    private final int capacity;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TreeMap<Integer, MappedByteBuffer> segments = new TreeMap<Integer, MappedByteBuffer>();
+    private MappedByteBuffer index;
+    private int removedSlots;
+
+    /**
+     * @param maxSize max total size of segment files in bytes
+     * @param segmentSize size of one segment file in bytes, values bigger than that are not cached
+     * @param capacity number of index slots, max number of entries
+     */
+    public MappedCacheWrapper(File directory, ValueCodec<V> codec, long maxSize, int segmentSize, int capacity)
+            throws IOException {
+        if (segmentSize <= SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("Cache segment size is too small: " + segmentSize);
+        }
+        if (capacity <= 0 || (long) capacity * SLOT_SIZE > Integer.MAX_VALUE - INDEX_HEADER_SIZE) {
+            throw new IllegalArgumentException("Cache capacity out of range: " + capacity);
+        }
+        this.directory = directory;
+        this.codec = codec;
+        this.maxSize = maxSize;
+        this.segmentSize = segmentSize;
+        this.capacity = capacity;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create cache directory " + directory);
+        }
+        open();
+    }
+
+    @Override
+    public void put(String key, V value) {
+        byte[] keyBytes = toBytes(key);
+        byte[] valueBytes;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            codec.write(value, out);
+            out.close();
+            valueBytes = bytes.toByteArray();
+        } catch (IOException e) {
+            LOG.warn("Failed to encode cache value for key " + key, e);
+            return;
+        }
+        int recordLength = RECORD_HEADER_SIZE + keyBytes.length + valueBytes.length;
+        if (SEGMENT_HEADER_SIZE + recordLength > segmentSize) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Value of " + recordLength + " bytes doesn't fit cache segment, not cached: " + key);
+            }
+            return;
+        }
+        long[] hash = MurmurHash3.hash128(keyBytes, 0, keyBytes.length, SEED);
+        lock.writeLock().lock();
+        try {
+            int slot = findSlot(hash, keyBytes, true);
+            if (slot < 0) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Cache index is full, not cached: " + key);
+                }
+                return;
+            }
+            Map.Entry<Integer, MappedByteBuffer> segment = segments.lastEntry();
+            if (segment == null || segment.getValue().getInt(4) + recordLength > segmentSize) {
+                segment = addSegment();
+            }
+            ByteBuffer buffer = segment.getValue();
+            int offset = buffer.getInt(4);
+            ByteBuffer record = buffer.duplicate();
+            record.position(offset);
+            record.putInt(keyBytes.length);
+            record.putInt(valueBytes.length);
+            record.put(keyBytes);
+            record.put(valueBytes);
+            buffer.putInt(4, offset + recordLength);
+
+            // segments could have been dropped, slot might be stale now
+            slot = findSlot(hash, keyBytes, true);
+            int position = slotPosition(slot);
+            if (index.getInt(position + 16) == REMOVED_GENERATION) {
+                removedSlots--;
+            }
+            index.putInt(position + 16, 0);
+            index.putLong(position, hash[0]);
+            index.putLong(position + 8, hash[1]);
+            index.putInt(position + 20, offset);
+            index.putInt(position + 24, recordLength);
+            index.putInt(position + 16, segment.getKey());
+        } catch (IOException e) {
+            LOG.warn("Failed to write cache value for key " + key, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(String key, V value, long cost) {
+        put(key, value);
+    }
+
+    @Override
+    public V get(String key) {
+        byte[] keyBytes = toBytes(key);
+        long[] hash = MurmurHash3.hash128(keyBytes, 0, keyBytes.length, SEED);
+        byte[] valueBytes;
+        lock.readLock().lock();
+        try {
+            int slot = findSlot(hash, keyBytes, false);
+            if (slot < 0) {
+                return null;
+            }
+            int position = slotPosition(slot);
+            ByteBuffer record = segments.get(index.getInt(position + 16)).duplicate();
+            record.position(index.getInt(position + 20) + RECORD_HEADER_SIZE - 4);
+            valueBytes = new byte[record.getInt()];
+            record.position(record.position() + keyBytes.length);
+            record.get(valueBytes);
+        } finally {
+            lock.readLock().unlock();
+        }
+        try {
+            return codec.read(new DataInputStream(new ByteArrayInputStream(valueBytes)));
+        } catch (IOException e) {
+            LOG.warn("Failed to decode cache value for key " + key, e);
+            return null;
+        }
+    }
+
+    @Override
+    public Map<String, V> getAll(Collection<String> keys) {
+        Map<String, V> values = new HashMap<String, V>();
+        for (String key : keys) {
+            V value = get(key);
+            if (value != null) {
+                values.put(key, value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Frees index slot of given key, its record stays in segment until the segment is dropped.
+     */
+    @Override
+    public void remove(String key) {
+        byte[] keyBytes = toBytes(key);
+        long[] hash = MurmurHash3.hash128(keyBytes, 0, keyBytes.length, SEED);
+        lock.writeLock().lock();
+        try {
+            int slot = findSlot(hash, keyBytes, false);
+            if (slot >= 0) {
+                // dead generation, skipped on lookup and reused on insert
+                index.putInt(slotPosition(slot) + 16, REMOVED_GENERATION);
+                if (++removedSlots > capacity / MAX_REMOVED_RATIO) {
+                    rebuildIndex();
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("Failed to rebuild cache index", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            int nextGeneration = segments.isEmpty() ? firstLiveGeneration() : segments.lastKey() + 1;
+            while (!segments.isEmpty()) {
+                dropOldestSegment();
+            }
+            for (int position = INDEX_HEADER_SIZE; position < index.capacity(); position += 4) {
+                index.putInt(position, 0);
+            }
+            index.putInt(12, nextGeneration);
+            removedSlots = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void flush() {
+        lock.writeLock().lock();
+        try {
+            for (MappedByteBuffer segment : segments.values()) {
+                segment.force();
+            }
+            index.force();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Forces entries to disk and releases mappings, cache can't be used afterwards.
+     */
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            if (index == null) {
+                return;
+            }
+            for (MappedByteBuffer segment : segments.values()) {
+                segment.force();
+                unmap(segment);
+            }
+            segments.clear();
+            index.force();
+            unmap(index);
+            index = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return total size of segment files in bytes
+     */
+    public long getSize() {
+        lock.readLock().lock();
+        try {
+            return (long) segments.size() * segmentSize;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of index slots of removed entries and dropped segments
+     */
+    int getDeadSlots() {
+        lock.readLock().lock();
+        try {
+            int dead = 0;
+            int firstLive = firstLiveGeneration();
+            for (int slot = 0; slot < capacity; slot++) {
+                int generation = index.getInt(slotPosition(slot) + 16);
+                if (generation != 0 && (generation < firstLive || !segments.containsKey(generation))) {
+                    dead++;
+                }
+            }
+            return dead;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void open() throws IOException {
+        File indexFile = new File(directory, INDEX_FILE);
+        long indexSize = INDEX_HEADER_SIZE + (long) capacity * SLOT_SIZE;
+        boolean valid = indexFile.length() == indexSize;
+        index = map(indexFile, indexSize);
+        valid = valid && index.getInt(0) == MAGIC && index.getInt(4) == VERSION && index.getInt(8) == capacity;
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            throw new IOException("Can't list cache directory " + directory);
+        }
+        if (!valid) {
+            LOG.info("Cache index in " + directory + " is missing or has different capacity, cache is cleared");
+            for (File file : files) {
+                if (!file.delete()) {
+                    throw new IOException("Can't delete cache segment " + file);
+                }
+            }
+            for (int position = 0; position < indexSize; position += 4) {
+                index.putInt(position, 0);
+            }
+            index.putInt(0, MAGIC);
+            index.putInt(4, VERSION);
+            index.putInt(8, capacity);
+            index.putInt(12, 1);
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            int generation = Integer.parseInt(file.getName().substring(SEGMENT_PREFIX.length(),
+                    file.getName().length() - SEGMENT_SUFFIX.length()));
+            if (generation < firstLiveGeneration() || file.length() != segmentSize) {
+                if (!file.delete()) {
+                    throw new IOException("Can't delete cache segment " + file);
+                }
+                continue;
+            }
+            MappedByteBuffer segment = map(file, segmentSize);
+            if (segment.getInt(0) != MAGIC) {
+                segment.putInt(0, MAGIC);
+                segment.putInt(4, SEGMENT_HEADER_SIZE);
+            }
+            segments.put(generation, segment);
+        }
+        if (!evict() && getDeadSlots() > 0) {
+            // segments dropped or entries removed before the index was rebuilt last time
+            rebuildIndex();
+        }
+    }
+
+    private Map.Entry<Integer, MappedByteBuffer> addSegment() throws IOException {
+        int generation = segments.isEmpty() ? firstLiveGeneration() : segments.lastKey() + 1;
+        MappedByteBuffer segment = map(segmentFile(generation), segmentSize);
+        segment.putInt(0, MAGIC);
+        segment.putInt(4, SEGMENT_HEADER_SIZE);
+        segments.put(generation, segment);
+        evict();
+        return segments.lastEntry();
+    }
+
+    /**
+     * @return <code>true</code> if any segment was dropped
+     */
+    private boolean evict() throws IOException {
+        boolean dropped = false;
+        while (segments.size() > 1 && (long) segments.size() * segmentSize > maxSize) {
+            dropOldestSegment();
+            dropped = true;
+        }
+        if (dropped) {
+            rebuildIndex();
+        }
+        return dropped;
+    }
+
+    private void dropOldestSegment() {
+        Map.Entry<Integer, MappedByteBuffer> oldest = segments.pollFirstEntry();
+        index.putInt(12, oldest.getKey() + 1);
+        unmap(oldest.getValue());
+        File file = segmentFile(oldest.getKey());
+        if (!file.delete()) {
+            LOG.warn("Can't delete cache segment " + file);
+        }
+    }
+
+    /**
+     * Rewrites index with live slots only, so that probing for missing keys stops at the first free slot again. The
+     * new index is written to a separate file and renamed over the old one, which stays valid if this fails.
+     */
+    private void rebuildIndex() throws IOException {
+        File file = new File(directory, REBUILT_INDEX_FILE);
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Can't delete cache index " + file);
+        }
+        MappedByteBuffer rebuilt = map(file, index.capacity());
+        for (int position = 0; position < INDEX_HEADER_SIZE; position += 4) {
+            rebuilt.putInt(position, index.getInt(position));
+        }
+        int firstLive = firstLiveGeneration();
+        for (int slot = 0; slot < capacity; slot++) {
+            int position = slotPosition(slot);
+            int generation = index.getInt(position + 16);
+            if (generation < firstLive || !segments.containsKey(generation)) {
+                continue;
+            }
+            int target = (int) ((index.getLong(position) & Long.MAX_VALUE) % capacity);
+            while (rebuilt.getInt(slotPosition(target) + 16) != 0) {
+                target = (target + 1) % capacity;
+            }
+            for (int i = 0; i < SLOT_SIZE; i += 4) {
+                rebuilt.putInt(slotPosition(target) + i, index.getInt(position + i));
+            }
+        }
+        rebuilt.force();
+        if (!file.renameTo(new File(directory, INDEX_FILE))) {
+            unmap(rebuilt);
+            throw new IOException("Can't replace cache index with " + file);
+        }
+        unmap(index);
+        index = rebuilt;
+        removedSlots = 0;
+    }
+
+    /**
+     * Linear probing over index slots, dead slots (removed entries, dropped segments) are skipped on lookup and
+     * reused on insert.
+     *
+     * @param forInsert return slot to write key to if key is not found
+     * @return slot of given key, <code>-1</code> if not found and there is no free slot (or not inserting)
+     */
+    private int findSlot(long[] hash, byte[] key, boolean forInsert) {
+        int start = (int) ((hash[0] & Long.MAX_VALUE) % capacity);
+        int firstFree = -1;
+        int firstLive = firstLiveGeneration();
+        for (int i = 0; i < capacity; i++) {
+            int slot = (start + i) % capacity;
+            int position = slotPosition(slot);
+            int generation = index.getInt(position + 16);
+            if (generation == 0) {
+                return forInsert ? (firstFree >= 0 ? firstFree : slot) : -1;
+            }
+            if (generation < firstLive || !segments.containsKey(generation)) {
+                if (firstFree < 0) {
+                    firstFree = slot;
+                }
+                continue;
+            }
+            if (index.getLong(position) == hash[0] && index.getLong(position + 8) == hash[1]
+                    && keyEquals(segments.get(generation), index.getInt(position + 20), key)) {
+                return slot;
+            }
+        }
+        return forInsert ? firstFree : -1;
+    }
+
+    private static boolean keyEquals(ByteBuffer segment, int offset, byte[] key) {
+        if (offset + RECORD_HEADER_SIZE + key.length > segment.getInt(4) || segment.getInt(offset) != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (segment.get(offset + RECORD_HEADER_SIZE + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int firstLiveGeneration() {
+        return index.getInt(12);
+    }
+
+    private static int slotPosition(int slot) {
+        return INDEX_HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private File segmentFile(int generation) {
+        return new File(directory, String.format("%s%010d%s", SEGMENT_PREFIX, generation, SEGMENT_SUFFIX));
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Releases mapping right away instead of waiting for GC, so that disk space of deleted segments is freed.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            LOG.debug("Can't unmap cache segment, it is released on GC", e);
+        }
+    }
+
+    private static byte[] toBytes(String key) {
+        try {
+            return key.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
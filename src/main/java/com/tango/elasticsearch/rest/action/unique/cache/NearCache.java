@@ -0,0 +1,86 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Small least recently used heap cache bounded by total weight of its values, kept in front of a remote cache.
+ */
+public class NearCache<K, V> {
+
+    private final long maxWeight;
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+    private long weight;
+
+    public NearCache(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    public synchronized V get(K key) {
+        Entry<V> entry = entries.get(key);
+        return entry != null ? entry.value : null;
+    }
+
+    /**
+     * @param valueWeight size of value in bytes, values heavier than max weight are not kept
+     */
+    public synchronized void put(K key, V value, long valueWeight) {
+        remove(key);
+        if (valueWeight > maxWeight) {
+            return;
+        }
+        for (Iterator<Entry<V>> iterator = entries.values().iterator();
+             weight + valueWeight > maxWeight && iterator.hasNext(); ) {
+            weight -= iterator.next().weight;
+            iterator.remove();
+        }
+        entries.put(key, new Entry<V>(value, valueWeight));
+        weight += valueWeight;
+    }
+
+    public synchronized void remove(K key) {
+        Entry<V> entry = entries.remove(key);
+        if (entry != null) {
+            weight -= entry.weight;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long weight;
+
+        private Entry(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,408 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.codec;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable compressed set of non negative ints, see <a href="http://roaringbitmap.org">Roaring bitmaps</a>.
+ * <p/>
+ * Values are grouped by their high 16 bits into containers. A container keeps low 16 bits of its values either as
+ * sorted array, when it has up to {@link #ARRAY_MAX_SIZE} values, or as 2^16 bit bitmap otherwise. Containers are
+ * shared between bitmaps built by set operations.
+ */
+public class RoaringBitmap {
+
+    public static final int ARRAY_MAX_SIZE = 4096;
+    public static final RoaringBitmap EMPTY = new RoaringBitmap(new char[0], new Container[0], 0);
+
+    private static final int BITMAP_WORDS = 1 << 10;
+
+    private final char[] keys;
+    private final Container[] containers;
+    private final int size;
+
+    private RoaringBitmap(char[] keys, Container[] containers, int size) {
+        this.keys = keys;
+        this.containers = containers;
+        this.size = size;
+    }
+
+    /**
+     * @param values non negative values, sorted in place, duplicates are skipped
+     */
+    public static RoaringBitmap of(int[] values, int length) {
+        if (length == 0) {
+            return EMPTY;
+        }
+        Arrays.sort(values, 0, length);
+        Builder builder = new Builder(length / ARRAY_MAX_SIZE + 1);
+        int start = 0;
+        while (start < length) {
+            char key = highBits(values[start]);
+            int end = start + 1;
+            while (end < length && highBits(values[end]) == key) {
+                end++;
+            }
+            char[] low = new char[end - start];
+            int count = 0;
+            for (int i = start; i < end; i++) {
+                char value = (char) values[i];
+                if (count == 0 || low[count - 1] != value) {
+                    low[count++] = value;
+                }
+            }
+            builder.add(key, count > ARRAY_MAX_SIZE ? Container.bitmapOf(low, count) : new Container(low, count));
+            start = end;
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return bitmap with values present in any of given bitmaps
+     */
+    public static RoaringBitmap or(Collection<RoaringBitmap> bitmaps) {
+        if (bitmaps.size() == 1) {
+            return bitmaps.iterator().next();
+        }
+        List<Entry> entries = new ArrayList<Entry>();
+        for (RoaringBitmap bitmap : bitmaps) {
+            for (int i = 0; i < bitmap.size; i++) {
+                entries.add(new Entry(bitmap.keys[i], bitmap.containers[i]));
+            }
+        }
+        // stable, so containers of one key stay in bitmaps order
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry o1, Entry o2) {
+                return o1.key - o2.key;
+            }
+        });
+        Builder builder = new Builder(entries.size());
+        long[] words = null;
+        int start = 0;
+        while (start < entries.size()) {
+            char key = entries.get(start).key;
+            int end = start + 1;
+            while (end < entries.size() && entries.get(end).key == key) {
+                end++;
+            }
+            if (end - start == 1) {
+                builder.add(key, entries.get(start).container);
+            } else {
+                if (words == null) {
+                    words = new long[BITMAP_WORDS];
+                } else {
+                    Arrays.fill(words, 0);
+                }
+                for (int i = start; i < end; i++) {
+                    entries.get(i).container.orInto(words);
+                }
+                builder.add(key, Container.fromWords(words));
+            }
+            start = end;
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return bitmap with values present in both given bitmaps
+     */
+    public static RoaringBitmap and(RoaringBitmap first, RoaringBitmap second) {
+        Builder builder = new Builder(Math.min(first.size, second.size));
+        int i = 0;
+        int j = 0;
+        while (i < first.size && j < second.size) {
+            if (first.keys[i] < second.keys[j]) {
+                i++;
+            } else if (first.keys[i] > second.keys[j]) {
+                j++;
+            } else {
+                builder.add(first.keys[i], first.containers[i].and(second.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return builder.build();
+    }
+
+    public boolean contains(int value) {
+        int index = Arrays.binarySearch(keys, 0, size, highBits(value));
+        return index >= 0 && containers[index].contains((char) value);
+    }
+
+    public long cardinality() {
+        long result = 0;
+        for (int i = 0; i < size; i++) {
+            result += containers[i].cardinality;
+        }
+        return result;
+    }
+
+    /**
+     * @return values in ascending order
+     */
+    public int[] toArray() {
+        long cardinality = cardinality();
+        if (cardinality > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Too many values: " + cardinality);
+        }
+        int[] result = new int[(int) cardinality];
+        int position = 0;
+        for (int i = 0; i < size; i++) {
+            position = containers[i].copyTo(keys[i] << 16, result, position);
+        }
+        return result;
+    }
+
+    /**
+     * @return encoded length in bytes
+     */
+    public long sizeInBytes() {
+        long result = 4;
+        for (int i = 0; i < size; i++) {
+            result += 4 + containers[i].sizeInBytes();
+        }
+        return result;
+    }
+
+    /**
+     * Every container is written as <code>key cardinality-1</code> followed by its values or bitmap words, which of
+     * them is told by cardinality.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            Container container = containers[i];
+            out.writeChar(keys[i]);
+            out.writeChar(container.cardinality - 1);
+            if (container.values != null) {
+                for (int j = 0; j < container.cardinality; j++) {
+                    out.writeChar(container.values[j]);
+                }
+            } else {
+                for (long word : container.words) {
+                    out.writeLong(word);
+                }
+            }
+        }
+    }
+
+    public static RoaringBitmap readFrom(DataInput in) throws IOException {
+        int size = in.readInt();
+        if (size == 0) {
+            return EMPTY;
+        }
+        Builder builder = new Builder(size);
+        for (int i = 0; i < size; i++) {
+            char key = in.readChar();
+            int cardinality = in.readChar() + 1;
+            if (cardinality <= ARRAY_MAX_SIZE) {
+                char[] values = new char[cardinality];
+                for (int j = 0; j < cardinality; j++) {
+                    values[j] = in.readChar();
+                }
+                builder.add(key, new Container(values, cardinality));
+            } else {
+                long[] words = new long[BITMAP_WORDS];
+                for (int j = 0; j < BITMAP_WORDS; j++) {
+                    words[j] = in.readLong();
+                }
+                builder.add(key, new Container(words, cardinality));
+            }
+        }
+        return builder.build();
+    }
+
+    private static char highBits(int value) {
+        return (char) (value >>> 16);
+    }
+
+    /**
+     * Builds bitmap from containers added in key order, empty containers are skipped.
+     */
+    private static class Builder {
+
+        private char[] keys;
+        private Container[] containers;
+        private int size;
+
+        Builder(int capacity) {
+            keys = new char[Math.max(1, capacity)];
+            containers = new Container[keys.length];
+        }
+
+        void add(char key, Container container) {
+            if (container == null) {
+                return;
+            }
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                containers = Arrays.copyOf(containers, size * 2);
+            }
+            keys[size] = key;
+            containers[size] = container;
+            size++;
+        }
+
+        RoaringBitmap build() {
+            return size == 0 ? EMPTY : new RoaringBitmap(keys, containers, size);
+        }
+    }
+
+    private static class Entry {
+        private final char key;
+        private final Container container;
+
+        Entry(char key, Container container) {
+            this.key = key;
+            this.container = container;
+        }
+    }
+
+    /**
+     * Low 16 bits of values sharing high 16 bits, either sorted <code>values</code> or <code>words</code> is set.
+     */
+    private static class Container {
+
+        private final char[] values;
+        private final long[] words;
+        private final int cardinality;
+
+        Container(char[] values, int cardinality) {
+            this.values = values;
+            this.words = null;
+            this.cardinality = cardinality;
+        }
+
+        Container(long[] words, int cardinality) {
+            this.values = null;
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        static Container bitmapOf(char[] values, int count) {
+            long[] words = new long[BITMAP_WORDS];
+            for (int i = 0; i < count; i++) {
+                words[values[i] >>> 6] |= 1L << values[i];
+            }
+            return new Container(words, count);
+        }
+
+        /**
+         * @return container with bits set in given words, <code>null</code> if there are none
+         */
+        static Container fromWords(long[] words) {
+            int cardinality = 0;
+            for (long word : words) {
+                cardinality += Long.bitCount(word);
+            }
+            if (cardinality == 0) {
+                return null;
+            }
+            if (cardinality > ARRAY_MAX_SIZE) {
+                return new Container(words.clone(), cardinality);
+            }
+            char[] values = new char[cardinality];
+            int position = 0;
+            for (int i = 0; i < words.length; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    values[position++] = (char) ((i << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return new Container(values, cardinality);
+        }
+
+        boolean contains(char value) {
+            if (values != null) {
+                return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+            }
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        void orInto(long[] target) {
+            if (values != null) {
+                for (int i = 0; i < cardinality; i++) {
+                    target[values[i] >>> 6] |= 1L << values[i];
+                }
+            } else {
+                for (int i = 0; i < BITMAP_WORDS; i++) {
+                    target[i] |= words[i];
+                }
+            }
+        }
+
+        /**
+         * @return intersection, <code>null</code> if empty
+         */
+        Container and(Container other) {
+            if (values == null && other.values == null) {
+                long[] result = new long[BITMAP_WORDS];
+                for (int i = 0; i < BITMAP_WORDS; i++) {
+                    result[i] = words[i] & other.words[i];
+                }
+                return fromWords(result);
+            }
+            Container array = values != null ? this : other;
+            return array.retain(array == this ? other : this);
+        }
+
+        /**
+         * @return values of this array container present in other container, <code>null</code> if none
+         */
+        private Container retain(Container other) {
+            char[] result = new char[cardinality];
+            int count = 0;
+            for (int i = 0; i < cardinality; i++) {
+                if (other.contains(values[i])) {
+                    result[count++] = values[i];
+                }
+            }
+            return count == 0 ? null : new Container(result, count);
+        }
+
+        int copyTo(int high, int[] target, int position) {
+            if (values != null) {
+                for (int i = 0; i < cardinality; i++) {
+                    target[position++] = high | values[i];
+                }
+                return position;
+            }
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    target[position++] = high | (i << 6) + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                }
+            }
+            return position;
+        }
+
+        long sizeInBytes() {
+            return values != null ? 2L * cardinality : 8L * BITMAP_WORDS;
+        }
+    }
+}
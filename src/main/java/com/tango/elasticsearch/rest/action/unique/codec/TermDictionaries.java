@@ -0,0 +1,72 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.codec;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link TermDictionary} per field, opened when the field is first encoded. Terms of facets without a single field
+ * (scripts, several fields) share one dictionary.
+ */
+public class TermDictionaries implements Closeable {
+
+    private final File directory;
+    private final Map<String, TermDictionary> dictionaries = new HashMap<String, TermDictionary>();
+
+    /**
+     * @param directory directory dictionary files are kept in, <code>null</code> to keep dictionaries on heap only
+     */
+    public TermDictionaries(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param field field name, empty if terms don't come from a single field
+     */
+    public synchronized TermDictionary get(String field) throws IOException {
+        TermDictionary dictionary = dictionaries.get(field);
+        if (dictionary == null) {
+            dictionary = directory != null ? TermDictionary.open(new File(directory, fileName(field))) : new TermDictionary();
+            dictionaries.put(field, dictionary);
+        }
+        return dictionary;
+    }
+
+    static String fileName(String field) {
+        if (field.length() == 0) {
+            return "default.dict";
+        }
+        try {
+            return "field-" + URLEncoder.encode(field, "UTF-8") + ".dict";
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (TermDictionary dictionary : dictionaries.values()) {
+            dictionary.close();
+        }
+        dictionaries.clear();
+    }
+}
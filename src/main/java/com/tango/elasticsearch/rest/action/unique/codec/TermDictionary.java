@@ -0,0 +1,195 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.codec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StreamCorruptedException;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.util.ByteBlockPool;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+import org.elasticsearch.common.Strings;
+
+/**
+ * Append only mapping of terms to dense int ids, so that sets of terms can be kept as {@link RoaringBitmap}.
+ * <p/>
+ * Ids are only meaningful together with the dictionary that assigned them, every dictionary has a random id that
+ * bitmaps encoded with it are cached under. Dictionary backed by a file appends every new term to it and syncs the
+ * file before ids of new terms are returned, so that ids referenced by cached bitmaps survive restarts and crashes;
+ * a record torn by a crash is dropped when the file is opened, its id was never handed out. Thread safe.
+ */
+public class TermDictionary implements Closeable {
+
+    /**
+     * Longest term {@link BytesRefHash} takes, file records keep term length as char
+     */
+    public static final int MAX_TERM_LENGTH = ByteBlockPool.BYTE_BLOCK_SIZE - 2;
+
+    private static final Logger LOG = Logger.getLogger(TermDictionary.class);
+    private static final int MAGIC = 0x54444943;
+
+    private final String id;
+    private final BytesRefHash terms;
+    private final FileOutputStream file;
+    private final DataOutputStream out;
+
+    /**
+     * Creates dictionary kept on heap only
+     */
+    public TermDictionary() {
+        this(Strings.randomBase64UUID(), new BytesRefHash(), null);
+    }
+
+    private TermDictionary(String id, BytesRefHash terms, FileOutputStream file) {
+        this.id = id;
+        this.terms = terms;
+        this.file = file;
+        this.out = file != null ? new DataOutputStream(new BufferedOutputStream(file)) : null;
+    }
+
+    /**
+     * Opens dictionary stored in given file, file is created if it doesn't exist
+     */
+    public static TermDictionary open(File file) throws IOException {
+        if (!file.exists() || file.length() == 0) {
+            File parent = file.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Failed to create directory " + parent);
+            }
+            TermDictionary dictionary = new TermDictionary(Strings.randomBase64UUID(), new BytesRefHash(),
+                    new FileOutputStream(file));
+            dictionary.out.writeInt(MAGIC);
+            dictionary.out.writeUTF(dictionary.id);
+            dictionary.sync();
+            return dictionary;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        BytesRefHash terms = new BytesRefHash();
+        String id;
+        long valid;
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new StreamCorruptedException("Not a term dictionary: " + file);
+            }
+            // ids are ASCII, so their modified UTF-8 length is their length
+            id = in.readUTF();
+            valid = 4 + 2 + id.length();
+            BytesRef term = new BytesRef(16);
+            while (true) {
+                int length;
+                try {
+                    length = in.readChar();
+                    term.grow(length);
+                    in.readFully(term.bytes, 0, length);
+                } catch (EOFException e) {
+                    break;
+                }
+                term.length = length;
+                terms.add(term);
+                valid += 2 + length;
+            }
+        } finally {
+            in.close();
+        }
+        if (valid < file.length()) {
+            LOG.warn("Dropping " + (file.length() - valid) + " bytes of incomplete term at the end of " + file);
+            RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+            try {
+                truncated.setLength(valid);
+            } finally {
+                truncated.close();
+            }
+        }
+        return new TermDictionary(id, terms, new FileOutputStream(file, true));
+    }
+
+    /**
+     * @return random id of this dictionary, stays the same when dictionary is reopened
+     */
+    public String getId() {
+        return id;
+    }
+
+    public synchronized int size() {
+        return terms.size();
+    }
+
+    /**
+     * @return id of given term, <code>-1</code> if it has none yet
+     */
+    public synchronized int find(BytesRef term) {
+        return terms.find(term);
+    }
+
+    /**
+     * Assigns ids to terms seen for the first time, they are synced to disk before this method returns
+     *
+     * @return ids of given terms
+     * @throws IllegalArgumentException if a term is longer than {@link #MAX_TERM_LENGTH} bytes
+     */
+    public synchronized RoaringBitmap encode(TermsBlock block) throws IOException {
+        int[] ids = new int[block.size()];
+        int count = 0;
+        TermsBlock.TermsIterator iterator = block.iterator();
+        BytesRef term;
+        boolean added = false;
+        while ((term = iterator.next()) != null) {
+            if (term.length > MAX_TERM_LENGTH) {
+                if (added) {
+                    sync();
+                }
+                throw new IllegalArgumentException("Term of " + term.length + " bytes is longer than "
+                        + MAX_TERM_LENGTH + " bytes, it can't be encoded");
+            }
+            int id = terms.add(term);
+            if (id < 0) {
+                id = -id - 1;
+            } else if (out != null) {
+                out.writeChar(term.length);
+                out.write(term.bytes, term.offset, term.length);
+                added = true;
+            }
+            ids[count++] = id;
+        }
+        if (added) {
+            sync();
+        }
+        return RoaringBitmap.of(ids, count);
+    }
+
+    private void sync() throws IOException {
+        out.flush();
+        file.getFD().sync();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.codec;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import org.apache.lucene.util.ArrayUtil;
+
+import com.tango.elasticsearch.rest.action.unique.util.MurmurHash3;
+
+/**
+ * Helpers for terms represented as sorted unique 64-bit hashes.
+ */
+public final class TermHashes {
+
+    private static final long HASH_SEED = 0x5f3759dfL;
+
+    private TermHashes() {
+    }
+
+    public static long hash(byte[] bytes, int offset, int length) {
+        return MurmurHash3.hash64(bytes, offset, length, HASH_SEED);
+    }
+
+    /**
+     * Sorts first <code>length</code> hashes in place and returns them without duplicates
+     */
+    public static long[] sortedUnique(long[] hashes, int length) {
+        Arrays.sort(hashes, 0, length);
+        int unique = 0;
+        for (int i = 0; i < length; i++) {
+            if (unique == 0 || hashes[unique - 1] != hashes[i]) {
+                hashes[unique++] = hashes[i];
+            }
+        }
+        return unique == hashes.length ? hashes : Arrays.copyOf(hashes, unique);
+    }
+
+    /**
+     * Merges sorted unique hashes of several results, memory needed is proportional to the number of distinct hashes
+     * rather than to the sum of all inputs
+     *
+     * @return sorted hashes present in any of given arrays
+     */
+    public static long[] union(Collection<long[]> sorted) {
+        PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>(sorted.size() + 1, new Comparator<Cursor>() {
+            @Override
+            public int compare(Cursor o1, Cursor o2) {
+                long first = o1.current();
+                long second = o2.current();
+                return first < second ? -1 : (first == second ? 0 : 1);
+            }
+        });
+        int largest = 0;
+        for (long[] hashes : sorted) {
+            if (hashes.length > 0) {
+                queue.add(new Cursor(hashes));
+                largest = Math.max(largest, hashes.length);
+            }
+        }
+        long[] result = new long[largest];
+        int size = 0;
+        while (!queue.isEmpty()) {
+            Cursor cursor = queue.poll();
+            long hash = cursor.current();
+            if (size == 0 || result[size - 1] != hash) {
+                if (size == result.length) {
+                    result = ArrayUtil.grow(result, size + 1);
+                }
+                result[size++] = hash;
+            }
+            if (cursor.next()) {
+                queue.add(cursor);
+            }
+        }
+        return size == result.length ? result : Arrays.copyOf(result, size);
+    }
+
+    public static void writeTo(long[] hashes, DataOutput out) throws IOException {
+        out.writeInt(hashes.length);
+        for (long hash : hashes) {
+            out.writeLong(hash);
+        }
+    }
+
+    public static long[] readFrom(DataInput in) throws IOException {
+        long[] hashes = new long[in.readInt()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = in.readLong();
+        }
+        return hashes;
+    }
+
+    private static class Cursor {
+        private final long[] hashes;
+        private int position;
+
+        Cursor(long[] hashes) {
+            this.hashes = hashes;
+        }
+
+        long current() {
+            return hashes[position];
+        }
+
+        /**
+         * @return <code>false</code> if there are no more hashes
+         */
+        boolean next() {
+            return ++position < hashes.length;
+        }
+    }
+}
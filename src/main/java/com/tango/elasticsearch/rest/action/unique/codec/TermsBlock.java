@@ -0,0 +1,253 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.codec;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.compress.CompressorFactory;
+
+/**
+ * Immutable block of unique terms sorted in UTF-8 byte order and front coded.
+ * <p/>
+ * Every term is stored as <code>vint(shared prefix length) vint(suffix length) suffix bytes</code>, where prefix is
+ * shared with the previous term. Blocks bigger than {@link #COMPRESSION_THRESHOLD} bytes are LZF compressed when
+ * written out.
+ */
+public class TermsBlock {
+
+    public static final int COMPRESSION_THRESHOLD = 4096;
+
+    private static final TermsBlock EMPTY = new TermsBlock(BytesRef.EMPTY_BYTES, 0, 0);
+
+    private final byte[] data;
+    private final int length;
+    private final int size;
+
+    private TermsBlock(byte[] data, int length, int size) {
+        this.data = data;
+        this.length = length;
+        this.size = size;
+    }
+
+    public static TermsBlock fromStrings(Collection<String> terms) {
+        List<BytesRef> bytesRefs = new ArrayList<BytesRef>(terms.size());
+        for (String term : terms) {
+            bytesRefs.add(new BytesRef(term));
+        }
+        return fromBytesRefs(bytesRefs);
+    }
+
+    /**
+     * @param terms terms to encode, list is sorted in place, duplicates are removed
+     */
+    public static TermsBlock fromBytesRefs(List<BytesRef> terms) {
+        if (terms.isEmpty()) {
+            return EMPTY;
+        }
+        Collections.sort(terms);
+        Builder builder = new Builder();
+        for (BytesRef term : terms) {
+            builder.add(term);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return block with terms present in any of given blocks
+     */
+    public static TermsBlock union(Collection<TermsBlock> blocks) {
+        PriorityQueue<TermsIterator> queue = new PriorityQueue<TermsIterator>(blocks.size() + 1, new Comparator<TermsIterator>() {
+            @Override
+            public int compare(TermsIterator o1, TermsIterator o2) {
+                return o1.current().compareTo(o2.current());
+            }
+        });
+        for (TermsBlock block : blocks) {
+            TermsIterator iterator = block.iterator();
+            if (iterator.next() != null) {
+                queue.add(iterator);
+            }
+        }
+        Builder builder = new Builder();
+        while (!queue.isEmpty()) {
+            TermsIterator iterator = queue.poll();
+            builder.add(iterator.current());
+            if (iterator.next() != null) {
+                queue.add(iterator);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return number of terms in block
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return encoded length in bytes
+     */
+    public int sizeInBytes() {
+        return length;
+    }
+
+    public TermsIterator iterator() {
+        return new TermsIterator();
+    }
+
+    public List<String> toList() {
+        List<String> result = new ArrayList<String>(size);
+        TermsIterator iterator = iterator();
+        BytesRef term;
+        while ((term = iterator.next()) != null) {
+            result.add(term.utf8ToString());
+        }
+        return result;
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(size);
+        if (length >= COMPRESSION_THRESHOLD) {
+            byte[] compressed = CompressorFactory.defaultCompressor().compress(data, 0, length);
+            if (compressed.length < length) {
+                out.writeBoolean(true);
+                out.writeInt(compressed.length);
+                out.write(compressed);
+                return;
+            }
+        }
+        out.writeBoolean(false);
+        out.writeInt(length);
+        out.write(data, 0, length);
+    }
+
+    public static TermsBlock readFrom(DataInput in) throws IOException {
+        int size = in.readInt();
+        boolean compressed = in.readBoolean();
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        if (compressed) {
+            data = CompressorFactory.compressor(data).uncompress(data, 0, data.length);
+        }
+        return new TermsBlock(data, data.length, size);
+    }
+
+    /**
+     * Builds block from terms added in sorted order, duplicates are skipped.
+     */
+    public static class Builder {
+
+        private final BytesRef previous = new BytesRef(16);
+        private byte[] buffer = new byte[64];
+        private int position;
+        private int size;
+
+        public Builder add(BytesRef term) {
+            int prefix = 0;
+            if (size > 0) {
+                prefix = sharedPrefix(previous, term);
+                if (prefix == term.length && prefix == previous.length) {
+                    return this;
+                }
+            }
+            int suffix = term.length - prefix;
+            buffer = ArrayUtil.grow(buffer, position + 10 + suffix);
+            position = writeVInt(buffer, position, prefix);
+            position = writeVInt(buffer, position, suffix);
+            System.arraycopy(term.bytes, term.offset + prefix, buffer, position, suffix);
+            position += suffix;
+            size++;
+            previous.copyBytes(term);
+            return this;
+        }
+
+        public TermsBlock build() {
+            return size == 0 ? EMPTY : new TermsBlock(buffer, position, size);
+        }
+    }
+
+    private static int sharedPrefix(BytesRef first, BytesRef second) {
+        int limit = Math.min(first.length, second.length);
+        int i = 0;
+        while (i < limit && first.bytes[first.offset + i] == second.bytes[second.offset + i]) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int writeVInt(byte[] buffer, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+
+    /**
+     * Iterates terms in sorted order, returned {@link BytesRef} is reused between calls.
+     */
+    public class TermsIterator {
+
+        private final BytesRef term = new BytesRef(16);
+        private int position;
+
+        /**
+         * @return term returned by last {@link #next()} call
+         */
+        public BytesRef current() {
+            return term;
+        }
+
+        /**
+         * @return next term or <code>null</code> if there are no more terms
+         */
+        public BytesRef next() {
+            if (position >= length) {
+                return null;
+            }
+            int prefix = readVInt();
+            int suffix = readVInt();
+            term.grow(prefix + suffix);
+            System.arraycopy(data, position, term.bytes, prefix, suffix);
+            term.length = prefix + suffix;
+            position += suffix;
+            return term;
+        }
+
+        private int readVInt() {
+            byte b = data[position++];
+            int value = b & 0x7F;
+            for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+                b = data[position++];
+                value |= (b & 0x7F) << shift;
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.materialize;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import com.tango.elasticsearch.rest.action.unique.TermsResult;
+
+/**
+ * Periodically computes and caches results of registered templates for recently closed hours, so that first requests
+ * over them are served from cache.
+ * <p/>
+ * Hours are materialized one at a time, newest first, each hour is attempted once per template registration.
+ */
+public class Materializer implements ToXContent {
+
+    private static final ESLogger logger = Loggers.getLogger(Materializer.class);
+    private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long SEARCH_TIMEOUT_MINUTES = 10;
+
+    /**
+     * Computes template results, implemented by the action.
+     */
+    public interface Target {
+
+        /**
+         * @return <code>false</code> if hour index doesn't exist or its result is already cached
+         */
+        boolean needsMaterialization(QueryTemplate template, long hourStart);
+
+        void materialize(QueryTemplate template, long hourStart, ActionListener<TermsResult> listener);
+    }
+
+    private final Target target;
+    private final long intervalMillis;
+    private final long delayMillis;
+    private final int lookbackHours;
+    private final ConcurrentMap<String, QueryTemplate> templates = new ConcurrentHashMap<String, QueryTemplate>();
+    // template name + hour start -> hour start
+    private final ConcurrentMap<String, Long> attempted = new ConcurrentHashMap<String, Long>();
+    private ScheduledExecutorService executor;
+
+    private volatile String current;
+    private volatile long lastRunStarted;
+    private volatile long lastRunTime;
+    private volatile long runs;
+    private volatile long materialized;
+    private volatile long failed;
+
+    /**
+     * @param intervalMillis time between runs, not positive to disable background runs
+     * @param delayMillis time after hour end before it is materialized, lets late events arrive
+     * @param lookbackHours number of closed hours checked on every run
+     */
+    public Materializer(Target target, long intervalMillis, long delayMillis, int lookbackHours) {
+        this.target = target;
+        this.intervalMillis = intervalMillis;
+        this.delayMillis = delayMillis;
+        this.lookbackHours = lookbackHours;
+    }
+
+    public synchronized void start() {
+        if (intervalMillis <= 0 || executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(EsExecutors.daemonThreadFactory("unique_terms_materializer"));
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runOnce(System.currentTimeMillis());
+                } catch (Throwable e) {
+                    logger.warn("Failed to materialize templates", e);
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    public void register(QueryTemplate template) {
+        QueryTemplate previous = templates.put(template.getName(), template);
+        if (previous != null) {
+            forgetAttempts(template.getName());
+        }
+    }
+
+    /**
+     * @return <code>false</code> if there is no template with given name
+     */
+    public boolean remove(String name) {
+        boolean removed = templates.remove(name) != null;
+        forgetAttempts(name);
+        return removed;
+    }
+
+    public List<QueryTemplate> getTemplates() {
+        return new ArrayList<QueryTemplate>(templates.values());
+    }
+
+    /**
+     * Materializes closed hours of all templates that are not materialized yet.
+     *
+     * @param now current time in milliseconds
+     */
+    public void runOnce(long now) {
+        long started = System.currentTimeMillis();
+        lastRunStarted = started;
+        long lastHourEnd = (now - delayMillis) / HOUR_MILLIS * HOUR_MILLIS;
+        long firstHourStart = lastHourEnd - lookbackHours * HOUR_MILLIS;
+        for (Iterator<Long> iterator = attempted.values().iterator(); iterator.hasNext(); ) {
+            if (iterator.next() < firstHourStart) {
+                iterator.remove();
+            }
+        }
+        try {
+            for (QueryTemplate template : templates.values()) {
+                for (long hourStart = lastHourEnd - HOUR_MILLIS; hourStart >= firstHourStart; hourStart -= HOUR_MILLIS) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                    String key = template.getName() + '|' + hourStart;
+                    if (attempted.containsKey(key) || templates.get(template.getName()) != template) {
+                        continue;
+                    }
+                    if (target.needsMaterialization(template, hourStart)) {
+                        materialize(template, hourStart);
+                    }
+                    attempted.put(key, hourStart);
+                }
+            }
+        } finally {
+            current = null;
+            runs++;
+            lastRunTime = System.currentTimeMillis() - started;
+        }
+    }
+
+    private void materialize(QueryTemplate template, long hourStart) {
+        current = template.getName() + '@' + hourStart;
+        PlainActionFuture<TermsResult> future = PlainActionFuture.newFuture();
+        try {
+            target.materialize(template, hourStart, future);
+            future.actionGet(SEARCH_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+            materialized++;
+        } catch (Exception e) {
+            failed++;
+            logger.warn("Failed to materialize template [{}] for hour starting at {}", e, template.getName(), hourStart);
+        }
+    }
+
+    private void forgetAttempts(String name) {
+        String prefix = name + '|';
+        for (Iterator<String> iterator = attempted.keySet().iterator(); iterator.hasNext(); ) {
+            if (iterator.next().startsWith(prefix)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("materializer");
+        builder.field("enabled", intervalMillis > 0);
+        builder.field("interval_ms", intervalMillis);
+        builder.field("templates", templates.size());
+        builder.field("runs", runs);
+        builder.field("last_run_started", lastRunStarted);
+        builder.field("last_run_time_ms", lastRunTime);
+        builder.field("materialized", materialized);
+        builder.field("failed", failed);
+        builder.field("current", current);
+        builder.endObject();
+        return builder;
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.materialize;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import com.tango.elasticsearch.rest.action.unique.UniqueTermsMode;
+
+/**
+ * Registered request whose hourly results are computed in background once the hour is closed.
+ */
+public class QueryTemplate implements ToXContent {
+
+    private final String name;
+    private final String indexPrefix;
+    private final String source;
+    private final String cacheKey;
+    private final Map<String, String> facetCacheKeys;
+    private final Map<String, String> facetFields;
+    private final UniqueTermsMode mode;
+    private final int precision;
+
+    /**
+     * @param source canonical request source with <code>@timestamp</code> range removed
+     * @param cacheKey digest of source
+     * @param facetCacheKeys facet name -> digest of source with this facet only, used in cache keys
+     * @param facetFields facet name -> field of its terms, empty if terms don't come from a single field
+     */
+    public QueryTemplate(String name, String indexPrefix, String source, String cacheKey,
+            Map<String, String> facetCacheKeys, Map<String, String> facetFields, UniqueTermsMode mode, int precision) {
+        this.name = name;
+        this.indexPrefix = indexPrefix;
+        this.source = source;
+        this.cacheKey = cacheKey;
+        this.facetCacheKeys = facetCacheKeys;
+        this.facetFields = facetFields;
+        this.mode = mode;
+        this.precision = precision;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getIndexPrefix() {
+        return indexPrefix;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public String getCacheKey() {
+        return cacheKey;
+    }
+
+    public Map<String, String> getFacetCacheKeys() {
+        return facetCacheKeys;
+    }
+
+    public Map<String, String> getFacetFields() {
+        return facetFields;
+    }
+
+    public UniqueTermsMode getMode() {
+        return mode;
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(name);
+        builder.field("index_prefix", indexPrefix);
+        builder.field("mode", mode.name().toLowerCase());
+        if (mode == UniqueTermsMode.HLL) {
+            builder.field("precision", precision);
+        }
+        builder.field("source", source);
+        builder.field("cache_key", cacheKey);
+        builder.field("facets", facetCacheKeys.keySet());
+        builder.endObject();
+        return builder;
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.search;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.routing.IndexRoutingTable;
+import org.elasticsearch.cluster.routing.IndexShardRoutingTable;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+
+/**
+ * Limits number of per index operations running at once on this node, in total and per data node holding index
+ * primary shards.
+ * <p/>
+ * Waiting tasks are started cheapest first: cost is part of index time span covered by request multiplied by
+ * primary store size of index (see {@link IndexSizes}), so partially covered edge indices and small indices go first.
+ * Requests whose tasks don't fit into the queue are rejected as a whole.
+ * <p/>
+ * Background tasks are started after request tasks and never on a node a waiting request task is blocked on, so they
+ * don't take per node slots request tasks wait for.
+ */
+public class FanOutScheduler {
+
+    private final ClusterService clusterService;
+    private final IndexSizes indexSizes;
+    private final int maxConcurrent;
+    private final int maxConcurrentPerNode;
+    private final int maxQueued;
+
+    private final TreeSet<FanOutTask> queue = new TreeSet<FanOutTask>();
+    private final Map<String, Integer> inFlightPerNode = new HashMap<String, Integer>();
+    private int inFlight;
+    private long sequence;
+
+    /**
+     * @param clusterService used to find nodes holding index shards, per node limit is not applied if
+     *            <code>null</code>
+     * @param indexSizes used to weight task cost, number of index shards is used if <code>null</code>
+     */
+    public FanOutScheduler(ClusterService clusterService, IndexSizes indexSizes, int maxConcurrent,
+            int maxConcurrentPerNode, int maxQueued) {
+        this.clusterService = clusterService;
+        this.indexSizes = indexSizes;
+        this.maxConcurrent = maxConcurrent;
+        this.maxConcurrentPerNode = maxConcurrentPerNode;
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * Enqueues all tasks or none of them
+     *
+     * @throws EsRejectedExecutionException if queue has no room for the tasks
+     */
+    public void submit(Collection<? extends FanOutTask> tasks) {
+        if (indexSizes != null) {
+            indexSizes.refresh(System.currentTimeMillis());
+        }
+        submit(tasks, clusterService != null ? clusterService.state() : null);
+    }
+
+    void submit(Collection<? extends FanOutTask> tasks, ClusterState state) {
+        synchronized (this) {
+            if (queue.size() + tasks.size() > maxQueued) {
+                throw new EsRejectedExecutionException(String.format(
+                        "Unique terms search queue is full: %d queued, %d more requested, limit is %d",
+                        queue.size(), tasks.size(), maxQueued));
+            }
+            for (FanOutTask task : tasks) {
+                Set<String> nodes = Collections.emptySet();
+                int shards = 1;
+                IndexRoutingTable routingTable = state != null ? state.routingTable().index(task.getIndex()) : null;
+                if (routingTable != null) {
+                    nodes = new HashSet<String>();
+                    shards = 0;
+                    for (IndexShardRoutingTable shardRoutingTable : routingTable) {
+                        ShardRouting primary = shardRoutingTable.primaryShard();
+                        if (primary != null && primary.currentNodeId() != null) {
+                            nodes.add(primary.currentNodeId());
+                        }
+                        shards++;
+                    }
+                }
+                shards = Math.max(shards, 1);
+                double size = indexSizes != null ? indexSizes.getSize(task.getIndex(), shards) : shards;
+                task.enqueued(this, nodes, task.getCoverage() * size, sequence++);
+                queue.add(task);
+            }
+        }
+        dispatch();
+    }
+
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    void release(FanOutTask task) {
+        synchronized (this) {
+            inFlight--;
+            for (String node : task.getNodes()) {
+                int count = inFlightPerNode.get(node) - 1;
+                if (count == 0) {
+                    inFlightPerNode.remove(node);
+                } else {
+                    inFlightPerNode.put(node, count);
+                }
+            }
+        }
+        dispatch();
+    }
+
+    private void dispatch() {
+        List<FanOutTask> toStart = new ArrayList<FanOutTask>();
+        synchronized (this) {
+            // nodes request tasks wait for, all request tasks are queued before background tasks
+            Set<String> blockedNodes = new HashSet<String>();
+            Iterator<FanOutTask> iterator = queue.iterator();
+            while (inFlight < maxConcurrent && iterator.hasNext()) {
+                FanOutTask task = iterator.next();
+                if (task.isBackground() && !Collections.disjoint(blockedNodes, task.getNodes())) {
+                    continue;
+                }
+                if (hasNodeCapacity(task)) {
+                    iterator.remove();
+                    inFlight++;
+                    for (String node : task.getNodes()) {
+                        Integer count = inFlightPerNode.get(node);
+                        inFlightPerNode.put(node, count == null ? 1 : count + 1);
+                    }
+                    toStart.add(task);
+                } else if (!task.isBackground()) {
+                    blockedNodes.addAll(task.getNodes());
+                }
+            }
+        }
+        for (FanOutTask task : toStart) {
+            task.start();
+        }
+    }
+
+    private boolean hasNodeCapacity(FanOutTask task) {
+        for (String node : task.getNodes()) {
+            Integer count = inFlightPerNode.get(node);
+            if (count != null && count >= maxConcurrentPerNode) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
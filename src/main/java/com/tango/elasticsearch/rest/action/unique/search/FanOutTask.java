@@ -0,0 +1,138 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.search;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Asynchronous per index operation executed by {@link FanOutScheduler}.
+ * <p/>
+ * Implementation must call {@link #finished()} exactly once when operation completes, successfully or not.
+ */
+public abstract class FanOutTask implements Comparable<FanOutTask> {
+
+    private final String index;
+    private final double coverage;
+    private final boolean background;
+    private final AtomicBoolean done = new AtomicBoolean();
+
+    private FanOutScheduler scheduler;
+    private Set<String> nodes = Collections.emptySet();
+    private double cost;
+    private long sequence;
+    private long enqueuedNanos;
+    private long startedNanos;
+    private long finishedNanos;
+
+    /**
+     * @param index index operation runs against
+     * @param coverage part of index time span covered by request, 0..1
+     */
+    protected FanOutTask(String index, double coverage) {
+        this(index, coverage, false);
+    }
+
+    /**
+     * @param background background tasks are started after request tasks and not on nodes request tasks wait for
+     */
+    protected FanOutTask(String index, double coverage, boolean background) {
+        this.index = index;
+        this.coverage = coverage;
+        this.background = background;
+    }
+
+    /**
+     * Starts asynchronous operation
+     */
+    protected abstract void execute();
+
+    /**
+     * Called when operation couldn't be started
+     */
+    protected abstract void failed(Throwable e);
+
+    protected final void finished() {
+        if (done.compareAndSet(false, true)) {
+            finishedNanos = System.nanoTime();
+            scheduler.release(this);
+        }
+    }
+
+    public String getIndex() {
+        return index;
+    }
+
+    public double getCoverage() {
+        return coverage;
+    }
+
+    public boolean isBackground() {
+        return background;
+    }
+
+    public double getCost() {
+        return cost;
+    }
+
+    public long getQueueTimeMillis() {
+        return startedNanos > 0 ? TimeUnit.NANOSECONDS.toMillis(startedNanos - enqueuedNanos) : 0;
+    }
+
+    public long getRunTimeMillis() {
+        return finishedNanos > 0 ? TimeUnit.NANOSECONDS.toMillis(finishedNanos - startedNanos) : 0;
+    }
+
+    public long getRunTimeMicros() {
+        return finishedNanos > 0 ? TimeUnit.NANOSECONDS.toMicros(finishedNanos - startedNanos) : 0;
+    }
+
+    Set<String> getNodes() {
+        return nodes;
+    }
+
+    void enqueued(FanOutScheduler scheduler, Set<String> nodes, double cost, long sequence) {
+        this.scheduler = scheduler;
+        this.nodes = nodes;
+        this.cost = cost;
+        this.sequence = sequence;
+        this.enqueuedNanos = System.nanoTime();
+    }
+
+    void start() {
+        startedNanos = System.nanoTime();
+        try {
+            execute();
+        } catch (Throwable e) {
+            finished();
+            failed(e);
+        }
+    }
+
+    @Override
+    public int compareTo(FanOutTask o) {
+        if (background != o.background) {
+            return background ? 1 : -1;
+        }
+        int result = Double.compare(cost, o.cost);
+        if (result == 0) {
+            result = sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.search;
+
+import java.io.IOException;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * Queueing and execution time of per index operations of one request.
+ */
+public class FanOutTimings implements ToXContent {
+
+    private int count;
+    private long queueTime;
+    private long maxQueueTime;
+    private long runTime;
+    private long maxRunTime;
+
+    public synchronized void add(FanOutTask task) {
+        count++;
+        queueTime += task.getQueueTimeMillis();
+        maxQueueTime = Math.max(maxQueueTime, task.getQueueTimeMillis());
+        runTime += task.getRunTimeMillis();
+        maxRunTime = Math.max(maxRunTime, task.getRunTimeMillis());
+    }
+
+    @Override
+    public synchronized XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("timing");
+        builder.field("searches", count);
+        builder.field("queue_time_ms", queueTime);
+        builder.field("max_queue_time_ms", maxQueueTime);
+        builder.field("search_time_ms", runTime);
+        builder.field("max_search_time_ms", maxRunTime);
+        builder.endObject();
+        return builder;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d searches, queue time %d ms (max %d ms), search time %d ms (max %d ms)",
+                count, queueTime, maxQueueTime, runTime, maxRunTime);
+    }
+}
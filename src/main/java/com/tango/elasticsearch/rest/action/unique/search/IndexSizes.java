@@ -0,0 +1,137 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.search;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.stats.IndexStats;
+import org.elasticsearch.action.admin.indices.stats.IndicesStatsResponse;
+import org.elasticsearch.action.admin.indices.stats.ShardStats;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.index.store.StoreStats;
+
+/**
+ * Primary store sizes of indices, used to weight {@link FanOutTask} cost. Cluster state holds no index sizes, so they
+ * are taken from indices stats, refreshed asynchronously at most once per refresh interval.
+ * <p/>
+ * Thread safe.
+ */
+public class IndexSizes {
+
+    private static final ESLogger logger = Loggers.getLogger(IndexSizes.class);
+
+    private final Client client;
+    private final long refreshIntervalMillis;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    private volatile Sizes sizes = new Sizes(Collections.<String, Long>emptyMap(), 1);
+    private volatile long refreshedMillis;
+
+    /**
+     * @param client used to request indices stats, sizes are never refreshed if <code>null</code>
+     */
+    public IndexSizes(Client client, long refreshIntervalMillis) {
+        this.client = client;
+        this.refreshIntervalMillis = refreshIntervalMillis;
+    }
+
+    /**
+     * Starts refresh of sizes in background if they are older than refresh interval, current sizes are used meanwhile.
+     *
+     * @param now current time in milliseconds
+     */
+    public void refresh(final long now) {
+        if (client == null || now - refreshedMillis < refreshIntervalMillis || !refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            client.admin().indices().prepareStats().clear().setStore(true)
+                    .execute(new ActionListener<IndicesStatsResponse>() {
+                        @Override
+                        public void onResponse(IndicesStatsResponse response) {
+                            update(response, now);
+                        }
+
+                        @Override
+                        public void onFailure(Throwable e) {
+                            logger.warn("Failed to refresh index sizes", e);
+                            refreshed(now);
+                        }
+                    });
+        } catch (Throwable e) {
+            logger.warn("Failed to refresh index sizes", e);
+            refreshed(now);
+        }
+    }
+
+    /**
+     * @param shards number of index shards
+     * @return primary store size of index in bytes; for index without known size number of shards multiplied by
+     *         average primary shard size, or just number of shards if no sizes are known
+     */
+    public double getSize(String index, int shards) {
+        Sizes current = sizes;
+        Long size = current.indices.get(index);
+        return size != null ? size : (double) shards * current.averageShardSize;
+    }
+
+    void update(Map<String, Long> indices, long averageShardSize, long now) {
+        sizes = new Sizes(indices, Math.max(averageShardSize, 1));
+        refreshed(now);
+    }
+
+    private void update(IndicesStatsResponse response, long now) {
+        Map<String, Long> indices = new HashMap<String, Long>();
+        for (Map.Entry<String, IndexStats> entry : response.getIndices().entrySet()) {
+            StoreStats store = entry.getValue().getPrimaries().getStore();
+            if (store != null) {
+                indices.put(entry.getKey(), store.getSizeInBytes());
+            }
+        }
+        long total = 0;
+        int primaries = 0;
+        for (ShardStats shard : response.getShards()) {
+            StoreStats store = shard.getStats().getStore();
+            if (shard.getShardRouting().primary() && store != null) {
+                total += store.getSizeInBytes();
+                primaries++;
+            }
+        }
+        update(indices, primaries > 0 ? total / primaries : 1, now);
+    }
+
+    private void refreshed(long now) {
+        refreshedMillis = now;
+        refreshing.set(false);
+    }
+
+    private static class Sizes {
+
+        final Map<String, Long> indices;
+        final long averageShardSize;
+
+        Sizes(Map<String, Long> indices, long averageShardSize) {
+            this.indices = indices;
+            this.averageShardSize = averageShardSize;
+        }
+    }
+}
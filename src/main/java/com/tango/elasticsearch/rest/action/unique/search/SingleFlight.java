@@ -0,0 +1,133 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.search;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.action.ActionListener;
+
+/**
+ * Coalesces identical operations running at the same time: the first caller for a key runs the operation, callers
+ * that come while it is running get its result too.
+ * <p/>
+ * Operations run in background are queued behind request operations, so requests never wait for them: background
+ * callers join any operation, request callers join request operations only.
+ */
+public class SingleFlight<V> {
+
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+    private final ConcurrentMap<String, Flight> backgroundFlights = new ConcurrentHashMap<String, Flight>();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Registers listener for result of operation with given key.
+     *
+     * @return listener to complete with operation result if caller has to run the operation, <code>null</code> if
+     *         the operation is already running and given listener is notified when it completes
+     */
+    public ActionListener<V> join(String key, ActionListener<V> listener) {
+        return join(flights, key, listener);
+    }
+
+    /**
+     * Same as {@link #join(String, ActionListener)} for operation run in background, operation started by request
+     * is joined if there is one.
+     */
+    public ActionListener<V> joinBackground(String key, ActionListener<V> listener) {
+        Flight existing = flights.get(key);
+        if (existing != null && existing.add(listener)) {
+            coalesced.incrementAndGet();
+            return null;
+        }
+        return join(backgroundFlights, key, listener);
+    }
+
+    private ActionListener<V> join(ConcurrentMap<String, Flight> flights, String key, ActionListener<V> listener) {
+        while (true) {
+            Flight flight = new Flight(flights, key);
+            Flight existing = flights.putIfAbsent(key, flight);
+            if (existing == null) {
+                flight.add(listener);
+                return flight;
+            }
+            if (existing.add(listener)) {
+                coalesced.incrementAndGet();
+                return null;
+            }
+            // completing right now, it is removed from the map before listeners are notified
+            flights.remove(key, existing);
+        }
+    }
+
+    /**
+     * @return number of operations currently running
+     */
+    public int getInFlight() {
+        return flights.size() + backgroundFlights.size();
+    }
+
+    /**
+     * @return number of callers that joined already running operation
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    private class Flight implements ActionListener<V> {
+
+        private final ConcurrentMap<String, Flight> flights;
+        private final String key;
+        private final List<ActionListener<V>> listeners = new ArrayList<ActionListener<V>>(1);
+        private boolean done;
+
+        private Flight(ConcurrentMap<String, Flight> flights, String key) {
+            this.flights = flights;
+            this.key = key;
+        }
+
+        private synchronized boolean add(ActionListener<V> listener) {
+            if (done) {
+                return false;
+            }
+            listeners.add(listener);
+            return true;
+        }
+
+        private synchronized List<ActionListener<V>> complete() {
+            done = true;
+            flights.remove(key, this);
+            return listeners;
+        }
+
+        @Override
+        public void onResponse(V response) {
+            for (ActionListener<V> listener : complete()) {
+                listener.onResponse(response);
+            }
+        }
+
+        @Override
+        public void onFailure(Throwable e) {
+            for (ActionListener<V> listener : complete()) {
+                listener.onFailure(e);
+            }
+        }
+    }
+}
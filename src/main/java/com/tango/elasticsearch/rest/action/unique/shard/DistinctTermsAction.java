@@ -0,0 +1,42 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.shard;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.client.Client;
+
+/**
+ * Collects distinct values of unique terms facet field on every shard and reduces them on coordinating node.
+ */
+public class DistinctTermsAction extends Action<DistinctTermsRequest, DistinctTermsResponse, DistinctTermsRequestBuilder> {
+
+    public static final DistinctTermsAction INSTANCE = new DistinctTermsAction();
+    public static final String NAME = "unique/distinct";
+
+    private DistinctTermsAction() {
+        super(NAME);
+    }
+
+    @Override
+    public DistinctTermsResponse newResponse() {
+        return new DistinctTermsResponse();
+    }
+
+    @Override
+    public DistinctTermsRequestBuilder newRequestBuilder(Client client) {
+        return new DistinctTermsRequestBuilder(client);
+    }
+}
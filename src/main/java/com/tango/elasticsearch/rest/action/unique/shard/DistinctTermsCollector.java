@@ -0,0 +1,127 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.shard;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+import org.elasticsearch.common.hppc.LongOpenHashSet;
+import org.elasticsearch.common.lucene.docset.DocIdSets;
+import org.elasticsearch.index.fielddata.BytesValues;
+import org.elasticsearch.index.fielddata.IndexFieldData;
+
+import com.tango.elasticsearch.rest.action.unique.TermsResult;
+import com.tango.elasticsearch.rest.action.unique.UniqueTermsMode;
+import com.tango.elasticsearch.rest.action.unique.codec.TermHashes;
+import com.tango.elasticsearch.rest.action.unique.codec.TermsBlock;
+import com.tango.elasticsearch.rest.action.unique.sketch.HyperLogLog;
+
+/**
+ * Collects distinct values of one field of matching documents from field data, documents can be further restricted
+ * by facet filter.
+ * <p/>
+ * Depending on mode values are kept as bytes, 64-bit hashes or offered to a sketch, result is never truncated.
+ */
+public class DistinctTermsCollector extends Collector {
+
+    private final IndexFieldData<?> fieldData;
+    private final Filter filter;
+    private final UniqueTermsMode mode;
+    private final BytesRefHash terms;
+    private final LongOpenHashSet hashes;
+    private final HyperLogLog sketch;
+    private BytesValues values = BytesValues.EMPTY;
+    private Bits accepted;
+    private long total;
+    private long missing;
+
+    /**
+     * @param fieldData field data of collected field, <code>null</code> if field is not mapped
+     * @param filter facet filter, <code>null</code> if all collected documents are accepted
+     */
+    public DistinctTermsCollector(IndexFieldData<?> fieldData, Filter filter, UniqueTermsMode mode, int precision) {
+        this.fieldData = fieldData;
+        this.filter = filter;
+        this.mode = mode;
+        terms = mode == UniqueTermsMode.EXACT ? new BytesRefHash() : null;
+        hashes = mode == UniqueTermsMode.HASH ? new LongOpenHashSet() : null;
+        sketch = mode == UniqueTermsMode.HLL ? new HyperLogLog(precision) : null;
+    }
+
+    @Override
+    public void setScorer(Scorer scorer) throws IOException {
+    }
+
+    @Override
+    public void setNextReader(AtomicReaderContext context) throws IOException {
+        values = fieldData != null ? fieldData.load(context).getBytesValues(false) : BytesValues.EMPTY;
+        if (filter != null) {
+            DocIdSet docIdSet = filter.getDocIdSet(context, null);
+            accepted = docIdSet != null ? DocIdSets.toSafeBits(context.reader(), docIdSet) : new Bits.MatchNoBits(context.reader().maxDoc());
+        }
+    }
+
+    @Override
+    public void collect(int doc) throws IOException {
+        if (accepted != null && !accepted.get(doc)) {
+            return;
+        }
+        int count = values.setDocument(doc);
+        if (count == 0) {
+            missing++;
+            return;
+        }
+        total += count;
+        for (int i = 0; i < count; i++) {
+            BytesRef value = values.nextValue();
+            if (mode == UniqueTermsMode.EXACT) {
+                terms.add(value);
+            } else if (mode == UniqueTermsMode.HASH) {
+                hashes.add(TermHashes.hash(value.bytes, value.offset, value.length));
+            } else {
+                sketch.offer(value.bytes, value.offset, value.length);
+            }
+        }
+    }
+
+    @Override
+    public boolean acceptsDocsOutOfOrder() {
+        return true;
+    }
+
+    public TermsResult getResult() {
+        if (mode == UniqueTermsMode.HLL) {
+            return new TermsResult(sketch, total, missing, 0);
+        } else if (mode == UniqueTermsMode.HASH) {
+            long[] sorted = hashes.toArray();
+            return new TermsResult(TermHashes.sortedUnique(sorted, sorted.length), total, missing, 0);
+        }
+        int[] ids = terms.sort(BytesRef.getUTF8SortedAsUnicodeComparator());
+        TermsBlock.Builder builder = new TermsBlock.Builder();
+        BytesRef term = new BytesRef();
+        for (int i = 0; i < terms.size(); i++) {
+            builder.add(terms.get(ids[i], term));
+        }
+        return new TermsResult(builder.build(), total, missing, 0);
+    }
+}
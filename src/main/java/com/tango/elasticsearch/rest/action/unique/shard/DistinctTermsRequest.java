@@ -0,0 +1,112 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.shard;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+import java.io.IOException;
+
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.support.broadcast.BroadcastOperationRequest;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import com.tango.elasticsearch.rest.action.unique.UniqueTermsMode;
+import com.tango.elasticsearch.rest.action.unique.sketch.HyperLogLog;
+
+/**
+ * Search source with unique terms facet, query and facet filter of the facet restrict collected documents.
+ */
+public class DistinctTermsRequest extends BroadcastOperationRequest<DistinctTermsRequest> {
+
+    private BytesReference source;
+    private String[] types = Strings.EMPTY_ARRAY;
+    private UniqueTermsMode mode = UniqueTermsMode.EXACT;
+    private int precision = HyperLogLog.DEFAULT_PRECISION;
+    long nowInMillis;
+
+    public DistinctTermsRequest(String... indices) {
+        super(indices);
+    }
+
+    @Override
+    public ActionRequestValidationException validate() {
+        ActionRequestValidationException validationException = super.validate();
+        if (source == null) {
+            validationException = addValidationError("source is missing", validationException);
+        }
+        return validationException;
+    }
+
+    @Override
+    protected void beforeStart() {
+        nowInMillis = System.currentTimeMillis();
+    }
+
+    public BytesReference source() {
+        return source;
+    }
+
+    public DistinctTermsRequest source(BytesReference source) {
+        this.source = source;
+        return this;
+    }
+
+    public String[] types() {
+        return types;
+    }
+
+    public DistinctTermsRequest types(String... types) {
+        this.types = types;
+        return this;
+    }
+
+    public UniqueTermsMode mode() {
+        return mode;
+    }
+
+    public int precision() {
+        return precision;
+    }
+
+    public DistinctTermsRequest mode(UniqueTermsMode mode, int precision) {
+        this.mode = mode;
+        this.precision = precision;
+        return this;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        source = in.readBytesReference();
+        types = in.readStringArray();
+        mode = UniqueTermsMode.values()[in.readByte()];
+        precision = in.readVInt();
+        nowInMillis = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeBytesReference(source);
+        out.writeStringArray(types);
+        out.writeByte((byte) mode.ordinal());
+        out.writeVInt(precision);
+        out.writeVLong(nowInMillis);
+    }
+}
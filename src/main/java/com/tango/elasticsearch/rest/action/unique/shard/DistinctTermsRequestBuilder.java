@@ -0,0 +1,52 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.shard;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.broadcast.BroadcastOperationRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.internal.InternalGenericClient;
+import org.elasticsearch.common.bytes.BytesReference;
+
+import com.tango.elasticsearch.rest.action.unique.UniqueTermsMode;
+
+public class DistinctTermsRequestBuilder
+        extends BroadcastOperationRequestBuilder<DistinctTermsRequest, DistinctTermsResponse, DistinctTermsRequestBuilder> {
+
+    public DistinctTermsRequestBuilder(Client client) {
+        super((InternalGenericClient) client, new DistinctTermsRequest());
+    }
+
+    public DistinctTermsRequestBuilder setSource(BytesReference source) {
+        request.source(source);
+        return this;
+    }
+
+    public DistinctTermsRequestBuilder setTypes(String... types) {
+        request.types(types);
+        return this;
+    }
+
+    public DistinctTermsRequestBuilder setMode(UniqueTermsMode mode, int precision) {
+        request.mode(mode, precision);
+        return this;
+    }
+
+    @Override
+    protected void doExecute(ActionListener<DistinctTermsResponse> listener) {
+        ((Client) client).execute(DistinctTermsAction.INSTANCE, request, listener);
+    }
+}
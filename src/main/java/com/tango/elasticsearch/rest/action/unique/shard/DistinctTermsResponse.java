@@ -0,0 +1,86 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.shard;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.action.ShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastOperationResponse;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import com.tango.elasticsearch.rest.action.unique.TermsResult;
+
+/**
+ * Distinct values of every facet of all successful shards merged into one result per facet.
+ */
+public class DistinctTermsResponse extends BroadcastOperationResponse {
+
+    private Map<String, TermsResult> results;
+
+    DistinctTermsResponse() {
+    }
+
+    DistinctTermsResponse(Map<String, TermsResult> results, int totalShards, int successfulShards, int failedShards,
+            List<ShardOperationFailedException> shardFailures) {
+        super(totalShards, successfulShards, failedShards, shardFailures);
+        this.results = results;
+    }
+
+    /**
+     * @return facet name -> merged result, empty if no shard succeeded
+     */
+    public Map<String, TermsResult> getResults() {
+        return results;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        results = readResults(in);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        writeResults(results, out);
+    }
+
+    static Map<String, TermsResult> readResults(StreamInput in) throws IOException {
+        int size = in.readVInt();
+        Map<String, TermsResult> results = new LinkedHashMap<String, TermsResult>();
+        DataInputStream data = new DataInputStream(in);
+        for (int i = 0; i < size; i++) {
+            results.put(in.readString(), TermsResult.readFrom(data));
+        }
+        return results;
+    }
+
+    static void writeResults(Map<String, TermsResult> results, StreamOutput out) throws IOException {
+        out.writeVInt(results.size());
+        DataOutputStream data = new DataOutputStream(out);
+        for (Map.Entry<String, TermsResult> result : results.entrySet()) {
+            out.writeString(result.getKey());
+            result.getValue().writeTo(data);
+            data.flush();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.shard;
+
+import java.io.IOException;
+
+import org.elasticsearch.action.support.broadcast.BroadcastShardOperationRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import com.tango.elasticsearch.rest.action.unique.UniqueTermsMode;
+
+class ShardDistinctTermsRequest extends BroadcastShardOperationRequest {
+
+    private BytesReference source;
+    private String[] types;
+    private String[] filteringAliases;
+    private UniqueTermsMode mode;
+    private int precision;
+    private long nowInMillis;
+
+    ShardDistinctTermsRequest() {
+    }
+
+    ShardDistinctTermsRequest(String index, int shardId, String[] filteringAliases, DistinctTermsRequest request) {
+        super(index, shardId, request);
+        this.source = request.source();
+        this.types = request.types();
+        this.filteringAliases = filteringAliases;
+        this.mode = request.mode();
+        this.precision = request.precision();
+        this.nowInMillis = request.nowInMillis;
+    }
+
+    public BytesReference source() {
+        return source;
+    }
+
+    public String[] types() {
+        return types;
+    }
+
+    public String[] filteringAliases() {
+        return filteringAliases;
+    }
+
+    public UniqueTermsMode mode() {
+        return mode;
+    }
+
+    public int precision() {
+        return precision;
+    }
+
+    public long nowInMillis() {
+        return nowInMillis;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        source = in.readBytesReference();
+        types = in.readStringArray();
+        filteringAliases = in.readStringArray();
+        mode = UniqueTermsMode.values()[in.readByte()];
+        precision = in.readVInt();
+        nowInMillis = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeBytesReference(source);
+        out.writeStringArray(types);
+        out.writeStringArrayNullable(filteringAliases);
+        out.writeByte((byte) mode.ordinal());
+        out.writeVInt(precision);
+        out.writeVLong(nowInMillis);
+    }
+}
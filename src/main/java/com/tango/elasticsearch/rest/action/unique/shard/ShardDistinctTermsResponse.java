@@ -0,0 +1,57 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.shard;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.elasticsearch.action.support.broadcast.BroadcastShardOperationResponse;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import com.tango.elasticsearch.rest.action.unique.TermsResult;
+
+class ShardDistinctTermsResponse extends BroadcastShardOperationResponse {
+
+    private Map<String, TermsResult> results;
+
+    ShardDistinctTermsResponse() {
+    }
+
+    ShardDistinctTermsResponse(String index, int shardId, Map<String, TermsResult> results) {
+        super(index, shardId);
+        this.results = results;
+    }
+
+    /**
+     * @return facet name -> shard result
+     */
+    public Map<String, TermsResult> getResults() {
+        return results;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        results = DistinctTermsResponse.readResults(in);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        DistinctTermsResponse.writeResults(results, out);
+    }
+}
@@ -0,0 +1,318 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.shard;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.MultiCollector;
+import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.ElasticSearchIllegalArgumentException;
+import org.elasticsearch.action.ShardOperationFailedException;
+import org.elasticsearch.action.support.DefaultShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.TransportBroadcastOperationAction;
+import org.elasticsearch.cache.recycler.CacheRecycler;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.block.ClusterBlockException;
+import org.elasticsearch.cluster.block.ClusterBlockLevel;
+import org.elasticsearch.cluster.routing.GroupShardsIterator;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.query.ParsedFilter;
+import org.elasticsearch.index.query.ParsedQuery;
+import org.elasticsearch.index.query.QueryParseContext;
+import org.elasticsearch.index.service.IndexService;
+import org.elasticsearch.index.shard.service.IndexShard;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.search.SearchShardTarget;
+import org.elasticsearch.search.internal.SearchContext;
+import org.elasticsearch.search.internal.ShardSearchRequest;
+import org.elasticsearch.search.query.QueryPhaseExecutionException;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import com.tango.elasticsearch.rest.action.unique.TermsResult;
+
+/**
+ * Runs {@link DistinctTermsCollector} on every shard instead of terms facets, so only compact per shard results are
+ * sent to coordinating node. All facets of request are collected in one pass over documents matching the query.
+ * <p/>
+ * Only <code>query</code> and terms facets (<code>field</code>, <code>facet_filter</code>, <code>global</code>) are
+ * taken from the source, scripts, regular expressions and excluded terms of terms facet are not supported. Either all
+ * facets or none of them have to be global. Sources the shard collector can't handle are told by
+ * {@link #getUnsupportedReason(BytesReference)} before they are sent, so they can be searched with terms facets instead.
+ */
+public class TransportDistinctTermsAction extends TransportBroadcastOperationAction<DistinctTermsRequest, DistinctTermsResponse,
+        ShardDistinctTermsRequest, ShardDistinctTermsResponse> {
+
+    private final IndicesService indicesService;
+    private final ScriptService scriptService;
+    private final CacheRecycler cacheRecycler;
+
+    @Inject
+    public TransportDistinctTermsAction(Settings settings, ThreadPool threadPool, ClusterService clusterService,
+            TransportService transportService, IndicesService indicesService, ScriptService scriptService,
+            CacheRecycler cacheRecycler) {
+        super(settings, threadPool, clusterService, transportService);
+        this.indicesService = indicesService;
+        this.scriptService = scriptService;
+        this.cacheRecycler = cacheRecycler;
+    }
+
+    @Override
+    protected String executor() {
+        return ThreadPool.Names.SEARCH;
+    }
+
+    @Override
+    protected String transportAction() {
+        return DistinctTermsAction.NAME;
+    }
+
+    @Override
+    protected DistinctTermsRequest newRequest() {
+        return new DistinctTermsRequest();
+    }
+
+    @Override
+    protected ShardDistinctTermsRequest newShardRequest() {
+        return new ShardDistinctTermsRequest();
+    }
+
+    @Override
+    protected ShardDistinctTermsRequest newShardRequest(ShardRouting shard, DistinctTermsRequest request) {
+        String[] filteringAliases = clusterService.state().metaData().filteringAliases(shard.index(), request.indices());
+        return new ShardDistinctTermsRequest(shard.index(), shard.id(), filteringAliases, request);
+    }
+
+    @Override
+    protected ShardDistinctTermsResponse newShardResponse() {
+        return new ShardDistinctTermsResponse();
+    }
+
+    @Override
+    protected GroupShardsIterator shards(ClusterState clusterState, DistinctTermsRequest request, String[] concreteIndices) {
+        Map<String, Set<String>> routingMap = clusterState.metaData().resolveSearchRouting(null, request.indices());
+        return clusterService.operationRouting().searchShards(clusterState, request.indices(), concreteIndices, routingMap, null);
+    }
+
+    @Override
+    protected ClusterBlockException checkGlobalBlock(ClusterState state, DistinctTermsRequest request) {
+        return state.blocks().globalBlockedException(ClusterBlockLevel.READ);
+    }
+
+    @Override
+    protected ClusterBlockException checkRequestBlock(ClusterState state, DistinctTermsRequest request, String[] concreteIndices) {
+        return state.blocks().indicesBlockedException(ClusterBlockLevel.READ, concreteIndices);
+    }
+
+    // raw array as declared by TransportBroadcastOperationAction, a type argument wouldn't override it
+    @Override
+    @SuppressWarnings("rawtypes")
+    protected DistinctTermsResponse newResponse(DistinctTermsRequest request, AtomicReferenceArray shardsResponses,
+            ClusterState clusterState) {
+        int successfulShards = 0;
+        int failedShards = 0;
+        List<ShardOperationFailedException> shardFailures = null;
+        List<Map<String, TermsResult>> results = new ArrayList<Map<String, TermsResult>>(shardsResponses.length());
+        for (int i = 0; i < shardsResponses.length(); i++) {
+            Object shardResponse = shardsResponses.get(i);
+            if (shardResponse == null) {
+                // non active shard, ignored
+            } else if (shardResponse instanceof BroadcastShardOperationFailedException) {
+                failedShards++;
+                if (shardFailures == null) {
+                    shardFailures = new ArrayList<ShardOperationFailedException>();
+                }
+                shardFailures.add(new DefaultShardOperationFailedException((BroadcastShardOperationFailedException) shardResponse));
+            } else {
+                successfulShards++;
+                results.add(((ShardDistinctTermsResponse) shardResponse).getResults());
+            }
+        }
+        Map<String, TermsResult> merged = new LinkedHashMap<String, TermsResult>();
+        if (!results.isEmpty()) {
+            for (String facet : results.get(0).keySet()) {
+                List<TermsResult> facetResults = new ArrayList<TermsResult>(results.size());
+                for (Map<String, TermsResult> shardResults : results) {
+                    facetResults.add(shardResults.get(facet));
+                }
+                merged.put(facet, TermsResult.merge(facetResults));
+            }
+        }
+        return new DistinctTermsResponse(merged, shardsResponses.length(), successfulShards, failedShards, shardFailures);
+    }
+
+    @Override
+    protected ShardDistinctTermsResponse shardOperation(ShardDistinctTermsRequest request) throws ElasticSearchException {
+        IndexService indexService = indicesService.indexServiceSafe(request.index());
+        IndexShard indexShard = indexService.shardSafe(request.shardId());
+        SearchShardTarget shardTarget = new SearchShardTarget(clusterService.localNode().id(), request.index(), request.shardId());
+        SearchContext context = new SearchContext(0,
+                new ShardSearchRequest().types(request.types()).filteringAliases(request.filteringAliases())
+                        .nowInMillis(request.nowInMillis()),
+                shardTarget, indexShard.acquireSearcher("unique_distinct"), indexService, indexShard, scriptService, cacheRecycler);
+        SearchContext.setCurrent(context);
+        try {
+            Map<String, FacetSource> facets = new LinkedHashMap<String, FacetSource>();
+            ParsedQuery query;
+            QueryParseContext.setTypes(request.types());
+            try {
+                query = parseSource(context, request.source(), facets);
+            } finally {
+                QueryParseContext.removeTypes();
+            }
+            if (query != null && !facets.values().iterator().next().global) {
+                context.parsedQuery(query);
+            }
+            context.preProcess();
+            Map<String, DistinctTermsCollector> collectors = new LinkedHashMap<String, DistinctTermsCollector>();
+            for (Map.Entry<String, FacetSource> facet : facets.entrySet()) {
+                FieldMapper<?> mapper = context.smartNameFieldMapper(facet.getValue().field);
+                collectors.put(facet.getKey(), new DistinctTermsCollector(mapper != null ? context.fieldData().getForField(mapper) : null,
+                        facet.getValue().filter, request.mode(), request.precision()));
+            }
+            context.searcher().search(context.query(), MultiCollector.wrap(collectors.values().toArray(new Collector[collectors.size()])));
+            Map<String, TermsResult> results = new LinkedHashMap<String, TermsResult>();
+            for (Map.Entry<String, DistinctTermsCollector> collector : collectors.entrySet()) {
+                results.put(collector.getKey(), collector.getValue().getResult());
+            }
+            return new ShardDistinctTermsResponse(request.index(), request.shardId(), results);
+        } catch (Exception e) {
+            throw new QueryPhaseExecutionException(context, "failed to collect distinct terms", e);
+        } finally {
+            context.release();
+            SearchContext.removeCurrent();
+        }
+    }
+
+    /**
+     * Checks facets of given source the same way shard operation does, without parsing queries and filters.
+     *
+     * @return why facets of source can't be collected per shard, <code>null</code> if they can
+     */
+    public static String getUnsupportedReason(BytesReference source) {
+        try {
+            parseSource(null, source, new LinkedHashMap<String, FacetSource>());
+            return null;
+        } catch (ElasticSearchIllegalArgumentException e) {
+            return e.getMessage();
+        } catch (Exception e) {
+            return "Failed to parse source: " + e.getMessage();
+        }
+    }
+
+    /**
+     * Reads terms facets out of request source
+     *
+     * @param context context queries and filters are parsed with, they are skipped if <code>null</code>
+     * @return parsed query, <code>null</code> if source has no query
+     */
+    private static ParsedQuery parseSource(SearchContext context, BytesReference source, Map<String, FacetSource> facets)
+            throws Exception {
+        XContentParser parser = XContentFactory.xContent(source).createParser(source);
+        try {
+            ParsedQuery query = null;
+            parser.nextToken();
+            while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                String name = parser.currentName();
+                parser.nextToken();
+                if ("query".equals(name) && context != null) {
+                    query = context.queryParserService().parse(parser);
+                } else if ("facets".equals(name)) {
+                    while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                        String facetName = parser.currentName();
+                        parser.nextToken();
+                        facets.put(facetName, parseFacet(context, facetName, parser));
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (facets.isEmpty()) {
+                throw new ElasticSearchIllegalArgumentException("No terms facets found");
+            }
+            boolean global = facets.values().iterator().next().global;
+            for (FacetSource facet : facets.values()) {
+                if (facet.global != global) {
+                    throw new ElasticSearchIllegalArgumentException("Global and non global facets can't be collected together");
+                }
+            }
+            return query;
+        } finally {
+            parser.close();
+        }
+    }
+
+    private static FacetSource parseFacet(SearchContext context, String facetName, XContentParser parser) throws Exception {
+        FacetSource facet = new FacetSource();
+        while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+            String name = parser.currentName();
+            parser.nextToken();
+            if ("terms".equals(name)) {
+                while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                    String option = parser.currentName();
+                    parser.nextToken();
+                    if ("field".equals(option)) {
+                        facet.field = parser.text();
+                    } else if ("exclude".equals(option) && parser.currentToken() == XContentParser.Token.START_ARRAY
+                            && parser.nextToken() == XContentParser.Token.END_ARRAY) {
+                        // empty exclude list
+                    } else if ("fields".equals(option) || "script".equals(option) || "script_field".equals(option)
+                            || "regex".equals(option) || "exclude".equals(option)) {
+                        throw new ElasticSearchIllegalArgumentException("Terms facet option [" + option
+                                + "] is not supported by shard collector");
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else if (("facet_filter".equals(name) || "facetFilter".equals(name)) && context != null) {
+                ParsedFilter filter = context.queryParserService().parseInnerFilter(parser);
+                facet.filter = filter != null ? filter.filter() : null;
+            } else if ("global".equals(name)) {
+                facet.global = parser.booleanValue();
+            } else if ("nested".equals(name)) {
+                throw new ElasticSearchIllegalArgumentException("Nested facets are not supported by shard collector");
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (facet.field == null) {
+            throw new ElasticSearchIllegalArgumentException("No field of facet [" + facetName + "] found");
+        }
+        return facet;
+    }
+
+    private static class FacetSource {
+        private String field;
+        private Filter filter;
+        private boolean global;
+    }
+}
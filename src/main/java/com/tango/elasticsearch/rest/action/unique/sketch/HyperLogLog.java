@@ -0,0 +1,141 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.sketch;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+import com.tango.elasticsearch.rest.action.unique.util.MurmurHash3;
+
+/**
+ * Dense HyperLogLog distinct count sketch over 64-bit MurmurHash3 values.
+ * <p/>
+ * Uses linear counting for small cardinalities, no large range correction is needed with 64-bit hashes.
+ * Sketches with the same precision are merged by taking maximum of each register.
+ * <p/>
+ * This is not HyperLogLog++: there is no sparse representation and no empirical bias correction, so around the
+ * switch from linear counting (<code>2.5 * 2^precision</code> distinct values) the estimate is biased and its error
+ * can be higher than {@link #relativeError()}.
+ */
+public class HyperLogLog implements Serializable {
+
+    public static final int MIN_PRECISION = 4;
+    public static final int MAX_PRECISION = 18;
+    public static final int DEFAULT_PRECISION = 14;
+
+    private static final long serialVersionUID = 1L;
+    private static final long HASH_SEED = 0;
+
+    private final int precision;
+    private final byte[] registers;
+
+    public HyperLogLog(int precision) {
+        checkPrecision(precision);
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    public void offer(byte[] bytes, int offset, int length) {
+        offerHash(MurmurHash3.hash64(bytes, offset, length, HASH_SEED));
+    }
+
+    public void offerHash(long hash) {
+        int index = (int) (hash >>> (Long.SIZE - precision));
+        long remaining = (hash << precision) | (1L << (precision - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(remaining) + 1);
+        if (registers[index] < rank) {
+            registers[index] = rank;
+        }
+    }
+
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException(String.format("Can't merge sketches with different precision: %d and %d",
+                    precision, other.precision));
+        }
+        for (int i = 0; i < registers.length; i++) {
+            if (registers[i] < other.registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    public long cardinality() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double estimate = alpha(m) * m * m / sum;
+        if (zeros > 0 && estimate <= 2.5 * m) {
+            // linear counting
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * @return standard error of the raw estimate, <code>1.04 / sqrt(2^precision)</code>
+     */
+    public double relativeError() {
+        return relativeError(precision);
+    }
+
+    public static double relativeError(int precision) {
+        return 1.04 / Math.sqrt(1 << precision);
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeByte(precision);
+        out.write(registers);
+    }
+
+    public static HyperLogLog readFrom(DataInput in) throws IOException {
+        HyperLogLog result = new HyperLogLog(in.readByte());
+        in.readFully(result.registers);
+        return result;
+    }
+
+    public static void checkPrecision(int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException(String.format("Precision should be in range [%d, %d], got %d",
+                    MIN_PRECISION, MAX_PRECISION, precision));
+        }
+    }
+
+    private static double alpha(int m) {
+        switch (m) {
+            case 16:
+                return 0.673;
+            case 32:
+                return 0.697;
+            case 64:
+                return 0.709;
+            default:
+                return 0.7213 / (1 + 1.079 / m);
+        }
+    }
+}
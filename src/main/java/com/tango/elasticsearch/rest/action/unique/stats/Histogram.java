@@ -0,0 +1,98 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.stats;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * Lock free histogram of non negative values with power of two buckets, percentiles are reported as upper bounds of
+ * buckets they fall into.
+ */
+public class Histogram {
+
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    // count, sum, max
+    private final AtomicLongArray totals = new AtomicLongArray(3);
+
+    public void record(long value) {
+        value = Math.max(0, value);
+        buckets.incrementAndGet(bucket(value));
+        totals.incrementAndGet(0);
+        totals.addAndGet(1, value);
+        long max;
+        while ((max = totals.get(2)) < value && !totals.compareAndSet(2, max, value)) {
+            // retry
+        }
+    }
+
+    public long getCount() {
+        return totals.get(0);
+    }
+
+    public long getSum() {
+        return totals.get(1);
+    }
+
+    public long getMax() {
+        return totals.get(2);
+    }
+
+    /**
+     * @param percentile 0..100
+     * @return upper bound of bucket value at given percentile falls into, not greater than max
+     */
+    public long getPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(getMax(), (1L << i) - 1);
+            }
+        }
+        return getMax();
+    }
+
+    public XContentBuilder toXContent(String name, XContentBuilder builder) throws IOException {
+        long count = getCount();
+        builder.startObject(name);
+        builder.field("count", count);
+        builder.field("sum", getSum());
+        builder.field("avg", count > 0 ? getSum() / count : 0);
+        builder.field("max", getMax());
+        builder.field("p50", getPercentile(50));
+        builder.field("p90", getPercentile(90));
+        builder.field("p99", getPercentile(99));
+        builder.endObject();
+        return builder;
+    }
+
+    /**
+     * @return 0 for 0, i for values in [2^(i-1), 2^i)
+     */
+    private static int bucket(long value) {
+        return 64 - Long.numberOfLeadingZeros(value);
+    }
+}
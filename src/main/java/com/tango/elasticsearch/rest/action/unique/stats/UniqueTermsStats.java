@@ -0,0 +1,178 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.stats;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import com.tango.elasticsearch.rest.action.unique.cache.AdmissionCacheWrapper;
+import com.tango.elasticsearch.rest.action.unique.cache.CountingCacheWrapper;
+import com.tango.elasticsearch.rest.action.unique.search.FanOutScheduler;
+import com.tango.elasticsearch.rest.action.unique.search.SingleFlight;
+
+/**
+ * Node level counters and latency histograms of unique terms requests, latencies are in microseconds.
+ */
+public class UniqueTermsStats implements ToXContent {
+
+    private final CountingCacheWrapper<?, ?> cache;
+    private final AdmissionCacheWrapper<?, ?> admission;
+    private final FanOutScheduler scheduler;
+    private final SingleFlight<?> inFlight;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong responseCacheHits = new AtomicLong();
+    private final AtomicLong truncated = new AtomicLong();
+    private final AtomicLong completionSearches = new AtomicLong();
+    private final AtomicLong partlyCovered = new AtomicLong();
+    private final AtomicLong incrementalSearches = new AtomicLong();
+    private final AtomicLong promoted = new AtomicLong();
+    private final AtomicLong termsTransferred = new AtomicLong();
+    private final AtomicLong termsBytesTransferred = new AtomicLong();
+    private final Histogram fanOut = new Histogram();
+    private final Histogram searchTime = new Histogram();
+    private final Histogram extractTime = new Histogram();
+    private final Histogram aggregateTime = new Histogram();
+    private final Histogram serializeTime = new Histogram();
+
+    /**
+     * @param admission admission policy of the cache, <code>null</code> if entries are put to cache unconditionally
+     */
+    public UniqueTermsStats(CountingCacheWrapper<?, ?> cache, AdmissionCacheWrapper<?, ?> admission, FanOutScheduler scheduler,
+            SingleFlight<?> inFlight) {
+        this.cache = cache;
+        this.admission = admission;
+        this.scheduler = scheduler;
+        this.inFlight = inFlight;
+    }
+
+    /**
+     * @param searches number of per index searches request needed after cache lookups
+     */
+    public void request(int searches) {
+        requests.incrementAndGet();
+        fanOut.record(searches);
+    }
+
+    /**
+     * Request answered with response memoized for the same query and range
+     */
+    public void responseCacheHit() {
+        responseCacheHits.incrementAndGet();
+    }
+
+    /**
+     * Result not cached because terms facet was truncated
+     */
+    public void truncated() {
+        truncated.incrementAndGet();
+    }
+
+    /**
+     * Truncated terms facets searched again with size big enough to return all terms
+     */
+    public void completionSearch() {
+        completionSearches.incrementAndGet();
+    }
+
+    /**
+     * Search not cached because index was only partly covered by requested time range
+     */
+    public void partlyCovered() {
+        partlyCovered.incrementAndGet();
+    }
+
+    /**
+     * Open index searched only for documents newer than its incremental state watermark
+     */
+    public void incrementalSearch() {
+        incrementalSearches.incrementAndGet();
+    }
+
+    /**
+     * Incremental state of closed index completed and cached as per index result
+     */
+    public void promoted() {
+        promoted.incrementAndGet();
+    }
+
+    public void termsTransferred(long terms, long bytes) {
+        termsTransferred.addAndGet(terms);
+        termsBytesTransferred.addAndGet(bytes);
+    }
+
+    public Histogram getSearchTime() {
+        return searchTime;
+    }
+
+    public Histogram getExtractTime() {
+        return extractTime;
+    }
+
+    public Histogram getAggregateTime() {
+        return aggregateTime;
+    }
+
+    public Histogram getSerializeTime() {
+        return serializeTime;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("cache");
+        builder.field("hits", cache.getHits());
+        builder.field("misses", cache.getMisses());
+        builder.field("puts", cache.getPuts());
+        builder.field("not_cached_truncated", truncated.get());
+        builder.field("not_cached_partly_covered", partlyCovered.get());
+        builder.field("completion_searches", completionSearches.get());
+        builder.field("incremental_searches", incrementalSearches.get());
+        builder.field("promoted_open_states", promoted.get());
+        if (admission != null) {
+            builder.field("admitted", admission.getAdmitted());
+            builder.field("not_admitted", admission.getRejected());
+            builder.field("evicted_for_admission", admission.getEvicted());
+            builder.field("admitted_bytes", admission.getWeight());
+        }
+        builder.endObject();
+
+        builder.startObject("requests");
+        builder.field("count", requests.get());
+        builder.field("response_cache_hits", responseCacheHits.get());
+        fanOut.toXContent("fan_out", builder);
+        builder.field("coalesced_searches", inFlight.getCoalesced());
+        builder.field("in_flight_searches", inFlight.getInFlight());
+        builder.field("queued_searches", scheduler.getQueued());
+        builder.field("running_searches", scheduler.getInFlight());
+        builder.endObject();
+
+        builder.startObject("terms");
+        builder.field("transferred", termsTransferred.get());
+        builder.field("transferred_bytes", termsBytesTransferred.get());
+        builder.endObject();
+
+        builder.startObject("latency_micros");
+        searchTime.toXContent("search", builder);
+        extractTime.toXContent("extract", builder);
+        aggregateTime.toXContent("aggregate", builder);
+        serializeTime.toXContent("serialize", builder);
+        builder.endObject();
+        return builder;
+    }
+}
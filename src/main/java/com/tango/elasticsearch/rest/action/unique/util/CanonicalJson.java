@@ -0,0 +1,70 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.util;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+
+/**
+ * Helpers for canonical form of JSON request sources, equal for semantically equal sources.
+ * <p/>
+ * Object fields are sorted by name and numbers are normalized (<code>10.0</code> and <code>10</code> are the same
+ * number), array order and strings are kept as is.
+ */
+public final class CanonicalJson {
+
+    private static final long DIGEST_SEED = 0x2545f4914f6cdd1dL;
+    private static final BigDecimal LONG_MAX = BigDecimal.valueOf(Long.MAX_VALUE);
+    private static final BigDecimal LONG_MIN = BigDecimal.valueOf(Long.MIN_VALUE);
+
+    private CanonicalJson() {
+    }
+
+    /**
+     * @return number node with trailing zeros removed, integral values are stored as longs
+     */
+    public static JsonNode number(BigDecimal value) {
+        value = value.stripTrailingZeros();
+        if (value.scale() <= 0 && value.compareTo(LONG_MAX) <= 0 && value.compareTo(LONG_MIN) >= 0) {
+            return JsonNodeFactory.instance.numberNode(value.longValue());
+        }
+        return JsonNodeFactory.instance.numberNode(value);
+    }
+
+    /**
+     * @return 128-bit hash of canonical source as 32 hex digits
+     */
+    public static String digest(String canonicalSource) {
+        byte[] bytes;
+        try {
+            bytes = canonicalSource.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return digest(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @return 128-bit hash of given bytes as 32 hex digits
+     */
+    public static String digest(byte[] data, int offset, int length) {
+        long[] hash = MurmurHash3.hash128(data, offset, length, DIGEST_SEED);
+        return String.format("%016x%016x", hash[0], hash[1]);
+    }
+}
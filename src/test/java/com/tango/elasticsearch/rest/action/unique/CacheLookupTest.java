@@ -0,0 +1,115 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.action.search.SearchRequest;
+import org.junit.Test;
+
+import com.tango.elasticsearch.rest.action.unique.cache.CacheWrapper;
+
+public class CacheLookupTest {
+
+    @Test
+    public void testLevels() throws Exception {
+        MapCache cache = new MapCache();
+        cache.put("day-1", new TermsResult(Arrays.asList("a"), 1, 0, 0));
+        cache.put("hour-2", new TermsResult(Arrays.asList("b"), 1, 0, 0));
+        CacheLookup week = new CacheLookup(ResultNode.rollup("week", "week"));
+        CacheLookup day1 = new CacheLookup(ResultNode.rollup("day-1", "day-1")).addChild(searchLookup("hour-1"));
+        CacheLookup day2 = new CacheLookup(ResultNode.rollup("day-2", "day-2"))
+                .addChild(searchLookup("hour-2")).addChild(searchLookup("hour-3"));
+        week.addChild(day1).addChild(day2);
+
+        Map<String, IndexSearch> searches = new LinkedHashMap<String, IndexSearch>();
+        List<CacheLookup> level = CacheLookup.lookUpLevel(Arrays.asList(week), cache, searches);
+        assertEquals(Arrays.asList(day1, day2), level);
+        level = CacheLookup.lookUpLevel(level, cache, searches);
+        assertEquals(Arrays.asList("a"), day1.getNode().getResult().getUniqueTerms());
+        assertNull(day2.getNode().getResult());
+        assertEquals(2, level.size());
+        assertTrue(searches.isEmpty());
+
+        level = CacheLookup.lookUpLevel(level, cache, searches);
+        assertTrue(level.isEmpty());
+        assertEquals(Arrays.asList("b"), day2.getChildren().get(0).getNode().getResult().getUniqueTerms());
+        assertEquals(new ArrayList<String>(Arrays.asList("hour-3")), new ArrayList<String>(searches.keySet()));
+        assertEquals(day2.getChildren().get(1).getNode(), searches.get("hour-3").getNodes().get("terms"));
+    }
+
+    private static CacheLookup searchLookup(String index) {
+        final ResultNode node = ResultNode.leaf(index, index);
+        final IndexSearch search = new IndexSearch(index, index, new SearchRequest(index), 1);
+        return new CacheLookup(node) {
+            @Override
+            public void missed(Map<String, IndexSearch> searches) {
+                searches.put(search.getPart(), search.addNode("terms", node));
+            }
+        };
+    }
+
+    private static class MapCache implements CacheWrapper<String, TermsResult> {
+
+        private final Map<String, TermsResult> map = new HashMap<String, TermsResult>();
+
+        @Override
+        public void put(String key, TermsResult value) {
+            map.put(key, value);
+        }
+
+        @Override
+        public void put(String key, TermsResult value, long cost) {
+            map.put(key, value);
+        }
+
+        @Override
+        public TermsResult get(String key) {
+            return map.get(key);
+        }
+
+        @Override
+        public Map<String, TermsResult> getAll(Collection<String> keys) {
+            Map<String, TermsResult> values = new HashMap<String, TermsResult>();
+            for (String key : keys) {
+                if (map.containsKey(key)) {
+                    values.put(key, map.get(key));
+                }
+            }
+            return values;
+        }
+
+        @Override
+        public void remove(String key) {
+            map.remove(key);
+        }
+
+        @Override
+        public void clear() {
+            map.clear();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.junit.Test;
+
+public class IndexPatternTest {
+
+    private static final long SLICE = TimeUnit.MINUTES.toMillis(15);
+
+    @Test
+    public void testDefaultHourlyPattern() throws Exception {
+        List<IndexPattern> patterns = IndexPattern.fromSettings(ImmutableSettings.EMPTY, SLICE);
+        assertEquals(1, patterns.size());
+        IndexPattern hourly = patterns.get(0);
+        assertEquals(TimeUnit.HOURS.toMillis(1), hourly.getSpan());
+        assertEquals(SLICE, hourly.getSlice());
+        long start = hourly.parseDate("2014.03.15-01");
+        assertEquals(1394845200000L, start);
+        assertEquals("twitter-2014.03.15-01", hourly.indexName("twitter", start));
+        assertEquals(-1, hourly.parseDate("2014.03.15"));
+    }
+
+    @Test
+    public void testConfiguredPatterns() throws Exception {
+        List<IndexPattern> patterns = IndexPattern.fromSettings(ImmutableSettings.settingsBuilder()
+                .put("indexPatterns.b_hourly.format", "yyyy.MM.dd-HH")
+                .put("indexPatterns.a_daily.format", "yyyy.MM.dd")
+                .put("indexPatterns.a_daily.span", "1d")
+                .put("indexPatterns.a_daily.slice", "6h")
+                .put("indexPatterns.a_daily.delimiter", "_")
+                .build(), SLICE);
+        assertEquals(2, patterns.size());
+        IndexPattern daily = patterns.get(0);
+        assertEquals("_", daily.getDelimiter());
+        assertEquals(TimeUnit.DAYS.toMillis(1), daily.getSpan());
+        assertEquals(TimeUnit.HOURS.toMillis(6), daily.getSlice());
+        long dayStart = daily.parseDate("2014.03.15");
+        assertEquals(1394841600000L, dayStart);
+        assertEquals(dayStart, daily.indexStart(dayStart + TimeUnit.HOURS.toMillis(23)));
+        assertEquals("logstash_2014.03.15", daily.indexName("logstash", dayStart));
+        assertEquals(SLICE, patterns.get(1).getSlice());
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class OpenIndexStatesTest {
+
+    @Test
+    public void testAdvance() throws Exception {
+        OpenIndexStates states = new OpenIndexStates();
+        assertTrue(states.advance("index", null, new TermsResult(Arrays.asList("a", "b"), 2, 0, 0), 100, 1000));
+        OpenIndexStates.State first = states.get("index");
+        assertEquals(100, first.getWatermark());
+
+        assertTrue(states.advance("index", first, new TermsResult(Arrays.asList("b", "c"), 3, 1, 0), 200, 1000));
+        OpenIndexStates.State second = states.get("index");
+        assertEquals(200, second.getWatermark());
+        assertEquals(Arrays.asList("a", "b", "c"), second.getResult().getUniqueTerms());
+        assertEquals(5, second.getResult().getTotalCount());
+        assertEquals(1, second.getResult().getMissingCount());
+
+        // concurrent advance from the same state is dropped
+        assertFalse(states.advance("index", first, new TermsResult(Arrays.asList("d"), 1, 0, 0), 300, 1000));
+        assertFalse(states.advance("index", null, new TermsResult(Arrays.asList("d"), 1, 0, 0), 300, 1000));
+        assertEquals(second, states.get("index"));
+    }
+
+    @Test
+    public void testPurge() throws Exception {
+        OpenIndexStates states = new OpenIndexStates();
+        states.advance("closed", null, new TermsResult(Arrays.asList("a"), 1, 0, 0), 100, 1000);
+        states.advance("open", null, new TermsResult(Arrays.asList("a"), 1, 0, 0), 2100, 3000);
+        states.purge(2000);
+        assertNull(states.get("closed"));
+        assertEquals(1, states.size());
+        assertEquals(2100, states.remove("open").getWatermark());
+        assertFalse(states.contains("open"));
+    }
+}
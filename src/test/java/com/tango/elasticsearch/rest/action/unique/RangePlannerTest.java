@@ -0,0 +1,274 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.search.SearchRequest;
+import org.junit.Test;
+
+import com.tango.elasticsearch.rest.action.unique.stats.UniqueTermsStats;
+
+public class RangePlannerTest {
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+    // 2014.03.15 00:00 UTC
+    private static final long MARCH_15 = 1394841600000L;
+    // long after all indices of tests are closed
+    private static final long NOW = MARCH_15 + 30 * DAY;
+    private static final String SOURCE = "{\"facets\":{\"terms\":{\"terms\":{\"field\":\"uid\"},\"facet_filter\":{\"range\":{\"@timestamp\":{\"from\":1,\"to\":2}}}}},\"size\":0}";
+    private static final String[] DAILY_INDICES = {"logs-2014.03.13", "logs-2014.03.14", "logs-2014.03.15",
+            "logs-2014.03.16", "logs-2014.03.17"};
+
+    @Test
+    public void testSkipsIndicesOutsideOfRange() throws Exception {
+        RangePlanner planner = dailyPlanner();
+        RangePlanner.RangePlan plan = new RangePlanner.RangePlan();
+        // logs-* resolved to days before and after requested range
+        List<ResultNode> results = planner.prepareFacet("terms", "|key", DAILY_INDICES,
+                rangeInfo(MARCH_15 - DAY, MARCH_15 + 3 * HOUR), true, new SearchRequest("logs-*").source(SOURCE),
+                plan, NOW);
+        assertEquals("[logs-2014.03.15, logs-2014.03.14]", names(results).toString());
+        assertEquals("[logs-2014.03.15]", plan.getSearches().keySet().toString());
+        assertEquals(0.125, plan.getSearches().get("logs-2014.03.15").getCoverage());
+        assertEquals(1, plan.getLookups().size());
+        assertEquals("logs-2014.03.14|key", plan.getLookups().get(0).getNode().getCacheKey());
+
+        // end of range is inclusive, index starting right at it is searched
+        plan = new RangePlanner.RangePlan();
+        results = planner.prepareFacet("terms", "|key", DAILY_INDICES, rangeInfo(MARCH_15, MARCH_15 + DAY), true,
+                new SearchRequest("logs-*").source(SOURCE), plan, NOW);
+        assertEquals("[logs-2014.03.15|0m, logs-2014.03.15|360m, logs-2014.03.15|720m, logs-2014.03.15, "
+                + "logs-2014.03.16]", names(results).toString());
+        assertEquals(0.0, plan.getSearches().get("logs-2014.03.16").getCoverage());
+    }
+
+    @Test
+    public void testSlicesRangeStartingAndEndingMidHour() throws Exception {
+        RangePlanner planner = hourlyPlanner();
+        String index = "twitter-2014.03.15-01";
+        long hour = MARCH_15 + HOUR;
+        RangePlanner.RangePlan plan = new RangePlanner.RangePlan();
+        List<ResultNode> results = planner.prepareFacet("terms", "|key", new String[] {index},
+                rangeInfo(hour + 7 * MINUTE, hour + 52 * MINUTE), true, new SearchRequest(index).source(SOURCE), plan,
+                NOW);
+        // slice ending after requested end is left to the sliver
+        assertEquals("[twitter-2014.03.15-01|15m, twitter-2014.03.15-01|30m, twitter-2014.03.15-01, "
+                + "twitter-2014.03.15-01]", names(results).toString());
+        assertEquals(2, plan.getLookups().size());
+        assertEquals("twitter-2014.03.15-01|15m+15m|key", plan.getLookups().get(0).getNode().getCacheKey());
+        assertEquals("twitter-2014.03.15-01|30m+15m|key", plan.getLookups().get(1).getNode().getCacheKey());
+        assertEquals(2, plan.getSearches().size());
+        IndexSearch before = plan.getSearches().get(index + "|" + (hour + 7 * MINUTE) + "-" + (hour + 15 * MINUTE));
+        assertTrue(source(before).contains("\"include_upper\":false"));
+        IndexSearch after = plan.getSearches().get(index + "|" + (hour + 45 * MINUTE) + "-" + (hour + 52 * MINUTE));
+        assertTrue(source(after).contains("\"include_upper\":true"));
+        assertEquals((double) 7 / 60, after.getCoverage());
+
+        // range aligned with slices, inclusive end still needs a sliver for the last slice
+        plan = new RangePlanner.RangePlan();
+        results = planner.prepareFacet("terms", "|key", new String[] {index},
+                rangeInfo(hour + 15 * MINUTE, hour + 45 * MINUTE), true, new SearchRequest(index).source(SOURCE),
+                plan, NOW);
+        assertEquals("[twitter-2014.03.15-01|15m, twitter-2014.03.15-01]", names(results).toString());
+        assertEquals("[" + index + "|" + (hour + 30 * MINUTE) + "-" + (hour + 45 * MINUTE) + "]",
+                plan.getSearches().keySet().toString());
+    }
+
+    @Test
+    public void testRangeShorterThanSlice() throws Exception {
+        String index = "twitter-2014.03.15-01";
+        long hour = MARCH_15 + HOUR;
+        RangePlanner.RangePlan plan = new RangePlanner.RangePlan();
+        List<ResultNode> results = hourlyPlanner().prepareFacet("terms", "|key", new String[] {index},
+                rangeInfo(hour + 20 * MINUTE, hour + 25 * MINUTE), true, new SearchRequest(index).source(SOURCE),
+                plan, NOW);
+        // searched whole with the range of the request, nothing cached
+        assertEquals("[twitter-2014.03.15-01]", names(results).toString());
+        assertEquals("", results.get(0).getCacheKey());
+        assertTrue(plan.getLookups().isEmpty());
+        assertEquals((double) 5 / 60, plan.getSearches().get(index).getCoverage());
+    }
+
+    @Test
+    public void testSlicesRangeStartingAndEndingMidDay() throws Exception {
+        RangePlanner.RangePlan plan = new RangePlanner.RangePlan();
+        List<ResultNode> results = dailyPlanner().prepareFacet("terms", "|key", DAILY_INDICES,
+                rangeInfo(MARCH_15 - DAY + 9 * HOUR, MARCH_15 + DAY + 15 * HOUR), true,
+                new SearchRequest("logs-*").source(SOURCE), plan, NOW);
+        // first day ends with a slice, last day ends with a sliver, the day in between is looked up whole
+        assertEquals("[logs-2014.03.14|720m, logs-2014.03.14|1080m, logs-2014.03.14, logs-2014.03.16|0m, "
+                + "logs-2014.03.16|360m, logs-2014.03.16, logs-2014.03.15]", names(results).toString());
+        assertEquals("[logs-2014.03.14|" + (MARCH_15 - DAY + 9 * HOUR) + "-" + (MARCH_15 - DAY + 12 * HOUR)
+                + ", logs-2014.03.16|" + (MARCH_15 + DAY + 12 * HOUR) + "-" + (MARCH_15 + DAY + 15 * HOUR) + "]",
+                plan.getSearches().keySet().toString());
+        assertEquals(5, plan.getLookups().size());
+        assertEquals("logs-2014.03.15|key", plan.getLookups().get(4).getNode().getCacheKey());
+        assertEquals(0.125, plan.getSearches().values().iterator().next().getCoverage());
+    }
+
+    @Test
+    public void testSearchesOpenIndexIncrementally() throws Exception {
+        OpenIndexStates states = new OpenIndexStates();
+        RangePlanner planner = new RangePlanner(Collections.singletonList(dailyPattern()),
+                new UniqueTermsStats(null, null, null, null), true, HOUR, states);
+        String index = "logs-2014.03.15";
+        long now = MARCH_15 + 12 * HOUR;
+        UniqueTermsAction.RequestParamsInfo range = rangeInfo(MARCH_15, now);
+        RangePlanner.RangePlan plan = new RangePlanner.RangePlan();
+        List<ResultNode> results = planner.prepareFacet("terms", "|key", new String[] {index}, range, true,
+                new SearchRequest(index).source(SOURCE), plan, now);
+        // documents older than margin are merged into state, the most recent ones are searched without caching
+        assertEquals(2, results.size());
+        assertEquals("[" + index + "|" + MARCH_15 + "-" + (now - HOUR) + ", " + index + "|" + (now - HOUR) + "-" + now
+                + "]", plan.getSearches().keySet().toString());
+        assertTrue(plan.getLookups().isEmpty());
+        results.get(0).setResult(new TermsResult(Arrays.asList("a", "b"), 2, 0, 0));
+        assertEquals(now - HOUR, states.get(index + "|key").getWatermark());
+
+        // documents older than watermark are not searched again
+        plan = new RangePlanner.RangePlan();
+        results = planner.prepareFacet("terms", "|key", new String[] {index}, range, true,
+                new SearchRequest(index).source(SOURCE), plan, now);
+        assertEquals(2, results.size());
+        assertEquals(Arrays.asList("a", "b"), results.get(0).getResult().getUniqueTerms());
+        assertEquals("[" + index + "|" + (now - HOUR) + "-" + now + "]", plan.getSearches().keySet().toString());
+
+        // truncated result is not merged into state
+        now += HOUR;
+        plan = new RangePlanner.RangePlan();
+        results = planner.prepareFacet("terms", "|key", new String[] {index}, rangeInfo(MARCH_15, now), true,
+                new SearchRequest(index).source(SOURCE), plan, now);
+        assertEquals(3, results.size());
+        results.get(1).setResult(new TermsResult(Arrays.asList("c"), 2, 0, 1));
+        assertEquals(now - 2 * HOUR, states.get(index + "|key").getWatermark());
+
+        // range ending before watermark is searched as usual
+        plan = new RangePlanner.RangePlan();
+        planner.prepareFacet("terms", "|key", new String[] {index}, rangeInfo(MARCH_15, MARCH_15 + 6 * HOUR), true,
+                new SearchRequest(index).source(SOURCE), plan, now);
+        assertEquals("[" + index + "]", plan.getSearches().keySet().toString());
+    }
+
+    @Test
+    public void testWatermarkStaysBehindNow() throws Exception {
+        OpenIndexStates states = new OpenIndexStates();
+        RangePlanner planner = new RangePlanner(Collections.singletonList(dailyPattern()),
+                new UniqueTermsStats(null, null, null, null), true, HOUR, states);
+        String index = "logs-2014.03.15";
+        long now = MARCH_15 + 12 * HOUR;
+        // dashboard asking for the whole day up to its end
+        RangePlanner.RangePlan plan = new RangePlanner.RangePlan();
+        List<ResultNode> results = planner.prepareFacet("terms", "|key", new String[] {index},
+                rangeInfo(MARCH_15, MARCH_15 + DAY - 1), true, new SearchRequest(index).source(SOURCE), plan, now);
+        assertEquals("[" + index + "|" + MARCH_15 + "-" + (now - HOUR) + ", " + index + "|" + (now - HOUR) + "-"
+                + (MARCH_15 + DAY - 1) + "]", plan.getSearches().keySet().toString());
+        results.get(0).setResult(new TermsResult(Arrays.asList("a"), 1, 0, 0));
+        assertEquals(now - HOUR, states.get(index + "|key").getWatermark());
+
+        // watermark follows now as time goes by, not requested end
+        now += HOUR / 2;
+        plan = new RangePlanner.RangePlan();
+        planner.prepareFacet("terms", "|key", new String[] {index}, rangeInfo(MARCH_15, MARCH_15 + DAY - 1), true,
+                new SearchRequest(index).source(SOURCE), plan, now);
+        assertEquals("[" + index + "|" + (now - 3 * HOUR / 2) + "-" + (now - HOUR) + ", " + index + "|" + (now - HOUR)
+                + "-" + (MARCH_15 + DAY - 1) + "]", plan.getSearches().keySet().toString());
+    }
+
+    @Test
+    public void testPromotesStateOfClosedIndex() throws Exception {
+        OpenIndexStates states = new OpenIndexStates();
+        RangePlanner planner = new RangePlanner(Collections.singletonList(dailyPattern()),
+                new UniqueTermsStats(null, null, null, null), true, HOUR, states);
+        String index = "logs-2014.03.15";
+        String key = index + "|key";
+        UniqueTermsAction.RequestParamsInfo range = rangeInfo(MARCH_15 - DAY, MARCH_15 + 2 * DAY);
+        states.advance(key, null, new TermsResult(Arrays.asList("a"), 1, 0, 0), MARCH_15 + 20 * HOUR,
+                MARCH_15 + DAY);
+        RangePlanner.RangePlan plan = new RangePlanner.RangePlan();
+        planner.prepareFacet("terms", "|key", new String[] {index}, range, true,
+                new SearchRequest(index).source(SOURCE), plan, NOW);
+        assertTrue(plan.getSearches().isEmpty());
+        assertEquals(1, plan.getLookups().size());
+        // state is completed with documents newer than its watermark if result is not cached yet
+        CacheLookup lookup = plan.getLookups().get(0);
+        Map<String, IndexSearch> searches = new LinkedHashMap<String, IndexSearch>();
+        lookup.missed(searches);
+        assertEquals(key, lookup.getNode().getCacheKey());
+        assertEquals(2, lookup.getNode().getChildren().size());
+        assertEquals(Arrays.asList("a"), lookup.getNode().getChildren().get(0).getResult().getUniqueTerms());
+        assertEquals("[" + index + "|" + (MARCH_15 + 20 * HOUR) + "-" + (MARCH_15 + DAY) + "]",
+                searches.keySet().toString());
+        assertFalse(states.contains(key));
+
+        // state gone by the time of lookup, index is searched whole
+        states.advance(key, null, new TermsResult(Arrays.asList("a"), 1, 0, 0), MARCH_15 + 20 * HOUR,
+                MARCH_15 + DAY);
+        plan = new RangePlanner.RangePlan();
+        planner.prepareFacet("terms", "|key", new String[] {index}, range, true,
+                new SearchRequest(index).source(SOURCE), plan, NOW);
+        states.remove(key);
+        searches = new LinkedHashMap<String, IndexSearch>();
+        plan.getLookups().get(0).missed(searches);
+        assertTrue(plan.getLookups().get(0).getNode().getChildren().isEmpty());
+        assertEquals("[" + index + "]", searches.keySet().toString());
+    }
+
+    private static RangePlanner hourlyPlanner() {
+        return new RangePlanner(Collections.singletonList(new IndexPattern(IndexPattern.DEFAULT_FORMAT,
+                IndexPattern.DEFAULT_DELIMITER, HOUR, 15 * MINUTE)), new UniqueTermsStats(null, null, null, null),
+                false, 0);
+    }
+
+    private static RangePlanner dailyPlanner() {
+        return new RangePlanner(Collections.singletonList(dailyPattern()), new UniqueTermsStats(null, null, null, null),
+                false, 0);
+    }
+
+    private static IndexPattern dailyPattern() {
+        return new IndexPattern("yyyy.MM.dd", "-", DAY, 6 * HOUR);
+    }
+
+    private static UniqueTermsAction.RequestParamsInfo rangeInfo(long from, long to) throws Exception {
+        UniqueTermsAction.RequestParamsInfo info = new UniqueTermsAction().getRequestInfo(SOURCE);
+        return new UniqueTermsAction.RequestParamsInfo(from, to, info.getRequestTemplate(), info.getRequestCacheKey(),
+                info.getFacetCacheKeys(), info.getFacetFields());
+    }
+
+    private static String source(IndexSearch search) {
+        return search.getRequest().source().toUtf8();
+    }
+
+    private static List<String> names(List<ResultNode> results) {
+        List<String> names = new ArrayList<String>();
+        for (ResultNode node : results) {
+            names.add(node.getName());
+        }
+        return names;
+    }
+}
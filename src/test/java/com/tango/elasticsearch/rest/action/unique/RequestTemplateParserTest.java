@@ -0,0 +1,149 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class RequestTemplateParserTest {
+
+    @Test
+    public void testTemplateAndRange() throws Exception {
+        RequestTemplateParser parser = new RequestTemplateParser(10);
+        RequestTemplateParser.RequestTemplate template = parse(parser,
+                "{\"size\":0,\"facets\":{\"terms\":{\"terms\":{\"field\":\"uid\"},\"facet_filter\":{\"range\":{\"@timestamp\":{\"from\":1395275639569,\"to\":\"now\"}}}}}}");
+        assertEquals("{\"facets\":{\"terms\":{\"facet_filter\":{\"range\":{\"@timestamp\":{}}},\"terms\":{\"field\":\"uid\"}}},\"size\":0}",
+                template.getSource());
+        assertEquals("1395275639569", template.getFrom());
+        assertEquals("now", template.getTo());
+        assertSame(template, parse(parser,
+                "{\"size\":0,\"facets\":{\"terms\":{\"terms\":{\"field\":\"uid\"},\"facet_filter\":{\"range\":{\"@timestamp\":{\"from\":1395275639569,\"to\":\"now\"}}}}}}"));
+    }
+
+    @Test
+    public void testTimestampOutsideRange() throws Exception {
+        RequestTemplateParser parser = new RequestTemplateParser(10);
+        RequestTemplateParser.RequestTemplate template = parse(parser,
+                "{\"sort\":[{\"@timestamp\":{\"order\":\"desc\"}}],\"facets\":{\"terms\":{\"terms\":{\"field\":\"uid\"},"
+                        + "\"facet_filter\":{\"range\":{\"@timestamp\":{\"from\":1,\"to\":2}}}}}}");
+        assertEquals("{\"facets\":{\"terms\":{\"facet_filter\":{\"range\":{\"@timestamp\":{}}},\"terms\":{\"field\":\"uid\"}}},"
+                + "\"sort\":[{\"@timestamp\":{\"order\":\"desc\"}}]}", template.getSource());
+        assertEquals("1", template.getFrom());
+        assertEquals("2", template.getTo());
+        template = parse(parser, "{\"facets\":{\"terms\":{\"terms\":{\"field\":\"uid\"},"
+                + "\"facet_filter\":{\"and\":[{\"term\":{\"@timestamp\":{\"value\":5}}},{\"bool\":{\"must\":{\"range\":"
+                + "{\"@timestamp\":{\"gte\":1,\"lte\":2}}}}}]}}},\"sort\":[{\"@timestamp\":{\"order\":\"desc\"}}]}");
+        assertEquals("1", template.getFrom());
+        assertEquals("2", template.getTo());
+        String source = new String(RequestTemplateParser.rangeSource(template.getSource(), 3, 4, false), "UTF-8");
+        assertEquals(1, source.split("\"from\":3,\"to\":4").length - 1);
+        assertEquals(2, source.split("\"@timestamp\":\\{\"order\":\"desc\"}|\"@timestamp\":\\{\"value\":5}").length - 1);
+    }
+
+    @Test
+    public void testUnexpectedFacet() throws Exception {
+        RequestTemplateParser parser = new RequestTemplateParser(10);
+        try {
+            parse(parser, "{\"facets\":{\"other\":{\"histogram\":{}}},\"query\":{\"range\":{\"@timestamp\":{\"from\":1,\"to\":2}}}}");
+            fail("Expected failure");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Unexpected facet other, only terms facets are supported", e.getMessage());
+        }
+        try {
+            parse(parser, "{\"facets\":{\"terms\":{\"terms\":{\"field\":\"uid\"}}}}");
+            fail("Expected failure");
+        } catch (IllegalArgumentException e) {
+            assertEquals("No @timestamp found in requests", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testFacetCacheKeys() throws Exception {
+        RequestTemplateParser parser = new RequestTemplateParser(10);
+        String range = "\"facet_filter\":{\"range\":{\"@timestamp\":{\"from\":1,\"to\":2}}}";
+        RequestTemplateParser.RequestTemplate both = parse(parser, "{\"facets\":{"
+                + "\"users\":{\"terms\":{\"field\":\"uid\"}," + range + "},"
+                + "\"devices\":{\"terms\":{\"field\":\"device\"}," + range + "}}}");
+        RequestTemplateParser.RequestTemplate users = parse(parser, "{\"facets\":{"
+                + "\"terms\":{\"terms\":{\"field\":\"uid\"}," + range + "}}}");
+        assertEquals(Arrays.asList("devices", "users"), new ArrayList<String>(both.getFacetCacheKeys().keySet()));
+        assertEquals(users.getFacetCacheKeys().get("terms"), both.getFacetCacheKeys().get("users"));
+        assertEquals("device", both.getFacetFields().get("devices"));
+        assertEquals("uid", both.getFacetFields().get("users"));
+        assertFalse(both.getFacetCacheKeys().get("users").equals(both.getFacetCacheKeys().get("devices")));
+        String source = new String(RequestTemplateParser.rangeSource(both.getSource(), 3, 4, false), "UTF-8");
+        assertEquals(2, source.split("\"from\":3,\"to\":4").length - 1);
+        try {
+            parse(parser, "{\"facets\":{\"users\":{\"terms\":{\"field\":\"uid\"}," + range + "},"
+                    + "\"devices\":{\"terms\":{\"field\":\"device\"},\"facet_filter\":{\"range\":{\"@timestamp\":{\"from\":1,\"to\":3}}}}}}");
+            fail("Expected failure");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Different @timestamp ranges in request", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testFacetSizeSource() throws Exception {
+        byte[] source = ("{\"size\":0,\"facets\":{\"users\":{\"terms\":{\"field\":\"uid\",\"size\":10,\"shard_size\":20}},"
+                + "\"devices\":{\"terms\":{\"field\":\"device\",\"size\":10}}}}").getBytes("UTF-8");
+        String completed = new String(RequestTemplateParser.facetSizeSource(source, 0, source.length,
+                Collections.singletonMap("users", 1500)), "UTF-8");
+        assertEquals("{\"size\":0,\"facets\":{\"users\":{\"terms\":{\"field\":\"uid\",\"size\":1500}},"
+                + "\"devices\":{\"terms\":{\"field\":\"device\",\"size\":10}}}}", completed);
+        try {
+            RequestTemplateParser.facetSizeSource(source, 0, source.length, Collections.singletonMap("countries", 10));
+            fail("Expected failure");
+        } catch (IllegalArgumentException e) {
+            assertEquals("No terms facet countries in request source", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testShardCollectorUnsupported() throws Exception {
+        RequestTemplateParser parser = new RequestTemplateParser(10);
+        String range = "\"facet_filter\":{\"range\":{\"@timestamp\":{\"from\":1,\"to\":2}}}";
+        assertNull(parse(parser, "{\"facets\":{\"users\":{\"terms\":{\"field\":\"uid\",\"exclude\":[]}," + range + "},"
+                + "\"devices\":{\"terms\":{\"field\":\"device\"}," + range + "}}}").getShardCollectorUnsupported());
+        assertEquals("Terms facet option [script] is not supported by shard collector", parse(parser,
+                "{\"facets\":{\"users\":{\"terms\":{\"script\":\"doc['uid'].value\"}," + range + "}}}").getShardCollectorUnsupported());
+        assertEquals("Terms facet option [regex] is not supported by shard collector", parse(parser,
+                "{\"facets\":{\"users\":{\"terms\":{\"field\":\"uid\",\"regex\":\"U.*\"}," + range + "}}}")
+                .getShardCollectorUnsupported());
+        assertEquals("Terms facet option [exclude] is not supported by shard collector", parse(parser,
+                "{\"facets\":{\"users\":{\"terms\":{\"field\":\"uid\",\"exclude\":[\"U1\"]}," + range + "}}}")
+                .getShardCollectorUnsupported());
+        assertEquals("Nested facets are not supported by shard collector", parse(parser,
+                "{\"facets\":{\"users\":{\"terms\":{\"field\":\"uid\"},\"nested\":\"events\"," + range + "}}}")
+                .getShardCollectorUnsupported());
+        assertEquals("Global and non global facets can't be collected together", parse(parser,
+                "{\"facets\":{\"users\":{\"terms\":{\"field\":\"uid\"},\"global\":true," + range + "},"
+                        + "\"devices\":{\"terms\":{\"field\":\"device\"}," + range + "}}}").getShardCollectorUnsupported());
+    }
+
+    private static RequestTemplateParser.RequestTemplate parse(RequestTemplateParser parser, String source) throws Exception {
+        byte[] bytes = source.getBytes("UTF-8");
+        return parser.parse(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.tango.elasticsearch.rest.action.unique.cache.AdmissionCacheWrapper;
+
+public class ResultNodeTest {
+
+    @Test
+    public void testRollupMergedFromCompleteChildren() throws Exception {
+        ResultNode day = ResultNode.rollup("day", "day-key");
+        ResultNode hour1 = ResultNode.leaf("hour-1", "hour-1-key").setResult(new TermsResult(Arrays.asList("a", "b"), 2, 0, 0));
+        ResultNode hour2 = ResultNode.leaf("hour-2", "hour-2-key").setResult(new TermsResult(Arrays.asList("b", "c"), 3, 1, 0));
+        ResultNode week = ResultNode.rollup("week", "week-key").addChild(day.addChild(hour1).addChild(hour2));
+
+        List<ResultNode> merged = new ArrayList<ResultNode>();
+        week.resolve(merged);
+        assertEquals(Arrays.asList(day, week), merged);
+        assertEquals(Arrays.asList("a", "b", "c"), week.getResult().getUniqueTerms());
+        assertEquals(5, week.getResult().getTotalCount());
+        assertEquals(1, week.getResult().getMissingCount());
+
+        List<TermsResult> results = new ArrayList<TermsResult>();
+        week.collect(results);
+        assertEquals(Collections.singletonList(week.getResult()), results);
+    }
+
+    @Test
+    public void testRollupCostIncludesChildren() throws Exception {
+        ResultNode searched = ResultNode.leaf("hour-1", "hour-1-key").setCost(5000)
+                .setResult(new TermsResult(Arrays.asList("a"), 1, 0, 0));
+        ResultNode cached = ResultNode.leaf("hour-2", "hour-2-key").setResult(new TermsResult(Arrays.asList("b"), 1, 0, 0));
+        ResultNode day = ResultNode.rollup("day", "day-key").addChild(searched).addChild(cached);
+        assertEquals(0, cached.getCost());
+
+        day.resolve(new ArrayList<ResultNode>());
+        assertTrue(day.getCost() >= 5000 + AdmissionCacheWrapper.DEFAULT_COST);
+    }
+
+    @Test
+    public void testTruncatedChildIsNotRolledUp() throws Exception {
+        ResultNode day = ResultNode.rollup("day", "day-key")
+                .addChild(ResultNode.leaf("hour-1", "hour-1-key").setResult(new TermsResult(Arrays.asList("a"), 1, 0, 0)))
+                .addChild(ResultNode.leaf("hour-2", "hour-2-key").setResult(new TermsResult(Arrays.asList("b"), 5, 0, 4)));
+
+        List<ResultNode> merged = new ArrayList<ResultNode>();
+        day.resolve(merged);
+        assertTrue(merged.isEmpty());
+        assertNull(day.getResult());
+
+        List<TermsResult> results = new ArrayList<TermsResult>();
+        day.collect(results);
+        assertEquals(2, results.size());
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.junit.Test;
+
+import com.tango.elasticsearch.rest.action.unique.codec.TermHashes;
+
+public class TermsHistogramTest {
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    @Test
+    public void testHourlyBuckets() throws Exception {
+        List<ResultNode> nodes = Arrays.asList(
+                hour(2, "c", "d"),
+                hour(0, "a", "b"),
+                hour(1, "b", "c"));
+        UniqueTermsResponse.UniqueTerms terms = new TermsHistogram(HOUR, UniqueTermsMode.EXACT, 14).aggregate("terms", nodes);
+        assertEquals(4, terms.getUnique());
+        List<UniqueTermsResponse.Bucket> histogram = terms.getHistogram();
+        assertEquals(3, histogram.size());
+        assertBucket(histogram.get(0), 0, 2, 2);
+        assertBucket(histogram.get(1), HOUR, 2, 3);
+        assertBucket(histogram.get(2), 2 * HOUR, 2, 4);
+        assertEquals(2, histogram.get(2).getTotal());
+    }
+
+    @Test
+    public void testDailyBucketsMergeSlices() throws Exception {
+        ResultNode slice = ResultNode.leaf("hour|15m", "slice-key")
+                .setResult(new TermsResult(Arrays.asList("e"), 1, 0, 0)).setTime(DAY + TimeUnit.MINUTES.toMillis(15));
+        List<ResultNode> nodes = Arrays.asList(hour(0, "a", "b"), hour(23, "b", "c"), hour(24, "a", "d"), slice);
+        UniqueTermsResponse.UniqueTerms terms = new TermsHistogram(DAY, UniqueTermsMode.EXACT, 14).aggregate("terms", nodes);
+        assertEquals(5, terms.getUnique());
+        assertBucket(terms.getHistogram().get(0), 0, 3, 3);
+        assertBucket(terms.getHistogram().get(1), DAY, 3, 5);
+    }
+
+    @Test
+    public void testHashBuckets() throws Exception {
+        List<ResultNode> nodes = Arrays.asList(
+                hashes(0, "a", "b"),
+                hashes(1, "b"),
+                hashes(2, "c"));
+        UniqueTermsResponse.UniqueTerms terms = new TermsHistogram(HOUR, UniqueTermsMode.HASH, 14).aggregate("terms", nodes);
+        assertEquals(3, terms.getUnique());
+        assertBucket(terms.getHistogram().get(1), HOUR, 1, 2);
+        assertBucket(terms.getHistogram().get(2), 2 * HOUR, 1, 3);
+    }
+
+    @Test
+    public void testStreaming() throws Exception {
+        UniqueTermsResponse.UniqueTerms terms = new TermsHistogram(HOUR, UniqueTermsMode.EXACT, 14)
+                .aggregate("terms", Arrays.asList(hour(0, "a"), hour(1, "b")));
+        BytesStreamOutput out = new BytesStreamOutput();
+        terms.writeTo(out);
+        UniqueTermsResponse.UniqueTerms read = new UniqueTermsResponse.UniqueTerms(null, 0, 0, 0, 0);
+        read.readFrom(new BytesStreamInput(out.bytes()));
+        assertEquals(2, read.getUnique());
+        assertEquals(2, read.getHistogram().size());
+        assertBucket(read.getHistogram().get(1), HOUR, 1, 2);
+    }
+
+    private static ResultNode hour(int hour, String... terms) {
+        return ResultNode.leaf("index-" + hour, "key-" + hour)
+                .setResult(new TermsResult(Arrays.asList(terms), terms.length, 0, 0)).setTime(hour * HOUR);
+    }
+
+    private static ResultNode hashes(int hour, String... terms) {
+        long[] hashes = new long[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            byte[] bytes = terms[i].getBytes();
+            hashes[i] = TermHashes.hash(bytes, 0, bytes.length);
+        }
+        return ResultNode.leaf("index-" + hour, "key-" + hour)
+                .setResult(new TermsResult(TermHashes.sortedUnique(hashes, hashes.length), terms.length, 0, 0)).setTime(hour * HOUR);
+    }
+
+    private static void assertBucket(UniqueTermsResponse.Bucket bucket, long time, int unique, int cumulative) {
+        assertEquals(time, bucket.getTime());
+        assertEquals(unique, bucket.getUnique());
+        assertEquals(cumulative, bucket.getCumulative());
+    }
+}
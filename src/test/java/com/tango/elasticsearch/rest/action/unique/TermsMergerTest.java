@@ -0,0 +1,73 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.elasticsearch.common.util.concurrent.jsr166y.ForkJoinPool;
+import org.junit.Test;
+
+import com.tango.elasticsearch.rest.action.unique.codec.TermHashes;
+import com.tango.elasticsearch.rest.action.unique.sketch.HyperLogLog;
+
+public class TermsMergerTest {
+
+    @Test
+    public void testParallelMatchesSequential() throws Exception {
+        List<TermsResult> exact = new ArrayList<TermsResult>();
+        List<TermsResult> hashed = new ArrayList<TermsResult>();
+        List<TermsResult> sketches = new ArrayList<TermsResult>();
+        for (int index = 0; index < 100; index++) {
+            List<String> terms = new ArrayList<String>();
+            long[] hashes = new long[200];
+            HyperLogLog sketch = new HyperLogLog(14);
+            for (int i = 0; i < 200; i++) {
+                String term = "UID_" + (index * 100 + i);
+                terms.add(term);
+                byte[] bytes = term.getBytes("UTF-8");
+                hashes[i] = TermHashes.hash(bytes, 0, bytes.length);
+                sketch.offerHash(hashes[i]);
+            }
+            exact.add(new TermsResult(terms, Integer.MAX_VALUE, 1, 0));
+            hashed.add(new TermsResult(TermHashes.sortedUnique(hashes, hashes.length), 200, 0, 0));
+            sketches.add(new TermsResult(sketch, 200, 0, 0));
+        }
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            TermsMerger parallel = new TermsMerger(pool, 4);
+            TermsMerger sequential = new TermsMerger(null, 4);
+
+            TermsResult merged = parallel.merge(exact);
+            assertEquals(10100, merged.getTerms().size());
+            assertEquals(sequential.merge(exact).getTerms().toList(), merged.getTerms().toList());
+            // counters don't overflow
+            assertEquals(100L * Integer.MAX_VALUE, merged.getTotalCount());
+            assertEquals(100, merged.getMissingCount());
+
+            assertEquals(10100, parallel.merge(hashed).getHashes().length);
+            assertEquals(sequential.merge(sketches).getSketch().cardinality(),
+                    parallel.merge(sketches).getSketch().cardinality());
+            assertNull(parallel.merge(Collections.<TermsResult>emptyList()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
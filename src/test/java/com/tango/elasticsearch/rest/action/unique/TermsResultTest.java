@@ -0,0 +1,106 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.tango.elasticsearch.rest.action.unique.codec.RoaringBitmap;
+import com.tango.elasticsearch.rest.action.unique.sketch.HyperLogLog;
+
+public class TermsResultTest {
+
+    @Test
+    public void testTermsAreSortedAndDeduplicated() throws Exception {
+        TermsResult result = new TermsResult(Arrays.asList("UID_2", "UID_10", "UID_1", "UID_2", "", "\u00e9t\u00e9"), 6, 1, 0);
+        assertEquals(Arrays.asList("", "UID_1", "UID_10", "UID_2", "\u00e9t\u00e9"), result.getUniqueTerms());
+        assertNull(result.getSketch());
+    }
+
+    @Test
+    public void testSerializationRoundTrip() throws Exception {
+        List<String> terms = new ArrayList<String>();
+        for (int i = 0; i < 10000; i++) {
+            terms.add("UID_" + i);
+        }
+        TermsResult result = roundTrip(new TermsResult(terms, 20000, 5, 0));
+        assertEquals(10000, result.getTerms().size());
+        assertEquals(20000, result.getTotalCount());
+        assertEquals(5, result.getMissingCount());
+        assertEquals(0, result.getOtherCount());
+        List<String> decoded = result.getUniqueTerms();
+        assertEquals(new HashSet<String>(terms), new HashSet<String>(decoded));
+    }
+
+    @Test
+    public void testSketchSerializationRoundTrip() throws Exception {
+        HyperLogLog sketch = new HyperLogLog(10);
+        for (int i = 0; i < 1000; i++) {
+            byte[] bytes = ("UID_" + i).getBytes("UTF-8");
+            sketch.offer(bytes, 0, bytes.length);
+        }
+        TermsResult result = roundTrip(new TermsResult(sketch, 1000, 0, 0));
+        assertNull(result.getTerms());
+        assertEquals(sketch.cardinality(), result.getSketch().cardinality());
+        assertEquals(10, result.getSketch().getPrecision());
+    }
+
+    @Test
+    public void testBitmapMergeAndRoundTrip() throws Exception {
+        TermsResult first = new TermsResult(RoaringBitmap.of(new int[]{1, 2, 70000}, 3), 3, 0, 0);
+        TermsResult second = new TermsResult(RoaringBitmap.of(new int[]{2, 3}, 2), 4, 1, 0);
+        TermsResult merged = roundTrip(TermsResult.merge(Arrays.asList(first, second)));
+        assertNull(merged.getTerms());
+        assertEquals(4, merged.getBitmap().cardinality());
+        assertEquals(7, merged.getTotalCount());
+        assertEquals(1, merged.getMissingCount());
+    }
+
+    @Test
+    public void testHashMergeOfOverlappingResults() throws Exception {
+        TermsResult first = new TermsResult(new long[]{Long.MIN_VALUE, -5, 1, 7}, 4, 0, 0);
+        TermsResult second = new TermsResult(new long[]{-5, 2, 7, Long.MAX_VALUE}, 5, 1, 0);
+        TermsResult third = new TermsResult(new long[]{1, 2}, 2, 0, 0);
+        TermsResult empty = new TermsResult(new long[0], 0, 0, 0);
+        TermsResult merged = roundTrip(TermsResult.merge(Arrays.asList(first, second, empty, third)));
+        assertNull(merged.getTerms());
+        assertTrue(Arrays.equals(new long[]{Long.MIN_VALUE, -5, 1, 2, 7, Long.MAX_VALUE}, merged.getHashes()));
+        assertEquals(11, merged.getTotalCount());
+        assertEquals(1, merged.getMissingCount());
+        assertEquals(0, TermsResult.merge(Arrays.asList(empty, empty)).getHashes().length);
+    }
+
+    private static TermsResult roundTrip(TermsResult result) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(result);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        return (TermsResult) in.readObject();
+    }
+}
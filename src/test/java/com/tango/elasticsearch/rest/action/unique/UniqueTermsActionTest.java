@@ -15,11 +15,31 @@
  */
 package com.tango.elasticsearch.rest.action.unique;
 
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.search.facet.Facet;
+import org.elasticsearch.search.facet.InternalFacets;
+import org.elasticsearch.search.facet.terms.TermsFacet;
+import org.elasticsearch.search.facet.terms.strings.InternalStringTermsFacet;
+import org.elasticsearch.search.internal.InternalSearchHits;
+import org.elasticsearch.search.internal.InternalSearchResponse;
 import org.junit.Test;
 
+import com.tango.elasticsearch.rest.action.unique.codec.TermDictionary;
+import com.tango.elasticsearch.rest.action.unique.codec.TermHashes;
+
 /**
  * @author Nina Safonova (nsafonova)
  */
@@ -36,4 +56,89 @@ public class UniqueTermsActionTest {
         assertNotNull(info.getRequestCacheKey());
     }
 
+    @Test
+    public void testRangeSource() throws Exception {
+        String requestSource = "{\"facets\":{\"terms\":{\"terms\":{\"field\":\"@fields.uid\"},\"facet_filter\":{\"range\":{\"@timestamp\":{\"from\":1395275639569,\"to\":\"now\"}}}}},\"size\":0}";
+        UniqueTermsAction action = new UniqueTermsAction();
+        UniqueTermsAction.RequestParamsInfo info = action.getRequestInfo(requestSource);
+        String sliceSource = new String(RequestTemplateParser.rangeSource(info.getRequestTemplate(), 1395275400000L, 1395276300000L, false), "UTF-8");
+        assertEquals("{\"facets\":{\"terms\":{\"facet_filter\":{\"range\":{\"@timestamp\":{\"from\":1395275400000,\"to\":1395276300000,\"include_upper\":false}}},\"terms\":{\"field\":\"@fields.uid\"}}},\"size\":0}", sliceSource);
+        assertEquals(info.getRequestCacheKey(), action.getRequestInfo(sliceSource).getRequestCacheKey());
+    }
+
+    @Test
+    public void testEquivalentSourcesShareCacheKey() throws Exception {
+        UniqueTermsAction action = new UniqueTermsAction();
+        UniqueTermsAction.RequestParamsInfo first = action.getRequestInfo(
+                "{\"size\":0,\"facets\":{\"terms\":{\"terms\":{\"field\":\"uid\",\"size\":1000},\"facet_filter\":{\"range\":{\"@timestamp\":{\"from\":1,\"to\":2}}}}}}");
+        UniqueTermsAction.RequestParamsInfo second = action.getRequestInfo(
+                "{ \"facets\" : { \"terms\" : { \"facet_filter\" : { \"range\" : { \"@timestamp\" : { \"to\" : 4, \"from\" : 3 } } }, \"terms\" : { \"size\" : 1000.0, \"field\" : \"uid\" } } }, \"size\" : 0 }");
+        UniqueTermsAction.RequestParamsInfo other = action.getRequestInfo(
+                "{\"size\":0,\"facets\":{\"terms\":{\"terms\":{\"field\":\"uid\",\"size\":100},\"facet_filter\":{\"range\":{\"@timestamp\":{\"from\":1,\"to\":2}}}}}}");
+        assertEquals(first.getRequestTemplate(), second.getRequestTemplate());
+        assertEquals(first.getRequestCacheKey(), second.getRequestCacheKey());
+        assertEquals(32, first.getRequestCacheKey().length());
+        assertFalse(first.getRequestCacheKey().equals(other.getRequestCacheKey()));
+    }
+
+    @Test
+    public void testHashAggregationMatchesExact() throws Exception {
+        List<TermsResult> exactResults = new ArrayList<TermsResult>();
+        List<TermsResult> hashResults = new ArrayList<TermsResult>();
+        for (int index = 0; index < 5; index++) {
+            List<String> terms = new ArrayList<String>();
+            long[] hashes = new long[1000];
+            for (int i = 0; i < 1000; i++) {
+                String term = "UID_" + (index * 500 + i);
+                terms.add(term);
+                byte[] bytes = term.getBytes("UTF-8");
+                hashes[i] = TermHashes.hash(bytes, 0, bytes.length);
+            }
+            exactResults.add(new TermsResult(terms, 1000, 0, 0));
+            hashResults.add(new TermsResult(TermHashes.sortedUnique(hashes, hashes.length), 1000, 0, 0));
+        }
+        UniqueTermsAction action = new UniqueTermsAction();
+        String exact = toJson(action.aggregateResults(exactResults));
+        String hash = toJson(action.aggregateResults(hashResults, UniqueTermsMode.HASH, 0));
+        assertEquals("{\"facets\":{\"terms\":{\"unique\":3000,\"total\":5000,\"missing\":0,\"other\":0}}}", exact);
+        assertEquals(exact, hash);
+
+        TermDictionary dictionary = new TermDictionary();
+        List<TermsResult> bitmapResults = new ArrayList<TermsResult>();
+        for (TermsResult result : exactResults) {
+            bitmapResults.add(new TermsResult(dictionary.encode(result.getTerms()), result.getTotalCount(), 0, 0));
+        }
+        assertEquals(exact, toJson(action.aggregateResults(bitmapResults, UniqueTermsMode.BITMAP, 0)));
+    }
+
+    @Test
+    public void testCompletionSizeOfTruncatedFacet() throws Exception {
+        List<InternalStringTermsFacet.TermEntry> entries = new ArrayList<InternalStringTermsFacet.TermEntry>();
+        for (String term : Arrays.asList("uid1", "uid2", "uid3")) {
+            entries.add(new InternalStringTermsFacet.TermEntry(term, 2));
+        }
+        InternalFacets facets = new InternalFacets(Arrays.<Facet>asList(new InternalStringTermsFacet("terms",
+                TermsFacet.ComparatorType.COUNT, 3, entries, 0, 10)));
+        InternalSearchHits hits = new InternalSearchHits(InternalSearchHits.EMPTY, 0, 0);
+        SearchResponse response = new SearchResponse(new InternalSearchResponse(hits, facets, null, false), null, 1, 1,
+                1, new ShardSearchFailure[0]);
+        UniqueTermsAction action = new UniqueTermsAction();
+        // every one of 4 documents not returned may hold another term
+        assertEquals(7, action.getCompletionSize(response, "terms",
+                new TermsResult(Arrays.asList("uid1", "uid2", "uid3"), 10, 0, 4)));
+        assertEquals(0, action.getCompletionSize(response, "terms",
+                new TermsResult(Arrays.asList("uid1", "uid2", "uid3"), 6, 0, 0)));
+        assertEquals(0, action.getCompletionSize(response, "terms", null));
+    }
+
+    private static String toJson(UniqueTermsResponse response) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XContentBuilder builder = XContentFactory.jsonBuilder(out);
+        builder.startObject();
+        response.toXContent(builder, null);
+        builder.endObject();
+        builder.close();
+        return out.toString("UTF-8");
+    }
+
 }
@@ -0,0 +1,158 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.cache;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class AdmissionCacheWrapperTest {
+
+    private static final AdmissionCacheWrapper.Weigher<String> LENGTH = new AdmissionCacheWrapper.Weigher<String>() {
+        @Override
+        public long weigh(String value) {
+            return value.length();
+        }
+    };
+
+    @Test
+    public void testAdmitsWhileThereIsRoom() throws Exception {
+        MapCache backend = new MapCache();
+        AdmissionCacheWrapper<String, String> cache = new AdmissionCacheWrapper<String, String>(backend, LENGTH, 10, 100);
+        cache.put("a", "12345");
+        cache.put("b", "12345");
+        assertEquals("12345", cache.get("a"));
+        assertEquals("12345", cache.get("b"));
+        assertEquals(10, cache.getWeight());
+        assertEquals(2, cache.getAdmitted());
+
+        cache.put("huge", "12345678901");
+        assertNull(cache.get("huge"));
+        assertEquals(1, cache.getRejected());
+    }
+
+    @Test
+    public void testOneOffEntryDoesNotEvictFrequentOnes() throws Exception {
+        MapCache backend = new MapCache();
+        AdmissionCacheWrapper<String, String> cache = new AdmissionCacheWrapper<String, String>(backend, LENGTH, 10, 100);
+        cache.put("a", "12345", 1000);
+        cache.put("b", "12345", 1000);
+        for (int i = 0; i < 3; i++) {
+            cache.get("a");
+            cache.get("b");
+        }
+        // miss of ad-hoc query, then its result is offered
+        assertNull(cache.get("adhoc"));
+        cache.put("adhoc", "1234567890", 1000);
+        assertNull(backend.map.get("adhoc"));
+        assertNotNull(backend.map.get("a"));
+        assertNotNull(backend.map.get("b"));
+    }
+
+    @Test
+    public void testFrequentExpensiveEntryEvictsLeastRecentlyUsed() throws Exception {
+        MapCache backend = new MapCache();
+        AdmissionCacheWrapper<String, String> cache = new AdmissionCacheWrapper<String, String>(backend, LENGTH, 10, 100);
+        cache.put("a", "12345", 1000);
+        cache.put("b", "12345", 1000);
+        cache.get("b");
+        for (int i = 0; i < 3; i++) {
+            assertNull(cache.get("hot"));
+        }
+        cache.put("hot", "12345", 5000);
+        assertEquals("12345", backend.map.get("hot"));
+        assertNull(backend.map.get("a"));
+        assertEquals("12345", backend.map.get("b"));
+        assertEquals(1, cache.getEvicted());
+        assertEquals(10, cache.getWeight());
+    }
+
+    @Test
+    public void testRollupSurvivesCheaperHourlyEntries() throws Exception {
+        MapCache backend = new MapCache();
+        AdmissionCacheWrapper<String, String> cache = new AdmissionCacheWrapper<String, String>(backend, LENGTH, 10, 100);
+        // day merged from 24 hours searched for 1000 microseconds each
+        cache.put("day", "12345", 24 * 1000 + 50);
+        cache.put("hour-0", "12345", 1000);
+        for (int i = 1; i < 5; i++) {
+            String hour = "hour-" + i;
+            // missed by a couple of requests before the search completes
+            assertNull(cache.get(hour));
+            assertNull(cache.get(hour));
+            cache.put(hour, "12345", 1000);
+            assertEquals("12345", backend.map.get("day"));
+        }
+        assertEquals("12345", backend.map.get("hour-0"));
+        assertEquals(0, cache.getEvicted());
+    }
+
+    @Test
+    public void testEntryEvictedByBackendFreesWeight() throws Exception {
+        MapCache backend = new MapCache();
+        AdmissionCacheWrapper<String, String> cache = new AdmissionCacheWrapper<String, String>(backend, LENGTH, 10, 100);
+        cache.put("a", "12345");
+        backend.map.remove("a");
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getWeight());
+    }
+
+    private static class MapCache implements CacheWrapper<String, String> {
+
+        private final Map<String, String> map = new HashMap<String, String>();
+
+        @Override
+        public void put(String key, String value) {
+            map.put(key, value);
+        }
+
+        @Override
+        public void put(String key, String value, long cost) {
+            map.put(key, value);
+        }
+
+        @Override
+        public String get(String key) {
+            return map.get(key);
+        }
+
+        @Override
+        public Map<String, String> getAll(Collection<String> keys) {
+            Map<String, String> values = new HashMap<String, String>();
+            for (String key : keys) {
+                if (map.containsKey(key)) {
+                    values.put(key, map.get(key));
+                }
+            }
+            return values;
+        }
+
+        @Override
+        public void remove(String key) {
+            map.remove(key);
+        }
+
+        @Override
+        public void clear() {
+            map.clear();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.cache;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+import org.junit.Test;
+
+public class ExpiringCacheTest {
+
+    @Test
+    public void testEntriesExpireAndAreEvicted() throws Exception {
+        ExpiringCache<String, String> cache = new ExpiringCache<String, String>(2, 1000);
+        cache.put("a", "a", 0);
+        cache.put("b", "b", 500);
+        assertEquals("a", cache.get("a", 999));
+        assertNull(cache.get("a", 1000));
+        assertEquals("b", cache.get("b", 1000));
+        assertEquals(1, cache.size());
+
+        cache.put("c", "c", 1000);
+        cache.get("b", 1000);
+        cache.put("d", "d", 1000);
+        assertNull(cache.get("c", 1000));
+        assertEquals("b", cache.get("b", 1000));
+        assertEquals("d", cache.get("d", 1000));
+    }
+}
@@ -0,0 +1,54 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.cache;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FrequencySketchTest {
+
+    @Test
+    public void testCountsUpToFifteen() throws Exception {
+        FrequencySketch sketch = new FrequencySketch(1000);
+        assertEquals(0, sketch.frequency("key"));
+        for (int i = 0; i < 5; i++) {
+            sketch.increment("key");
+        }
+        assertEquals(5, sketch.frequency("key"));
+        for (int i = 0; i < 20; i++) {
+            sketch.increment("key");
+        }
+        assertEquals(15, sketch.frequency("key"));
+        sketch.clear();
+        assertEquals(0, sketch.frequency("key"));
+    }
+
+    @Test
+    public void testCountersAreHalvedAfterSample() throws Exception {
+        FrequencySketch sketch = new FrequencySketch(16);
+        for (int i = 0; i < 8; i++) {
+            sketch.increment("hot");
+        }
+        // 10 increments per table long trigger aging
+        for (int i = 0; i < 160; i++) {
+            sketch.increment("key" + i);
+        }
+        int frequency = sketch.frequency("hot");
+        assertTrue("frequency " + frequency, frequency >= 3 && frequency <= 5);
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.cache;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.elasticsearch.action.deletebyquery.DeleteByQueryRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.internal.InternalClient;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.Test;
+
+public class IndexCacheWrapperTest {
+
+    @Test
+    public void testSourceRoundTrip() throws Exception {
+        byte[] value = new byte[]{0, 1, 2, (byte) 0xff, 'v'};
+        BytesReference source = IndexCacheWrapper.toSource("logs-2014.03.20-10|key", value).bytes();
+        assertEquals(Arrays.toString(value),
+                Arrays.toString(IndexCacheWrapper.fromSource("logs-2014.03.20-10|key", source)));
+        // hash collision with another key is a miss
+        assertNull(IndexCacheWrapper.fromSource("logs-2014.03.20-11|key", source));
+    }
+
+    @Test
+    public void testId() throws Exception {
+        String id = IndexCacheWrapper.toId("logs-2014.03.20-10|key");
+        assertEquals(32, id.length());
+        assertEquals(id, IndexCacheWrapper.toId("logs-2014.03.20-10|key"));
+        assertFalse(id.equals(IndexCacheWrapper.toId("logs-2014.03.20-11|key")));
+    }
+
+    @Test
+    public void testClearDoesNotWaitForDeletion() throws Exception {
+        final List<String> calls = new ArrayList<String>();
+        // client that never answers
+        Client client = (Client) Proxy.newProxyInstance(Client.class.getClassLoader(), new Class<?>[]{InternalClient.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("prepareDeleteByQuery")) {
+                            return new DeleteByQueryRequestBuilder((Client) proxy).setIndices((String[]) args[0]);
+                        }
+                        calls.add(method.getName());
+                        return null;
+                    }
+                });
+        IndexCacheWrapper<String> cache = new IndexCacheWrapper<String>(client, ".unique_cache", null, 1, 0,
+                TimeValue.timeValueHours(1), TimeValue.timeValueSeconds(5), 1 << 20);
+        cache.getNearCache().put("key", "value", 5);
+        cache.clear();
+        assertNull(cache.getNearCache().get("key"));
+        assertEquals(Arrays.asList("deleteByQuery"), calls);
+    }
+}
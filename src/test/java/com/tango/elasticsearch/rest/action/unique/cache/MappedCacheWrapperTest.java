@@ -0,0 +1,163 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.cache;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedCacheWrapperTest {
+
+    private static final ValueCodec<String> CODEC = new ValueCodec<String>() {
+        @Override
+        public void write(String value, DataOutput out) throws IOException {
+            out.writeUTF(value);
+        }
+
+        @Override
+        public String read(DataInput in) throws IOException {
+            return in.readUTF();
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testPutGetAndReopen() throws Exception {
+        File directory = folder.newFolder("cache");
+        MappedCacheWrapper<String> cache = new MappedCacheWrapper<String>(directory, CODEC, 1 << 20, 1 << 16, 1024);
+        cache.put("first", "value 1");
+        cache.put("second", "value 2");
+        cache.put("first", "value 3");
+        assertEquals("value 3", cache.get("first"));
+        assertEquals("value 2", cache.get("second"));
+        assertNull(cache.get("third"));
+        cache.flush();
+
+        MappedCacheWrapper<String> reopened = new MappedCacheWrapper<String>(directory, CODEC, 1 << 20, 1 << 16, 1024);
+        assertEquals("value 3", reopened.get("first"));
+        assertEquals("value 2", reopened.get("second"));
+        reopened.clear();
+        assertNull(reopened.get("first"));
+        reopened.put("first", "value 4");
+        assertEquals("value 4", reopened.get("first"));
+    }
+
+    @Test
+    public void testCloseAndReopen() throws Exception {
+        File directory = folder.newFolder("cache");
+        MappedCacheWrapper<String> cache = new MappedCacheWrapper<String>(directory, CODEC, 1 << 20, 1 << 16, 1024);
+        cache.put("first", "value 1");
+        cache.close();
+        cache.close();
+
+        MappedCacheWrapper<String> reopened = new MappedCacheWrapper<String>(directory, CODEC, 1 << 20, 1 << 16, 1024);
+        assertEquals("value 1", reopened.get("first"));
+        reopened.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSegmentSizeValidated() throws Exception {
+        new MappedCacheWrapper<String>(folder.newFolder("cache"), CODEC, 1 << 20, 8, 1024);
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        MappedCacheWrapper<String> cache = new MappedCacheWrapper<String>(folder.newFolder("cache"), CODEC, 1 << 20, 1 << 16, 16);
+        for (int i = 0; i < 10; i++) {
+            cache.put("key" + i, "value " + i);
+        }
+        cache.remove("key3");
+        cache.remove("missing");
+        assertNull(cache.get("key3"));
+        for (int i = 0; i < 10; i++) {
+            if (i != 3) {
+                assertEquals("value " + i, cache.get("key" + i));
+            }
+        }
+        cache.put("key3", "value 33");
+        assertEquals("value 33", cache.get("key3"));
+    }
+
+    @Test
+    public void testRemovedSlotsReclaimed() throws Exception {
+        File directory = folder.newFolder("cache");
+        MappedCacheWrapper<String> cache = new MappedCacheWrapper<String>(directory, CODEC, 1 << 20, 1 << 16, 16);
+        cache.put("kept", "value");
+        // many more entries than index slots go through the cache
+        for (int i = 0; i < 200; i++) {
+            cache.put("key" + i, "value " + i);
+            assertEquals("value " + i, cache.get("key" + i));
+            if (i % 2 == 0) {
+                cache.remove("key" + i);
+                assertNull(cache.get("key" + i));
+            } else if (i > 1) {
+                cache.remove("key" + (i - 2));
+                assertNull(cache.get("key" + (i - 2)));
+            }
+            assertTrue(cache.getDeadSlots() <= 4);
+        }
+        assertEquals("value", cache.get("kept"));
+        assertEquals("value 199", cache.get("key199"));
+        assertNull(cache.get("key198"));
+        assertNull(cache.get("key197"));
+        for (int i = 0; i < 14; i++) {
+            cache.put("new" + i, "new " + i);
+        }
+        for (int i = 0; i < 14; i++) {
+            assertEquals("new " + i, cache.get("new" + i));
+        }
+        cache.close();
+
+        MappedCacheWrapper<String> reopened = new MappedCacheWrapper<String>(directory, CODEC, 1 << 20, 1 << 16, 16);
+        assertEquals(0, reopened.getDeadSlots());
+        assertEquals("value", reopened.get("kept"));
+        assertEquals("new 13", reopened.get("new13"));
+        reopened.close();
+    }
+
+    @Test
+    public void testOldestSegmentEvicted() throws Exception {
+        MappedCacheWrapper<String> cache = new MappedCacheWrapper<String>(folder.newFolder("cache"), CODEC, 3 * 1024, 1024, 64);
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            value.append('x');
+        }
+        for (int i = 0; i < 40; i++) {
+            cache.put("key" + i, value.toString() + i);
+        }
+        assertEquals(3 * 1024, cache.getSize());
+        assertNull(cache.get("key0"));
+        assertEquals(value.toString() + 39, cache.get("key39"));
+        // slots of dropped segments are freed right away
+        assertEquals(0, cache.getDeadSlots());
+        for (int i = 40; i < 400; i++) {
+            cache.put("key" + i, value.toString() + i);
+        }
+        assertNull(cache.get("key39"));
+        assertEquals(value.toString() + 399, cache.get("key399"));
+    }
+}
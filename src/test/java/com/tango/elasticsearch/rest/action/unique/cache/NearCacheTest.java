@@ -0,0 +1,47 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.cache;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+import org.junit.Test;
+
+public class NearCacheTest {
+
+    @Test
+    public void testLeastRecentlyUsedEvictedByWeight() throws Exception {
+        NearCache<String, String> cache = new NearCache<String, String>(100);
+        cache.put("a", "a", 40);
+        cache.put("b", "b", 40);
+        assertEquals("a", cache.get("a"));
+        cache.put("c", "c", 40);
+        assertNull(cache.get("b"));
+        assertEquals("a", cache.get("a"));
+        assertEquals("c", cache.get("c"));
+        assertEquals(80, cache.getWeight());
+
+        cache.put("huge", "huge", 101);
+        assertNull(cache.get("huge"));
+        assertEquals(2, cache.size());
+
+        cache.put("a", "a2", 10);
+        assertEquals("a2", cache.get("a"));
+        assertEquals(50, cache.getWeight());
+        cache.remove("c");
+        assertEquals(10, cache.getWeight());
+    }
+}
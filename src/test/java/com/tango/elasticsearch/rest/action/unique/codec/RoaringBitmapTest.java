@@ -0,0 +1,127 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.codec;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class RoaringBitmapTest {
+
+    @Test
+    public void testArrayAndBitmapContainers() throws Exception {
+        int[] values = new int[10000];
+        int length = 0;
+        // dense container, then sparse one
+        for (int i = 0; i < 6000; i++) {
+            values[length++] = i * 2;
+        }
+        for (int i = 0; i < 100; i++) {
+            values[length++] = (5 << 16) + i * 3;
+        }
+        values[length++] = 0;
+        RoaringBitmap bitmap = RoaringBitmap.of(values, length);
+        assertEquals(6100, bitmap.cardinality());
+        assertTrue(bitmap.contains(11998));
+        assertFalse(bitmap.contains(11999));
+        assertTrue(bitmap.contains((5 << 16) + 297));
+        assertFalse(bitmap.contains((5 << 16) + 298));
+        assertFalse(bitmap.contains(1 << 16));
+        // container count, bitmap container, array container
+        assertEquals(4 + (4 + 8192) + (4 + 2 * 100), bitmap.sizeInBytes());
+    }
+
+    @Test
+    public void testSetOperationsMatchSets() throws Exception {
+        Random random = new Random(42);
+        for (int round = 0; round < 20; round++) {
+            TreeSet<Integer> first = new TreeSet<Integer>();
+            TreeSet<Integer> second = new TreeSet<Integer>();
+            RoaringBitmap firstBitmap = randomBitmap(random, first);
+            RoaringBitmap secondBitmap = randomBitmap(random, second);
+
+            TreeSet<Integer> union = new TreeSet<Integer>(first);
+            union.addAll(second);
+            assertEquals(union, toSet(RoaringBitmap.or(Arrays.asList(firstBitmap, secondBitmap, RoaringBitmap.EMPTY))));
+
+            TreeSet<Integer> intersection = new TreeSet<Integer>(first);
+            intersection.retainAll(second);
+            RoaringBitmap and = RoaringBitmap.and(firstBitmap, secondBitmap);
+            assertEquals(intersection, toSet(and));
+            assertEquals(intersection.size(), and.cardinality());
+        }
+    }
+
+    @Test
+    public void testSerializationRoundTrip() throws Exception {
+        TreeSet<Integer> values = new TreeSet<Integer>();
+        RoaringBitmap bitmap = randomBitmap(new Random(7), values);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bitmap.writeTo(new DataOutputStream(bytes));
+        assertEquals(bitmap.sizeInBytes(), bytes.size());
+        RoaringBitmap read = RoaringBitmap.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(values, toSet(read));
+        assertEquals(values.size(), read.cardinality());
+    }
+
+    /**
+     * Mixes containers that are full, dense, sparse and missing
+     */
+    private static RoaringBitmap randomBitmap(Random random, TreeSet<Integer> values) {
+        int[] array = new int[8 << 16];
+        int length = 0;
+        for (int key = 0; key < 8; key++) {
+            int count;
+            switch (random.nextInt(4)) {
+                case 0:
+                    count = 0;
+                    break;
+                case 1:
+                    count = random.nextInt(100);
+                    break;
+                case 2:
+                    count = 4000 + random.nextInt(200);
+                    break;
+                default:
+                    count = 1 << 16;
+            }
+            for (int i = 0; i < count; i++) {
+                int value = (key << 16) + (count == 1 << 16 ? i : random.nextInt(1 << 16));
+                array[length++] = value;
+                values.add(value);
+            }
+        }
+        return RoaringBitmap.of(array, length);
+    }
+
+    private static TreeSet<Integer> toSet(RoaringBitmap bitmap) {
+        TreeSet<Integer> result = new TreeSet<Integer>();
+        for (int value : bitmap.toArray()) {
+            result.add(value);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.codec;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.apache.lucene.util.BytesRef;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TermDictionaryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testIdsSurviveReopen() throws Exception {
+        File file = new File(folder.getRoot(), "uid.dict");
+        TermDictionary dictionary = TermDictionary.open(file);
+        RoaringBitmap first = dictionary.encode(TermsBlock.fromStrings(Arrays.asList("UID_1", "UID_2", "UID_3")));
+        RoaringBitmap second = dictionary.encode(TermsBlock.fromStrings(Arrays.asList("UID_3", "UID_4")));
+        assertEquals(3, first.cardinality());
+        assertEquals(1, RoaringBitmap.and(first, second).cardinality());
+        assertEquals(4, dictionary.size());
+        String id = dictionary.getId();
+        dictionary.close();
+
+        TermDictionary reopened = TermDictionary.open(file);
+        assertEquals(id, reopened.getId());
+        assertEquals(4, reopened.size());
+        int uid4 = reopened.find(new BytesRef("UID_4"));
+        assertTrue(second.contains(uid4));
+        assertEquals(second.cardinality(), RoaringBitmap.and(second,
+                reopened.encode(TermsBlock.fromStrings(Arrays.asList("UID_3", "UID_4")))).cardinality());
+        assertEquals(4, reopened.size());
+        reopened.close();
+    }
+
+    @Test
+    public void testTornTermIsDropped() throws Exception {
+        File file = new File(folder.getRoot(), "uid.dict");
+        TermDictionary dictionary = TermDictionary.open(file);
+        dictionary.encode(TermsBlock.fromStrings(Arrays.asList("UID_1", "UID_2")));
+        dictionary.close();
+        long length = file.length();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(length - 2);
+        raf.close();
+
+        TermDictionary reopened = TermDictionary.open(file);
+        assertEquals(1, reopened.size());
+        assertEquals(-1, reopened.find(new BytesRef("UID_2")));
+        reopened.encode(TermsBlock.fromStrings(Arrays.asList("UID_3")));
+        reopened.close();
+        TermDictionary appended = TermDictionary.open(file);
+        assertEquals(2, appended.size());
+        appended.close();
+    }
+
+    @Test
+    public void testNewTermsAreOnDiskBeforeIdsAreReturned() throws Exception {
+        File file = new File(folder.getRoot(), "uid.dict");
+        TermDictionary dictionary = TermDictionary.open(file);
+        RoaringBitmap ids = dictionary.encode(TermsBlock.fromStrings(Arrays.asList("UID_1", "UID_2")));
+        // not closed, as after a crash
+        TermDictionary recovered = TermDictionary.open(file);
+        assertEquals(dictionary.getId(), recovered.getId());
+        assertTrue(ids.contains(recovered.find(new BytesRef("UID_2"))));
+        recovered.close();
+        dictionary.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooLongTermIsRejected() throws Exception {
+        char[] term = new char[TermDictionary.MAX_TERM_LENGTH + 1];
+        Arrays.fill(term, 'x');
+        new TermDictionary().encode(TermsBlock.fromStrings(Arrays.asList("UID_1", new String(term))));
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.materialize;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.ActionListener;
+import org.junit.Test;
+
+import com.tango.elasticsearch.rest.action.unique.TermsResult;
+import com.tango.elasticsearch.rest.action.unique.UniqueTermsMode;
+
+public class MaterializerTest {
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    @Test
+    public void testClosedHoursMaterializedOnce() throws Exception {
+        TestTarget target = new TestTarget();
+        Materializer materializer = new Materializer(target, 0, TimeUnit.MINUTES.toMillis(5), 3);
+        materializer.register(new QueryTemplate("dashboard", "logs", "{}", "k1", Collections.singletonMap("terms", "f1"),
+                Collections.singletonMap("terms", "uid"), UniqueTermsMode.EXACT, 14));
+
+        long now = 100 * HOUR + TimeUnit.MINUTES.toMillis(4);
+        materializer.runOnce(now);
+        // hour 99 is not closed for long enough yet
+        assertEquals(Arrays.asList(98 * HOUR, 97 * HOUR, 96 * HOUR), target.materialized);
+
+        materializer.runOnce(now + TimeUnit.MINUTES.toMillis(2));
+        assertEquals(Arrays.asList(98 * HOUR, 97 * HOUR, 96 * HOUR, 99 * HOUR), target.materialized);
+    }
+
+    @Test
+    public void testReRegistrationRetriesHours() throws Exception {
+        TestTarget target = new TestTarget();
+        Materializer materializer = new Materializer(target, 0, 0, 1);
+        materializer.register(new QueryTemplate("dashboard", "logs", "{}", "k1", Collections.singletonMap("terms", "f1"),
+                Collections.singletonMap("terms", "uid"), UniqueTermsMode.EXACT, 14));
+        materializer.runOnce(10 * HOUR);
+        materializer.runOnce(10 * HOUR);
+        materializer.register(new QueryTemplate("dashboard", "logs", "{\"size\":0}", "k2", Collections.singletonMap("terms", "f2"),
+                Collections.singletonMap("terms", "uid"), UniqueTermsMode.EXACT, 14));
+        materializer.runOnce(10 * HOUR);
+        assertEquals(Arrays.asList(9 * HOUR, 9 * HOUR), target.materialized);
+    }
+
+    private static class TestTarget implements Materializer.Target {
+
+        private final List<Long> materialized = new ArrayList<Long>();
+
+        @Override
+        public boolean needsMaterialization(QueryTemplate template, long hourStart) {
+            return true;
+        }
+
+        @Override
+        public void materialize(QueryTemplate template, long hourStart, ActionListener<TermsResult> listener) {
+            materialized.add(hourStart);
+            listener.onResponse(new TermsResult(Arrays.asList("a"), 1, 0, 0));
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.search;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.routing.ImmutableShardRouting;
+import org.elasticsearch.cluster.routing.IndexRoutingTable;
+import org.elasticsearch.cluster.routing.IndexShardRoutingTable;
+import org.elasticsearch.cluster.routing.RoutingTable;
+import org.elasticsearch.cluster.routing.ShardRoutingState;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.index.shard.ShardId;
+import org.junit.Test;
+
+public class FanOutSchedulerTest {
+
+    @Test
+    public void testLimitAndPriority() throws Exception {
+        FanOutScheduler scheduler = new FanOutScheduler(null, null, 2, 2, 10);
+        List<String> started = new ArrayList<String>();
+        List<TestTask> tasks = Arrays.asList(new TestTask("full-1", 1, started), new TestTask("full-2", 1, started),
+                new TestTask("edge", 0.1, started), new TestTask("half", 0.5, started));
+        scheduler.submit(tasks);
+        assertEquals(Arrays.asList("edge", "half"), started);
+        assertEquals(2, scheduler.getInFlight());
+        assertEquals(2, scheduler.getQueued());
+
+        tasks.get(2).finish();
+        assertEquals(Arrays.asList("edge", "half", "full-1"), started);
+        tasks.get(3).finish();
+        tasks.get(0).finish();
+        tasks.get(1).finish();
+        assertEquals(Arrays.asList("edge", "half", "full-1", "full-2"), started);
+        assertEquals(0, scheduler.getInFlight());
+        assertEquals(0, scheduler.getQueued());
+    }
+
+    @Test
+    public void testBackgroundTasksStartLast() throws Exception {
+        FanOutScheduler scheduler = new FanOutScheduler(null, null, 1, 1, 10);
+        List<String> started = new ArrayList<String>();
+        List<TestTask> tasks = Arrays.asList(new TestTask("running", 1, started), new TestTask("background", 0.1, true, started),
+                new TestTask("request", 1, started));
+        scheduler.submit(tasks.subList(0, 2));
+        scheduler.submit(tasks.subList(2, 3));
+        tasks.get(0).finish();
+        tasks.get(2).finish();
+        assertEquals(Arrays.asList("running", "request", "background"), started);
+    }
+
+    @Test
+    public void testCostWeightedByIndexSize() throws Exception {
+        IndexSizes sizes = new IndexSizes(null, 60000);
+        Map<String, Long> indices = new HashMap<String, Long>();
+        indices.put("big", 1000L);
+        indices.put("small", 10L);
+        sizes.update(indices, 100, 0);
+        FanOutScheduler scheduler = new FanOutScheduler(null, sizes, 1, 1, 10);
+        List<String> started = new ArrayList<String>();
+        List<TestTask> tasks = Arrays.asList(new TestTask("big", 0.5, started), new TestTask("unknown", 1, started),
+                new TestTask("small", 1, started));
+        scheduler.submit(tasks);
+        tasks.get(2).finish();
+        tasks.get(1).finish();
+        tasks.get(0).finish();
+        assertEquals(Arrays.asList("small", "unknown", "big"), started);
+        assertEquals(500.0, tasks.get(0).getCost());
+        assertEquals(100.0, tasks.get(1).getCost());
+        assertEquals(10.0, tasks.get(2).getCost());
+    }
+
+    @Test
+    public void testBackgroundTasksWaitForBlockedNode() throws Exception {
+        RoutingTable.Builder routing = new RoutingTable.Builder();
+        addIndex(routing, "a", "node-a");
+        addIndex(routing, "ab", "node-a", "node-b");
+        addIndex(routing, "b", "node-b");
+        ClusterState state = new ClusterState.Builder().routingTable(routing).build();
+        FanOutScheduler scheduler = new FanOutScheduler(null, null, 10, 1, 10);
+        List<String> started = new ArrayList<String>();
+        List<TestTask> tasks = Arrays.asList(new TestTask("a", 1, started), new TestTask("ab", 1, started),
+                new TestTask("b", 0.1, true, started));
+        scheduler.submit(tasks.subList(0, 1), state);
+        scheduler.submit(tasks.subList(1, 3), state);
+        assertEquals(Arrays.asList("a"), started);
+        tasks.get(0).finish();
+        assertEquals(Arrays.asList("a", "ab"), started);
+        tasks.get(1).finish();
+        assertEquals(Arrays.asList("a", "ab", "b"), started);
+        assertEquals(2.0, tasks.get(1).getCost());
+    }
+
+    @Test
+    public void testQueueLimit() throws Exception {
+        FanOutScheduler scheduler = new FanOutScheduler(null, null, 1, 1, 2);
+        List<String> started = new ArrayList<String>();
+        scheduler.submit(Arrays.asList(new TestTask("first", 1, started), new TestTask("second", 1, started)));
+        try {
+            scheduler.submit(Arrays.asList(new TestTask("third", 1, started), new TestTask("fourth", 1, started)));
+            fail("Expected rejection");
+        } catch (EsRejectedExecutionException e) {
+            // expected
+        }
+        assertEquals(1, scheduler.getQueued());
+        assertEquals(Arrays.asList("first"), started);
+    }
+
+    @Test
+    public void testFailedToStart() throws Exception {
+        FanOutScheduler scheduler = new FanOutScheduler(null, null, 1, 1, 10);
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        scheduler.submit(Arrays.asList(new FanOutTask("broken", 1) {
+            @Override
+            protected void execute() {
+                throw new IllegalStateException("broken");
+            }
+
+            @Override
+            protected void failed(Throwable e) {
+                failures.add(e);
+            }
+        }));
+        assertEquals(1, failures.size());
+        assertEquals(0, scheduler.getInFlight());
+    }
+
+    private static void addIndex(RoutingTable.Builder routing, String index, String... nodes) {
+        IndexRoutingTable.Builder table = new IndexRoutingTable.Builder(index);
+        for (int shard = 0; shard < nodes.length; shard++) {
+            table.addIndexShard(new IndexShardRoutingTable.Builder(new ShardId(index, shard), true)
+                    .addShard(new ImmutableShardRouting(index, shard, nodes[shard], true, ShardRoutingState.STARTED, 1))
+                    .build());
+        }
+        routing.add(table);
+    }
+
+    private static class TestTask extends FanOutTask {
+
+        private final List<String> started;
+
+        TestTask(String index, double coverage, List<String> started) {
+            this(index, coverage, false, started);
+        }
+
+        TestTask(String index, double coverage, boolean background, List<String> started) {
+            super(index, coverage, background);
+            this.started = started;
+        }
+
+        @Override
+        protected void execute() {
+            started.add(getIndex());
+        }
+
+        @Override
+        protected void failed(Throwable e) {
+            throw new AssertionError(e);
+        }
+
+        void finish() {
+            finished();
+        }
+    }
+}
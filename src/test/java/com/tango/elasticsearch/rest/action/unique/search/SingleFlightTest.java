@@ -0,0 +1,97 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.search;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.elasticsearch.action.ActionListener;
+import org.junit.Test;
+
+public class SingleFlightTest {
+
+    @Test
+    public void testJoinRunningOperation() throws Exception {
+        SingleFlight<String> singleFlight = new SingleFlight<String>();
+        List<String> received = new ArrayList<String>();
+        ActionListener<String> leader = singleFlight.join("key", new RecordingListener("first", received));
+        assertNotNull(leader);
+        assertNull(singleFlight.join("key", new RecordingListener("second", received)));
+        assertNotNull(singleFlight.join("other", new RecordingListener("other", received)));
+        assertEquals(2, singleFlight.getInFlight());
+        assertEquals(1, singleFlight.getCoalesced());
+
+        leader.onResponse("result");
+        assertEquals(Arrays.asList("first:result", "second:result"), received);
+        assertEquals(1, singleFlight.getInFlight());
+        assertNotNull(singleFlight.join("key", new RecordingListener("third", received)));
+    }
+
+    @Test
+    public void testFailureIsShared() throws Exception {
+        SingleFlight<String> singleFlight = new SingleFlight<String>();
+        List<String> received = new ArrayList<String>();
+        ActionListener<String> leader = singleFlight.join("key", new RecordingListener("first", received));
+        singleFlight.join("key", new RecordingListener("second", received));
+        leader.onFailure(new IllegalStateException("failed"));
+        assertEquals(Arrays.asList("first:failed", "second:failed"), received);
+        assertEquals(0, singleFlight.getInFlight());
+    }
+
+    @Test
+    public void testRequestsDontJoinBackgroundOperations() throws Exception {
+        SingleFlight<String> singleFlight = new SingleFlight<String>();
+        List<String> received = new ArrayList<String>();
+        ActionListener<String> background = singleFlight.joinBackground("key", new RecordingListener("background", received));
+        assertNotNull(background);
+        ActionListener<String> request = singleFlight.join("key", new RecordingListener("request", received));
+        assertNotNull(request);
+        // another background caller joins the request operation
+        assertNull(singleFlight.joinBackground("key", new RecordingListener("late", received)));
+        assertEquals(2, singleFlight.getInFlight());
+
+        request.onResponse("searched");
+        background.onResponse("materialized");
+        assertEquals(Arrays.asList("request:searched", "late:searched", "background:materialized"), received);
+        assertEquals(0, singleFlight.getInFlight());
+    }
+
+    private static class RecordingListener implements ActionListener<String> {
+
+        private final String name;
+        private final List<String> received;
+
+        RecordingListener(String name, List<String> received) {
+            this.name = name;
+            this.received = received;
+        }
+
+        @Override
+        public void onResponse(String response) {
+            received.add(name + ":" + response);
+        }
+
+        @Override
+        public void onFailure(Throwable e) {
+            received.add(name + ":" + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.shard;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.fielddata.FieldDataType;
+import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.index.fielddata.IndexFieldDataService;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.tango.elasticsearch.rest.action.unique.TermsResult;
+import com.tango.elasticsearch.rest.action.unique.UniqueTermsMode;
+import com.tango.elasticsearch.rest.action.unique.codec.TermHashes;
+
+/**
+ * Runs shard collector over an in-memory index of two segments, without a node.
+ */
+public class DistinctTermsCollectorTest {
+
+    // uid values, device
+    private static final String[][] EVENTS = {{"u1", "d1"}, {"u2", "d1"}, {"u2", "d2"}, {"u3 u4", "d3"}, {"", "d4"}};
+
+    private Directory directory;
+    private IndexReader reader;
+    private IndexFieldData<?> uids;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(Version.LUCENE_46, new KeywordAnalyzer()));
+        for (int i = 0; i < EVENTS.length; i++) {
+            Document document = new Document();
+            for (String uid : EVENTS[i][0].split(" ")) {
+                if (uid.length() > 0) {
+                    document.add(new StringField("uid", uid, Field.Store.NO));
+                }
+            }
+            document.add(new StringField("device", EVENTS[i][1], Field.Store.NO));
+            writer.addDocument(document);
+            if (i == 1) {
+                writer.commit();
+            }
+        }
+        writer.close();
+        reader = DirectoryReader.open(directory);
+        assertEquals(2, reader.leaves().size());
+        uids = new IndexFieldDataService(new Index("events")).getForField(new FieldMapper.Names("uid"),
+                new FieldDataType("string"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        reader.close();
+        directory.close();
+    }
+
+    @Test
+    public void testCollectsDistinctTermsOfAllSegments() throws Exception {
+        TermsResult result = collect(new DistinctTermsCollector(uids, null, UniqueTermsMode.EXACT, 0));
+        assertEquals(Arrays.asList("u1", "u2", "u3", "u4"), result.getUniqueTerms());
+        assertEquals(5, result.getTotalCount());
+        assertEquals(1, result.getMissingCount());
+        assertEquals(0, result.getOtherCount());
+    }
+
+    @Test
+    public void testFacetFilterRestrictsDocuments() throws Exception {
+        TermsResult result = collect(new DistinctTermsCollector(uids,
+                new QueryWrapperFilter(new TermQuery(new Term("device", "d1"))), UniqueTermsMode.EXACT, 0));
+        assertEquals(Arrays.asList("u1", "u2"), result.getUniqueTerms());
+        assertEquals(2, result.getTotalCount());
+        assertEquals(0, result.getMissingCount());
+    }
+
+    @Test
+    public void testHashAndSketchModes() throws Exception {
+        long[] expected = new long[4];
+        for (int i = 0; i < expected.length; i++) {
+            byte[] bytes = ("u" + (i + 1)).getBytes("UTF-8");
+            expected[i] = TermHashes.hash(bytes, 0, bytes.length);
+        }
+        TermsResult hashes = collect(new DistinctTermsCollector(uids, null, UniqueTermsMode.HASH, 0));
+        assertTrue(Arrays.equals(TermHashes.sortedUnique(expected, expected.length), hashes.getHashes()));
+        assertEquals(5, hashes.getTotalCount());
+
+        TermsResult sketch = collect(new DistinctTermsCollector(uids, null, UniqueTermsMode.HLL, 10));
+        assertEquals(4, sketch.getSketch().cardinality());
+        assertEquals(1, sketch.getMissingCount());
+    }
+
+    @Test
+    public void testUnmappedFieldIsMissing() throws Exception {
+        TermsResult result = collect(new DistinctTermsCollector(null, null, UniqueTermsMode.EXACT, 0));
+        assertTrue(result.getUniqueTerms().isEmpty());
+        assertEquals(0, result.getTotalCount());
+        assertEquals(EVENTS.length, result.getMissingCount());
+    }
+
+    private TermsResult collect(DistinctTermsCollector collector) throws Exception {
+        new IndexSearcher(reader).search(new MatchAllDocsQuery(), collector);
+        return collector.getResult();
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.shard;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.elasticsearch.action.ShardOperationFailedException;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.junit.Test;
+
+import com.tango.elasticsearch.rest.action.unique.TermsResult;
+import com.tango.elasticsearch.rest.action.unique.UniqueTermsMode;
+
+public class DistinctTermsStreamingTest {
+
+    @Test
+    public void testRequestRoundTrip() throws Exception {
+        DistinctTermsRequest request = new DistinctTermsRequest("index-2014.01.01-00")
+                .source(new BytesArray("{\"facets\":{\"terms\":{\"terms\":{\"field\":\"uid\"}}}}"))
+                .types("event")
+                .mode(UniqueTermsMode.HLL, 12);
+        BytesStreamOutput out = new BytesStreamOutput();
+        request.writeTo(out);
+        DistinctTermsRequest read = new DistinctTermsRequest();
+        read.readFrom(new BytesStreamInput(out.bytes()));
+        assertEquals(Arrays.asList("index-2014.01.01-00"), Arrays.asList(read.indices()));
+        assertEquals(Arrays.asList("event"), Arrays.asList(read.types()));
+        assertEquals(request.source().toUtf8(), read.source().toUtf8());
+        assertEquals(UniqueTermsMode.HLL, read.mode());
+        assertEquals(12, read.precision());
+    }
+
+    @Test
+    public void testShardResponseRoundTrip() throws Exception {
+        Map<String, TermsResult> results = new LinkedHashMap<String, TermsResult>();
+        results.put("users", new TermsResult(Arrays.asList("UID_2", "UID_1"), 5, 1, 0));
+        results.put("devices", new TermsResult(Arrays.asList("D_1"), 5, 0, 0));
+        ShardDistinctTermsResponse response = new ShardDistinctTermsResponse("index", 3, results);
+        BytesStreamOutput out = new BytesStreamOutput();
+        response.writeTo(out);
+        ShardDistinctTermsResponse read = new ShardDistinctTermsResponse();
+        read.readFrom(new BytesStreamInput(out.bytes()));
+        assertEquals("index", read.getIndex());
+        assertEquals(3, read.getShardId());
+        assertEquals(Arrays.asList("users", "devices"), new ArrayList<String>(read.getResults().keySet()));
+        TermsResult users = read.getResults().get("users");
+        assertEquals(Arrays.asList("UID_1", "UID_2"), users.getUniqueTerms());
+        assertEquals(5, users.getTotalCount());
+        assertEquals(1, users.getMissingCount());
+        assertEquals(Arrays.asList("D_1"), read.getResults().get("devices").getUniqueTerms());
+    }
+
+    @Test
+    public void testEmptyResult() throws Exception {
+        DistinctTermsResponse response = new DistinctTermsResponse(Collections.singletonMap("terms",
+                new DistinctTermsCollector(null, null, UniqueTermsMode.HASH, 14).getResult()), 1, 1, 0,
+                Collections.<ShardOperationFailedException>emptyList());
+        BytesStreamOutput out = new BytesStreamOutput();
+        response.writeTo(out);
+        DistinctTermsResponse read = new DistinctTermsResponse();
+        read.readFrom(new BytesStreamInput(out.bytes()));
+        assertEquals(0, read.getResults().get("terms").getHashes().length);
+        assertEquals(0, read.getResults().get("terms").getTotalCount());
+    }
+}
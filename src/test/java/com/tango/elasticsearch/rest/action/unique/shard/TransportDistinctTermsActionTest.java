@@ -0,0 +1,57 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.shard;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.junit.Test;
+
+/**
+ * Checks which sources shard collector accepts, collecting itself is covered by {@link DistinctTermsCollectorTest}.
+ */
+public class TransportDistinctTermsActionTest {
+
+    private static final String RANGE = "\"facet_filter\":{\"range\":{\"@timestamp\":{\"from\":1000,\"to\":3000}}}";
+
+    @Test
+    public void testSupportedSource() throws Exception {
+        // queries and filters are not parsed without search context
+        assertNull(unsupportedReason("{\"query\":{\"term\":{\"device\":\"d1\"}},\"size\":0,\"facets\":{"
+                + "\"users\":{\"terms\":{\"field\":\"uid\",\"size\":1,\"order\":\"count\",\"exclude\":[]}," + RANGE
+                + "},\"devices\":{\"terms\":{\"field\":\"device\"},\"global\":false," + RANGE + "}}}"));
+        assertNull(unsupportedReason("{\"facets\":{\"users\":{\"terms\":{\"field\":\"uid\"},\"global\":true}}}"));
+    }
+
+    @Test
+    public void testUnsupportedSource() throws Exception {
+        assertEquals("Terms facet option [fields] is not supported by shard collector", unsupportedReason(
+                "{\"facets\":{\"users\":{\"terms\":{\"fields\":[\"uid\",\"device\"]}," + RANGE + "}}}"));
+        assertEquals("Terms facet option [script_field] is not supported by shard collector", unsupportedReason(
+                "{\"facets\":{\"users\":{\"terms\":{\"script_field\":\"doc['uid'].value\"}," + RANGE + "}}}"));
+        assertEquals("No field of facet [users] found", unsupportedReason(
+                "{\"facets\":{\"users\":{\"terms\":{\"size\":10}," + RANGE + "}}}"));
+        assertEquals("No terms facets found", unsupportedReason("{\"query\":{\"match_all\":{}}}"));
+        String reason = unsupportedReason("{\"facets\":{\"users\":");
+        assertTrue(reason, reason.startsWith("Failed to parse source: "));
+    }
+
+    private static String unsupportedReason(String source) {
+        return TransportDistinctTermsAction.getUnsupportedReason(new BytesArray(source));
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ *  Copyright 2014 TangoMe Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.tango.elasticsearch.rest.action.unique.sketch;
+
+import static junit.framework.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HyperLogLogTest {
+
+    @Test
+    public void testCardinalityWithinError() throws Exception {
+        HyperLogLog sketch = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+        int count = 1000000;
+        for (int i = 0; i < count; i++) {
+            offer(sketch, "UID_" + i);
+        }
+        double error = Math.abs(sketch.cardinality() - count) / (double) count;
+        assertTrue("Error is too big: " + error, error < 3 * sketch.relativeError());
+    }
+
+    @Test
+    public void testSmallCardinality() throws Exception {
+        HyperLogLog sketch = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+        for (int i = 0; i < 100; i++) {
+            offer(sketch, "UID_" + i);
+            offer(sketch, "UID_" + i);
+        }
+        assertTrue(Math.abs(sketch.cardinality() - 100) <= 2);
+    }
+
+    @Test
+    public void testMergeOverlapping() throws Exception {
+        HyperLogLog first = new HyperLogLog(12);
+        HyperLogLog second = new HyperLogLog(12);
+        for (int i = 0; i < 60000; i++) {
+            offer(first, "UID_" + i);
+        }
+        for (int i = 30000; i < 90000; i++) {
+            offer(second, "UID_" + i);
+        }
+        first.merge(second);
+        double error = Math.abs(first.cardinality() - 90000) / 90000.0;
+        assertTrue("Error is too big: " + error, error < 3 * first.relativeError());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeDifferentPrecision() throws Exception {
+        new HyperLogLog(12).merge(new HyperLogLog(14));
+    }
+
+    private static void offer(HyperLogLog sketch, String term) throws Exception {
+        byte[] bytes = term.getBytes("UTF-8");
+        sketch.offer(bytes, 0, bytes.length);
+    }
+}